@@ -0,0 +1,934 @@
+package com.qboileau.mqtt;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Log;
+import android.widget.Toast;
+
+import org.meqantt.MqttException;
+import org.meqantt.MqttListener;
+import org.meqantt.message.ConnAckMessage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Connection to one broker of {@link MqttService}.
+ *
+ * Each broker has its own mqtt thread, publish queues, outbox, reconnection backoff and keep alive,
+ * so a slow or unreachable broker does not delay messages of the others.
+ * @author qboileau
+ */
+class BrokerConnection implements MqttListener, MqttTransport.AckListener {
+
+    /**
+     * Service side of a broker connection.
+     */
+    interface Callback {
+        /**
+         * Connection accepted, called on broker mqtt thread.
+         */
+        void onBrokerConnected(BrokerConnection broker);
+
+        /**
+         * Connection broken or closed, called on broker mqtt thread.
+         */
+        void onBrokerDisconnected(BrokerConnection broker);
+
+        /**
+         * Program next keep alive wakeup of this broker.
+         * @param time elapsed realtime of next wakeup in ms
+         * @param window maximum delivery delay after time in ms, the broker drops the connection after it
+         */
+        void scheduleKeepAlive(BrokerConnection broker, long time, long window);
+
+        void cancelKeepAlive(BrokerConnection broker);
+
+        boolean isOnline();
+    }
+
+    private static final String LOG_TAG = BrokerConnection.class.getCanonicalName();
+    private static final String MQTT_THREAD_NAME = "THREAD_MQTT";
+    // keep alive given to the broker (s), pings are sent before 14/15 of it
+    static final int DEFAULT_KEEP_ALIVE = 900;
+    private static final long KEEP_ALIVE_MIN_INTERVAL = 60000; //1min
+    private static final long KEEP_ALIVE_STEP = 60000; //1min
+    private static final long RECONNECT_BASE_DELAY = 2000; //2s
+    private static final long RECONNECT_MAX_DELAY = 300000; //5min
+    private static final int TIMEOUT = 5000; //5s
+    private static final int PUBLISH_QUEUE_CAPACITY = 500;
+    private static final int QOS_QUEUE_CAPACITY = 500;
+    private static final long QOS_RETRY_TIMEOUT = 10000; //10s
+    private static final int OUTBOX_SEGMENT_SIZE = 256 * 1024; //256KB
+    private static final int OUTBOX_MAX_SEGMENTS = 16; //4MB
+    private static final int OUTBOX_DRAIN_BATCH = 50;
+    private static final long OUTBOX_DRAIN_INTERVAL = 200; //200ms
+
+    private final int mIndex;
+    private final String mHost;
+    private final int mPort;
+    private final String mName;
+    private final Context mContext;
+    private final Callback mCallback;
+    private final MqttMetrics mMetrics;
+    private final SubscriptionRouter mRouter;
+    private final InboundQueue mInbound;
+    private final MqttTransport mMqttClient;
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+
+    private final PublishBatcher mPublishBatcher;
+    private final QosPublisher mQosPublisher;
+    private final KeepAliveScheduler mKeepAlive;
+    private final ReconnectBackoff mBackoff;
+    private Outbox mOutbox;
+    private OutputStream mSocketOutput;
+    private volatile int mBatchSize = 1;
+    private volatile long mFlushLatency = 0;
+    private volatile boolean mDebugLog = false;
+    private volatile int mKeepAliveSeconds = DEFAULT_KEEP_ALIVE;
+    // keep alive of current connection and maximum ping interval applied, on mqtt thread
+    private int mConnectedKeepAlive = DEFAULT_KEEP_ALIVE;
+    private long mMaxPingInterval;
+
+    private volatile ConnectionState mState = ConnectionState.DISCONNECTED;
+    private volatile ConnAckMessage.ConnectionStatus mConnAckStatus;
+    private volatile CountDownLatch mConnAckLatch;
+    private long mConnectionLostTime = -1;
+    private long mDrainStartTime = -1;
+    private final ByteArrayOutputStream mDrainBuffer = new ByteArrayOutputStream(4096);
+    private final List<byte[]> mDrainQos = new ArrayList<byte[]>(OUTBOX_DRAIN_BATCH);
+
+    private final Runnable mReconnectRunnable = new Runnable() {
+        @Override
+        public void run() {
+            doConnect();
+        }
+    };
+
+    private final AtomicBoolean mFlushScheduled = new AtomicBoolean(false);
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mFlushScheduled.set(false);
+            flushPublishes();
+        }
+    };
+
+    private final Runnable mDrainRunnable = new Runnable() {
+        @Override
+        public void run() {
+            drainOutbox();
+        }
+    };
+
+    private final AtomicBoolean mQosScheduled = new AtomicBoolean(false);
+    private final Runnable mQosRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mQosScheduled.set(false);
+            sendQosPublishes();
+        }
+    };
+
+    private final Runnable mRetransmitRunnable = new Runnable() {
+        @Override
+        public void run() {
+            retransmitQosPublishes(QOS_RETRY_TIMEOUT);
+        }
+    };
+
+    /**
+     * @param index broker index in service configuration
+     * @param host
+     * @param port
+     * @param clientId mqtt client id
+     * @param nio use {@link NioClient} transport instead of MeQanTT blocking socket
+     * @param outboxDirectory directory of stored messages of this broker
+     * @param inbound queue of received messages, dispatched by the service worker
+     */
+    BrokerConnection(int index, String host, int port, String clientId, boolean nio, File outboxDirectory,
+                     Context context, Callback callback, MqttMetrics metrics, SubscriptionRouter router,
+                     InboundQueue inbound) {
+        this.mIndex = index;
+        this.mHost = host;
+        this.mPort = port;
+        this.mName = host + ":" + port;
+        this.mContext = context;
+        this.mCallback = callback;
+        this.mMetrics = metrics;
+        this.mRouter = router;
+        this.mInbound = inbound;
+        if (nio) {
+            // payloads go from the read buffer to the queue without listener
+            NioClient nioClient = new NioClient(clientId, this);
+            nioClient.setInboundQueue(inbound);
+            this.mMqttClient = nioClient;
+        } else {
+            this.mMqttClient = new QosSocketClient(clientId, this);
+        }
+        mMqttClient.addListener(this);
+
+        mThread = new HandlerThread(MQTT_THREAD_NAME + "_" + index);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+        mPublishBatcher = new PublishBatcher(PUBLISH_QUEUE_CAPACITY);
+        mQosPublisher = new QosPublisher(QosPublisher.MAX_WINDOW, QOS_QUEUE_CAPACITY);
+        mQosPublisher.setAckLatency(metrics.getAckLatency());
+        mBackoff = new ReconnectBackoff(RECONNECT_BASE_DELAY, RECONNECT_MAX_DELAY, new Random());
+        mMaxPingInterval = maxPingInterval(DEFAULT_KEEP_ALIVE);
+        mKeepAlive = new KeepAliveScheduler(Math.min(KEEP_ALIVE_MIN_INTERVAL, mMaxPingInterval), mMaxPingInterval,
+                KEEP_ALIVE_STEP, SystemClock.elapsedRealtime());
+        try {
+            mOutbox = new Outbox(outboxDirectory, OUTBOX_SEGMENT_SIZE, OUTBOX_MAX_SEGMENTS);
+            Log.i(LOG_TAG, mName + " outbox opened with " + mOutbox.getRecoveredCount() + " pending messages");
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Unable to open outbox of " + mName + ", offline messages will be lost", e);
+        }
+    }
+
+    int getIndex() {
+        return mIndex;
+    }
+
+    String getName() {
+        return mName;
+    }
+
+    ConnectionState getState() {
+        return mState;
+    }
+
+    boolean isConnected() {
+        return mState == ConnectionState.CONNECTED;
+    }
+
+    /**
+     * Apply publish settings, while connected or not.
+     * @param batchSize messages written in one socket write
+     * @param flushLatency maximum delay of queued messages in ms
+     * @param qosWindow maximum number of unacknowledged QoS messages
+     * @param keepAlive mqtt keep alive in s, a longer keep alive is given to the broker on next connection
+     * @param debugLog log each message
+     */
+    void configure(int batchSize, long flushLatency, int qosWindow, int keepAlive, boolean debugLog) {
+        this.mBatchSize = batchSize;
+        this.mFlushLatency = flushLatency;
+        this.mDebugLog = debugLog;
+        mQosPublisher.setWindow(qosWindow);
+        if (keepAlive != mKeepAliveSeconds) {
+            mKeepAliveSeconds = keepAlive;
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    applyKeepAlive();
+                }
+            });
+        }
+    }
+
+    /**
+     * Bound ping interval by the keep alive setting and the keep alive of current connection.
+     * Must be called from mqtt thread.
+     */
+    private void applyKeepAlive() {
+        int keepAlive = effectiveKeepAlive();
+        long maxInterval = maxPingInterval(keepAlive);
+        if (maxInterval == mMaxPingInterval) {
+            return;
+        }
+        // interval is learned again within the new bounds
+        mMaxPingInterval = maxInterval;
+        mKeepAlive.configure(Math.min(KEEP_ALIVE_MIN_INTERVAL, maxInterval), maxInterval, KEEP_ALIVE_STEP);
+        Log.i(LOG_TAG, mName + " keep alive " + keepAlive + "s, ping at most every " + maxInterval / 1000 + "s");
+        if (mState == ConnectionState.CONNECTED) {
+            scheduleKeepAlive();
+        }
+    }
+
+    /**
+     * @return keep alive in s, of current connection when connected
+     */
+    private int effectiveKeepAlive() {
+        return mState == ConnectionState.CONNECTED
+                ? Math.min(mKeepAliveSeconds, mConnectedKeepAlive) : mKeepAliveSeconds;
+    }
+
+    /**
+     * Program next ping wakeup. A late wakeup must still ping before the broker timeout
+     * of 1.5 keep alive after last activity, the delivery window is what is left of it.
+     * Must be called from mqtt thread.
+     */
+    private void scheduleKeepAlive() {
+        long window = Math.max(0, effectiveKeepAlive() * 1500L - mKeepAlive.getInterval());
+        mCallback.scheduleKeepAlive(this, mKeepAlive.nextPingTime(), window);
+    }
+
+    /**
+     * @param keepAlive mqtt keep alive in s
+     * @return maximum idle time before a ping in ms
+     */
+    private static long maxPingInterval(int keepAlive) {
+        return keepAlive * 1000L * 14 / 15;
+    }
+
+    /**
+     * Connect, and keep reconnecting until {@link #disconnect()}.
+     */
+    void connect() {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mState == ConnectionState.CONNECTED || mState == ConnectionState.CONNECTING) {
+                    return;
+                }
+                mHandler.removeCallbacks(mReconnectRunnable);
+                mBackoff.reset();
+                doConnect();
+            }
+        });
+    }
+
+    /**
+     * Connection attempt.
+     * Must be called from mqtt thread.
+     */
+    private void doConnect() {
+        if (!mCallback.isOnline()) {
+            Log.i(LOG_TAG, "Network unavailable, wait for connectivity");
+            setState(ConnectionState.BACKING_OFF);
+            return;
+        }
+
+        setState(ConnectionState.CONNECTING);
+        mMetrics.onConnectAttempt();
+        mConnAckStatus = null;
+        mConnAckLatch = new CountDownLatch(1);
+        long start = SystemClock.elapsedRealtime();
+        try {
+            Log.i(LOG_TAG, "Connect to " + mName);
+            mConnectedKeepAlive = mKeepAliveSeconds;
+            mMqttClient.connect(mHost, mPort, TIMEOUT, mConnectedKeepAlive);
+            // client returns on CONNACK, possibly before our listener is notified
+            mConnAckLatch.await(TIMEOUT, TimeUnit.MILLISECONDS);
+            if (mConnAckStatus != ConnAckMessage.ConnectionStatus.ACCEPTED) {
+                throw new MqttException("Connection refused : " + mConnAckStatus);
+            }
+            mSocketOutput = mMqttClient.getOutputStream();
+            mMetrics.onHandshake(SystemClock.elapsedRealtime() - start);
+        } catch (MqttException e) {
+            Log.e(LOG_TAG, e.getMessage(), e);
+            mMqttClient.close();
+            if (mBackoff.getAttempts() == 0) {
+                Toast.makeText(mContext, "Failed to connect to " + mName, Toast.LENGTH_LONG).show();
+            }
+            scheduleReconnect();
+            return;
+        } catch (InterruptedException e) {
+            Log.e(LOG_TAG, e.getMessage(), e);
+            mMqttClient.close();
+            scheduleReconnect();
+            return;
+        }
+        onConnected();
+    }
+
+    /**
+     * Connection accepted by the broker.
+     * Must be called from mqtt thread.
+     */
+    private void onConnected() {
+        long now = SystemClock.elapsedRealtime();
+        long reconnectLatency = mConnectionLostTime >= 0 ? now - mConnectionLostTime : -1;
+        mConnectionLostTime = -1;
+        mMetrics.onConnected(reconnectLatency);
+        Log.i(LOG_TAG, "Connected to " + mName + " after " + (mBackoff.getAttempts() + 1) + " attempts"
+                + (reconnectLatency >= 0 ? " (reconnected in " + reconnectLatency + "ms)" : ""));
+        mBackoff.reset();
+        setState(ConnectionState.CONNECTED);
+        applyKeepAlive();
+        mKeepAlive.onConnected(now);
+        scheduleKeepAlive();
+        resubscribe();
+        // broker may not have received unacknowledged messages of previous connection
+        retransmitQosPublishes(0);
+        sendQosPublishes();
+        scheduleDrain(0);
+        mCallback.onBrokerConnected(this);
+    }
+
+    /**
+     * Subscribe again to all filters of router, broker session is not kept between connections.
+     * Must be called from mqtt thread.
+     */
+    private void resubscribe() {
+        for (String filter : mRouter.getFilters()) {
+            try {
+                Log.i(LOG_TAG, "Subscribe on topic : " + filter + " of " + mName);
+                mMqttClient.subscribe(filter);
+            } catch (MqttException e) {
+                Log.e(LOG_TAG, e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * Connection broken by network or broker, keep pending messages and reconnect.
+     * Must be called from mqtt thread.
+     */
+    private void onConnectionLost() {
+        if (mState != ConnectionState.CONNECTED) {
+            return;
+        }
+        long now = SystemClock.elapsedRealtime();
+        Log.w(LOG_TAG, "Connection lost to " + mName);
+        mMetrics.onConnectionLost();
+        mConnectionLostTime = now;
+        if (mCallback.isOnline()) {
+            // only a loss with network up tells the idle interval is too long for the path
+            mKeepAlive.onConnectionLost(now);
+        }
+        stopActivity();
+        mMqttClient.close();
+        // QoS messages stay in flight and are sent again on reconnection
+        storePublishes();
+        scheduleReconnect();
+        mCallback.onBrokerDisconnected(this);
+    }
+
+    /**
+     * Remove scheduled socket activity of current connection.
+     */
+    private void stopActivity() {
+        mCallback.cancelKeepAlive(this);
+        mHandler.removeCallbacks(mDrainRunnable);
+        mHandler.removeCallbacks(mQosRunnable);
+        mHandler.removeCallbacks(mRetransmitRunnable);
+        mQosScheduled.set(false);
+        mSocketOutput = null;
+    }
+
+    /**
+     * Program next connection attempt after backoff delay, or wait for network.
+     * Must be called from mqtt thread.
+     */
+    private void scheduleReconnect() {
+        setState(ConnectionState.BACKING_OFF);
+        mHandler.removeCallbacks(mReconnectRunnable);
+        if (mCallback.isOnline()) {
+            long delay = mBackoff.nextDelay();
+            Log.i(LOG_TAG, "Reconnect to " + mName + " in " + delay + "ms (attempt " + mBackoff.getAttempts() + ")");
+            mHandler.postDelayed(mReconnectRunnable, delay);
+        } else {
+            Log.i(LOG_TAG, "Network unavailable, wait for connectivity");
+        }
+    }
+
+    private void setState(ConnectionState state) {
+        if (mState != state) {
+            Log.d(LOG_TAG, mName + " connection state " + mState + " -> " + state);
+            mState = state;
+        }
+    }
+
+    /**
+     * Network connectivity changed.
+     * @param online network is available
+     */
+    void onConnectivityChanged(final boolean online) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!online) {
+                    if (mState == ConnectionState.CONNECTED) {
+                        onConnectionLost();
+                    }
+                } else if (mState == ConnectionState.BACKING_OFF) {
+                    // network is back, retry soon with jitter
+                    mBackoff.reset();
+                    scheduleReconnect();
+                }
+            }
+        });
+    }
+
+    /**
+     * Close connection and stop reconnecting.
+     */
+    void disconnect() {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mHandler.removeCallbacks(mReconnectRunnable);
+                boolean connected = mState == ConnectionState.CONNECTED;
+                if (connected) {
+                    Log.i(LOG_TAG, "Close connection to " + mName);
+                    if (mCallback.isOnline()) {
+                        flushPublishes();
+                    }
+                    stopActivity();
+                    try {
+                        mMqttClient.disconnect();
+                    } catch (MqttException e) {
+                        Log.e(LOG_TAG, e.getMessage(), e);
+                        mMqttClient.close();
+                    }
+                }
+                storePublishes();
+                storeQosPublishes();
+                mConnectionLostTime = -1;
+                setState(ConnectionState.DISCONNECTED);
+                if (connected) {
+                    mCallback.onBrokerDisconnected(BrokerConnection.this);
+                }
+            }
+        });
+    }
+
+    /**
+     * Store all pending messages, close outbox and stop mqtt thread.
+     * Connection must be closed with {@link #disconnect()} first.
+     */
+    void release() {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mOutbox != null) {
+                    storePublishes();
+                    storeQosPublishes();
+                    mOutbox.sync();
+                    mOutbox.close();
+                }
+                mThread.quit();
+            }
+        });
+    }
+
+    /**
+     * Wait for {@link #release()} to complete, so a new connection can open the same outbox.
+     * @param timeout maximum wait in ms
+     * @return true if mqtt thread has stopped
+     */
+    boolean awaitRelease(long timeout) {
+        try {
+            mThread.join(timeout);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return !mThread.isAlive();
+    }
+
+    /**
+     * Queue an encoded message, it will be sent with the next batch
+     * when batch size or flush latency is reached.
+     * @param topic
+     * @param frame encoded publish message
+     */
+    void publish(String topic, byte[] frame) {
+        schedulePublishFlush(enqueue(topic, frame));
+    }
+
+    /**
+     * Add an encoded message to the publish queue, or to the QoS window if it has a QoS,
+     * or to the outbox if client is offline or queue is full.
+     * @param topic
+     * @param frame encoded publish message
+     * @return number of messages waiting for next flush
+     */
+    private int enqueue(final String topic, final byte[] frame) {
+        if (mState == ConnectionState.CONNECTED && QosPublisher.qos(frame) > 0) {
+            if (mQosPublisher.offer(frame)) {
+                mMetrics.onEnqueued(mQosPublisher.getPendingCount());
+                scheduleQosSend();
+            } else {
+                mMetrics.onOverflow();
+                if (mDebugLog) {
+                    Log.d(LOG_TAG, "QoS queue full, store message on topic : " + topic);
+                }
+                store(frame);
+            }
+            return 0;
+        } else if (mState == ConnectionState.CONNECTED) {
+            int pending = mPublishBatcher.offer(frame);
+            if (pending < 0) {
+                mMetrics.onOverflow();
+                if (mDebugLog) {
+                    Log.d(LOG_TAG, "Publish queue full, store message on topic : " + topic);
+                }
+                store(frame);
+                return mPublishBatcher.size();
+            }
+            mMetrics.onEnqueued(pending);
+            return pending;
+        } else {
+            if (mDebugLog) {
+                Log.d(LOG_TAG, mName + " not connected, store message on topic : " + topic);
+            }
+            store(frame);
+            return 0;
+        }
+    }
+
+    private void schedulePublishFlush(int pending) {
+        if (pending >= mBatchSize) {
+            mFlushScheduled.set(true);
+            mHandler.removeCallbacks(mFlushRunnable);
+            mHandler.post(mFlushRunnable);
+        } else if (pending > 0 && mFlushScheduled.compareAndSet(false, true)) {
+            mHandler.postDelayed(mFlushRunnable, mFlushLatency);
+        }
+    }
+
+    /**
+     * Keep a message in outbox until next connection.
+     * @param frame encoded message
+     */
+    private void store(byte[] frame) {
+        if (mOutbox == null) {
+            mMetrics.onDropped();
+            if (mDebugLog) {
+                Log.d(LOG_TAG, "No outbox, message dropped");
+            }
+            return;
+        }
+        try {
+            if (mOutbox.append(frame)) {
+                mMetrics.onStored();
+            } else {
+                mMetrics.onDropped();
+                Log.e(LOG_TAG, "Message too large for outbox, message dropped");
+            }
+        } catch (IOException e) {
+            mMetrics.onDropped();
+            Log.e(LOG_TAG, e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Move all messages waiting for next flush into outbox.
+     */
+    private void storePublishes() {
+        byte[] frame;
+        while ((frame = mPublishBatcher.poll()) != null) {
+            store(frame);
+        }
+    }
+
+    /**
+     * Move all unacknowledged and pending QoS messages into outbox.
+     */
+    private void storeQosPublishes() {
+        byte[] frame;
+        while ((frame = mQosPublisher.poll()) != null) {
+            store(frame);
+        }
+    }
+
+    private void scheduleDrain(long delay) {
+        if (mOutbox != null && !mOutbox.isEmpty()) {
+            if (mDrainStartTime < 0) {
+                mDrainStartTime = SystemClock.elapsedRealtime();
+                Log.i(LOG_TAG, "Replay " + mOutbox.size() + " stored messages to " + mName);
+            }
+            mHandler.removeCallbacks(mDrainRunnable);
+            mHandler.postDelayed(mDrainRunnable, delay);
+        }
+    }
+
+    /**
+     * Send a limited batch of stored messages and schedule next one.
+     * Must be called from mqtt thread.
+     */
+    private void drainOutbox() {
+        if (mState != ConnectionState.CONNECTED) {
+            mDrainStartTime = -1;
+            return;
+        }
+
+        if (mQosPublisher.remainingCapacity() < OUTBOX_DRAIN_BATCH) {
+            // stored QoS messages go through the window, wait for acknowledgements
+            scheduleDrain(OUTBOX_DRAIN_INTERVAL);
+            return;
+        }
+
+        mDrainBuffer.reset();
+        mDrainQos.clear();
+        int count = 0;
+        byte[] frame;
+        while (count < OUTBOX_DRAIN_BATCH && (frame = mOutbox.next()) != null) {
+            if (QosPublisher.qos(frame) > 0) {
+                mDrainQos.add(frame);
+            } else {
+                mDrainBuffer.write(frame, 0, frame.length);
+            }
+            count++;
+        }
+
+        try {
+            mDrainBuffer.writeTo(mSocketOutput);
+            mSocketOutput.flush();
+            mKeepAlive.onActivity(SystemClock.elapsedRealtime());
+            mOutbox.commit();
+            mMetrics.onReplayed(count - mDrainQos.size(), mDrainBuffer.size());
+        } catch (IOException e) {
+            Log.e(LOG_TAG, e.getMessage(), e);
+            mOutbox.rollback();
+            mDrainStartTime = -1;
+            onConnectionLost();
+            return;
+        }
+        for (int i = 0; i < mDrainQos.size(); i++) {
+            mQosPublisher.offer(mDrainQos.get(i));
+        }
+        if (!mDrainQos.isEmpty()) {
+            sendQosPublishes();
+        }
+
+        if (mOutbox.isEmpty()) {
+            long duration = SystemClock.elapsedRealtime() - mDrainStartTime;
+            Log.i(LOG_TAG, mName + " outbox replayed in " + duration + "ms (" + mOutbox.getReplayedCount() + " replayed, "
+                    + mOutbox.getEvictedCount() + " evicted since start)");
+            mDrainStartTime = -1;
+        } else {
+            scheduleDrain(OUTBOX_DRAIN_INTERVAL);
+        }
+    }
+
+    /**
+     * Write all queued messages in one socket write.
+     * Must be called from mqtt thread.
+     */
+    private void flushPublishes() {
+        if (mState != ConnectionState.CONNECTED) {
+            return;
+        }
+        try {
+            int frames = mPublishBatcher.flush(mSocketOutput, mMetrics.getSendLatency());
+            if (frames > 0) {
+                mKeepAlive.onActivity(SystemClock.elapsedRealtime());
+                mMetrics.onFlushed(frames, mPublishBatcher.getLastFlushBytes());
+                if (mDebugLog) {
+                    Log.d(LOG_TAG, "Flush " + frames + " messages to " + mName
+                            + " (" + mPublishBatcher.getFramesPerFlush() + " messages/flush)");
+                }
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, e.getMessage(), e);
+            onConnectionLost();
+        }
+    }
+
+    private void scheduleQosSend() {
+        if (mQosScheduled.compareAndSet(false, true)) {
+            mHandler.post(mQosRunnable);
+        }
+    }
+
+    /**
+     * Write due PUBREL and QoS messages while the in-flight window has room.
+     * Must be called from mqtt thread.
+     */
+    private void sendQosPublishes() {
+        if (mState != ConnectionState.CONNECTED) {
+            return;
+        }
+        try {
+            long now = SystemClock.elapsedRealtime();
+            int frames = mQosPublisher.send(mSocketOutput, now);
+            if (frames > 0) {
+                mKeepAlive.onActivity(now);
+                if (mDebugLog) {
+                    Log.d(LOG_TAG, "Send " + frames + " QoS messages to " + mName
+                            + " (" + mQosPublisher.getInFlightCount() + " in flight)");
+                }
+            }
+            scheduleRetransmit(now);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, e.getMessage(), e);
+            onConnectionLost();
+        }
+    }
+
+    /**
+     * Send again QoS messages not acknowledged for given timeout.
+     * Must be called from mqtt thread.
+     * @param timeout acknowledgement timeout in ms, 0 for all in-flight messages
+     */
+    private void retransmitQosPublishes(long timeout) {
+        if (mState != ConnectionState.CONNECTED) {
+            return;
+        }
+        try {
+            long now = SystemClock.elapsedRealtime();
+            int frames = mQosPublisher.retransmit(mSocketOutput, now, timeout);
+            if (frames > 0) {
+                mKeepAlive.onActivity(now);
+                mMetrics.onRetransmitted(frames);
+                Log.i(LOG_TAG, "Retransmit " + frames + " unacknowledged QoS messages to " + mName);
+            }
+            scheduleRetransmit(now);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, e.getMessage(), e);
+            onConnectionLost();
+        }
+    }
+
+    private void scheduleRetransmit(long now) {
+        mHandler.removeCallbacks(mRetransmitRunnable);
+        long next = mQosPublisher.nextRetransmitTime(QOS_RETRY_TIMEOUT);
+        if (next >= 0) {
+            mHandler.postDelayed(mRetransmitRunnable, Math.max(0, next - now));
+        }
+    }
+
+    /**
+     * Keep alive alarm, send pending messages or a ping if connection was idle
+     * for the keep alive interval, then program next alarm.
+     */
+    void keepAlive() {
+        if (mState == ConnectionState.CONNECTED) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mState != ConnectionState.CONNECTED) {
+                        return;
+                    }
+                    long now = SystemClock.elapsedRealtime();
+                    if (mPublishBatcher.size() > 0) {
+                        // pending messages keep connection alive
+                        mHandler.removeCallbacks(mFlushRunnable);
+                        mFlushScheduled.set(false);
+                        flushPublishes();
+                    }
+                    if (mKeepAlive.onWakeup(now)) {
+                        try {
+                            Log.d(LOG_TAG, "Ping " + mName);
+                            mMqttClient.ping();
+                            mKeepAlive.onPingSent(now);
+                            mMetrics.onPing();
+                        } catch (MqttException e) {
+                            Log.e(LOG_TAG, e.getMessage(), e);
+                            onConnectionLost();
+                            return;
+                        }
+                    }
+                    if (mDebugLog) {
+                        Log.d(LOG_TAG, mName + " keep alive interval " + mKeepAlive.getInterval() / 1000 + "s, "
+                                + mKeepAlive.getWakeupsPerHour(now) + " wakeups/h, "
+                                + mKeepAlive.getPingCount() + " pings, "
+                                + mKeepAlive.getSkippedCount() + " skipped");
+                    }
+                    scheduleKeepAlive();
+                }
+            });
+        } else {
+            Log.e(LOG_TAG, mName + " not connected");
+        }
+    }
+
+    void subscribe(final String topic) {
+        if (mState == ConnectionState.CONNECTED) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Log.i(LOG_TAG, "Subscribe on topic : " + topic + " of " + mName);
+                        mMqttClient.subscribe(topic);
+                        mKeepAlive.onActivity(SystemClock.elapsedRealtime());
+                    } catch (IOException e) {
+                        Log.e(LOG_TAG, e.getMessage(), e);
+                    }
+                }
+            });
+        }
+    }
+
+    void unsubscribe(final String topic) {
+        if (mState == ConnectionState.CONNECTED) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Log.i(LOG_TAG, "Unsubscribe on topic : " + topic + " of " + mName);
+                        mMqttClient.unsubscribe(topic);
+                        mKeepAlive.onActivity(SystemClock.elapsedRealtime());
+                    } catch (IOException e) {
+                        Log.e(LOG_TAG, e.getMessage(), e);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Append state, queue sizes and keep alive of this connection as "name=value" entries.
+     * @param sb destination
+     * @param prefix entries name prefix
+     * @param now current time in ms
+     * @param separator entries separator
+     * @return given builder
+     */
+    StringBuilder appendTo(StringBuilder sb, String prefix, long now, String separator) {
+        sb.append(prefix).append("broker=").append(mName).append(separator);
+        sb.append(prefix).append("state=").append(mState).append(separator);
+        sb.append(prefix).append("queue_size=").append(mPublishBatcher.size()).append(separator);
+        if (mOutbox != null) {
+            sb.append(prefix).append("outbox_size=").append(mOutbox.size()).append(separator);
+            sb.append(prefix).append("outbox_evicted=").append(mOutbox.getEvictedCount()).append(separator);
+        }
+        sb.append(prefix).append("qos_window=").append(mQosPublisher.getWindow()).append(separator);
+        sb.append(prefix).append("qos_pending=").append(mQosPublisher.getPendingCount()).append(separator);
+        sb.append(prefix).append("qos_in_flight=").append(mQosPublisher.getInFlightCount()).append(separator);
+        sb.append(prefix).append("frames_per_flush=").append(mPublishBatcher.getFramesPerFlush()).append(separator);
+        sb.append(prefix).append("keep_alive_s=").append(mKeepAlive.getInterval() / 1000).append(separator);
+        sb.append(prefix).append("wakeups_per_hour=").append(mKeepAlive.getWakeupsPerHour(now)).append(separator);
+        return sb;
+    }
+
+    @Override
+    public void connectAck(ConnAckMessage.ConnectionStatus connectionStatus) {
+        mConnAckStatus = connectionStatus;
+        CountDownLatch latch = mConnAckLatch;
+        if (latch != null) {
+            latch.countDown();
+        }
+    }
+
+    @Override
+    public void disconnected() {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                onConnectionLost();
+            }
+        });
+    }
+
+    /**
+     * Called on MeQanTT reader thread, which waits here while the inbound queue throttles.
+     */
+    @Override
+    public void publishArrived(String topic, byte[] payload) {
+        mInbound.offer(topic, payload, 0, payload.length);
+    }
+
+    /**
+     * Called on client reader thread, free window slot and send next QoS messages on mqtt thread.
+     */
+    @Override
+    public void onAck(int type, int messageId) {
+        if (mQosPublisher.onAck(type, messageId, SystemClock.elapsedRealtime())) {
+            scheduleQosSend();
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package com.qboileau.mqtt;
+
+import android.location.Location;
+import android.location.LocationListener;
+import android.location.LocationManager;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+/**
+ * Keep the last device location for geotagging of published records.
+ *
+ * Provider and update rate come from a {@link LocationPolicy} fed with publish times and received
+ * locations, updates are requested again when the policy changes. Locations computed for other
+ * applications are also received through the passive provider at no cost.
+ * Location updates are received on the UI thread, records may be tagged from any thread.
+ * @author qboileau
+ */
+public class LocationTracker implements LocationListener {
+
+    private static final String LOG_TAG = LocationTracker.class.getCanonicalName();
+
+    private final LocationManager mLocationManager;
+    private final LocationPolicy mPolicy;
+    private final Handler mHandler;
+    private boolean mStarted = false;
+    private String mProvider;
+
+    // last location, guarded by this
+    private boolean mHasFix = false;
+    private long mFixTime;
+    private double mLatitude;
+    private double mLongitude;
+
+    private final Runnable mRequestRunnable = new Runnable() {
+        @Override
+        public void run() {
+            requestUpdates();
+        }
+    };
+
+    private final LocationListener mPassiveListener = new LocationListener() {
+        @Override
+        public void onLocationChanged(Location location) {
+            onLocation(location);
+        }
+
+        @Override
+        public void onStatusChanged(String s, int i, Bundle bundle) {
+        }
+
+        @Override
+        public void onProviderEnabled(String s) {
+        }
+
+        @Override
+        public void onProviderDisabled(String s) {
+        }
+    };
+
+    /**
+     * @param locationManager
+     * @param policy provider and rate policy
+     */
+    public LocationTracker(LocationManager locationManager, LocationPolicy policy) {
+        this.mLocationManager = locationManager;
+        this.mPolicy = policy;
+        this.mHandler = new Handler(Looper.getMainLooper());
+    }
+
+    /**
+     * Start location updates, must be called on the UI thread.
+     */
+    public void start() {
+        if (mStarted) {
+            return;
+        }
+        mStarted = true;
+        onLocation(mLocationManager.getLastKnownLocation(LocationManager.NETWORK_PROVIDER));
+        onLocation(mLocationManager.getLastKnownLocation(LocationManager.GPS_PROVIDER));
+        mLocationManager.requestLocationUpdates(LocationManager.PASSIVE_PROVIDER,
+                LocationPolicy.MIN_INTERVAL, 0, mPassiveListener);
+        requestUpdates();
+    }
+
+    /**
+     * Stop location updates, must be called on the UI thread. Last location is kept.
+     */
+    public void stop() {
+        mHandler.removeCallbacks(mRequestRunnable);
+        if (mStarted) {
+            mStarted = false;
+            mProvider = null;
+            mLocationManager.removeUpdates(this);
+            mLocationManager.removeUpdates(mPassiveListener);
+        }
+    }
+
+    /**
+     * A record was published, may change the location update rate.
+     * @param time publish time in ms
+     */
+    public void onPublish(long time) {
+        mPolicy.onPublish(time);
+        if (mPolicy.update()) {
+            mHandler.post(mRequestRunnable);
+        }
+    }
+
+    /**
+     * Attach last location to a record if it is recent enough.
+     * @param record record with its timestamp set
+     * @return true if location was attached
+     */
+    public synchronized boolean attach(SensorRecord record) {
+        if (mHasFix && Math.abs(record.timestamp - mFixTime) <= mPolicy.getMaxAge()) {
+            record.setLocation(mLatitude, mLongitude);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Request updates from the policy provider, or from the other one if it is disabled.
+     */
+    private void requestUpdates() {
+        if (!mStarted) {
+            return;
+        }
+        String provider = mPolicy.getProvider() == LocationPolicy.PROVIDER_GPS
+                ? LocationManager.GPS_PROVIDER : LocationManager.NETWORK_PROVIDER;
+        if (!mLocationManager.isProviderEnabled(provider)) {
+            provider = LocationManager.GPS_PROVIDER.equals(provider)
+                    ? LocationManager.NETWORK_PROVIDER : LocationManager.GPS_PROVIDER;
+        }
+        mLocationManager.removeUpdates(this);
+        if (mLocationManager.isProviderEnabled(provider)) {
+            mProvider = provider;
+            mLocationManager.requestLocationUpdates(provider, mPolicy.getInterval(), mPolicy.getDistance(), this);
+            Log.i(LOG_TAG, "Location from " + provider + " every " + mPolicy.getInterval() + "ms / "
+                    + mPolicy.getDistance() + "m, speed " + mPolicy.getSpeed() + "m/s");
+        } else {
+            mProvider = null;
+            Log.w(LOG_TAG, "No location provider enabled, passive locations only");
+        }
+    }
+
+    private void onLocation(Location location) {
+        if (location == null) {
+            return;
+        }
+        synchronized (this) {
+            if (mHasFix && location.getTime() <= mFixTime) {
+                return;
+            }
+            mHasFix = true;
+            mFixTime = location.getTime();
+            mLatitude = location.getLatitude();
+            mLongitude = location.getLongitude();
+        }
+        mPolicy.onLocation(location.getTime(), location.getLatitude(), location.getLongitude(),
+                location.hasAccuracy() ? location.getAccuracy() : 0f);
+        if (mPolicy.update()) {
+            mHandler.post(mRequestRunnable);
+        }
+    }
+
+    @Override
+    public void onLocationChanged(Location location) {
+        onLocation(location);
+    }
+
+    @Override
+    public void onStatusChanged(String s, int i, Bundle bundle) {
+    }
+
+    @Override
+    public void onProviderEnabled(String s) {
+        if (mProvider == null || !mProvider.equals(s)) {
+            requestUpdates();
+        }
+    }
+
+    @Override
+    public void onProviderDisabled(String s) {
+        if (s.equals(mProvider)) {
+            requestUpdates();
+        }
+    }
+}
@@ -2,17 +2,18 @@ package com.qboileau.mqtt;
 
 import android.app.Activity;
 import android.app.AlertDialog;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
+import android.content.ServiceConnection;
+import android.content.SharedPreferences;
 import android.hardware.Sensor;
-import android.hardware.SensorEvent;
-import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
-import android.location.Location;
-import android.location.LocationListener;
 import android.location.LocationManager;
 import android.os.Bundle;
+import android.os.IBinder;
+import android.preference.PreferenceManager;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.Menu;
@@ -24,57 +25,140 @@ import android.widget.EditText;
 import android.widget.TextView;
 import android.widget.ToggleButton;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.Set;
 
-public class MainActivity extends Activity implements SensorEventListener, LocationListener {
+
+public class MainActivity extends Activity implements SensorIngestion.Listener, SensorHub.Consumer {
 
     public static final String TOPIC_PRESSURE = "/sensor/pressure";
+    public static final String TOPIC_TEMPERATURE = "/sensor/temperature";
+    public static final String TOPIC_HUMIDITY = "/sensor/humidity";
+    public static final String TOPIC_LIGHT = "/sensor/light";
+    public static final String TOPIC_ACCELEROMETER = "/sensor/accelerometer";
     public static final String EXTRA_HOST = "com.qboileau.mqtt.MQTT_HOST";
     public static final String EXTRA_PORT = "com.qboileau.mqtt.MQTT_PORT";
     public static final String EXTRA_TOPIC = "com.qboileau.mqtt.MQTT_TOPIC";
     public static final String EXTRA_MESSAGE = "com.qboileau.mqtt.MQTT_MESSAGE";
 
+    // per topic aggregation settings, keys are suffixed by topic
+    public static final String PREF_WINDOW_LENGTH = "pref_window_length";
+    public static final String PREF_WINDOW_SLIDE = "pref_window_slide";
+    public static final String PREF_WINDOW_AGGREGATES = "pref_window_aggregates";
+    public static final String PREF_QOS = "pref_qos";
+
+    // sensor settings, set by performance profiles
+    public static final String PREF_SAMPLING_PERIOD = "pref_sampling_period";
+    public static final String PREF_DEAD_BAND = "pref_dead_band";
+    public static final String PREF_MIN_INTERVAL = "pref_min_interval";
+    public static final String PREF_MAX_INTERVAL = "pref_max_interval";
+
+    // topics of enabled sensors besides pressure
+    public static final String PREF_SENSORS = "pref_sensors";
+
     private static final String LOG_TAG = MqttService.class.getCanonicalName();
 
-    //record only changes of pressure <= or >= DELTA
-    private static final long DELTA = 1;
+    //number of consecutive samples outside dead-band before recording a change
+    private static final int HYSTERESIS = 3;
 
-    //delay between two publish request
-    private static final long DELAY = 5000;
+    //minimum delay between two pressure display
+    private static final long UI_DELAY = 500;
 
-    private LocationManager mLocationManager;
-    private String mLocationProvider;
-    private SensorManager mSensorManager;
-    private Sensor mPressure;
+    //samples kept per window pane to estimate percentiles
+    private static final int WINDOW_SAMPLES = 64;
+
+    //delay between two drains of sensor hub samples (ms)
+    private static final long HUB_DRAIN_INTERVAL = 1000;
+
+    //pressure history, 256 chunks of 4kB hold about 700 000 filtered samples
+    private static final String HISTORY_DIRECTORY = "history";
+    private static final String PRESSURE_HISTORY = "pressure.tsdb";
+    private static final int HISTORY_CHUNK_SIZE = 4096;
+    private static final int HISTORY_CHUNKS = 256;
+
+    //history older than this is not published after an outage (ms)
+    private static final long BACKFILL_WINDOW = 24 * 3600 * 1000L;
+    private static final int BACKFILL_PAGE = 256;
+    private static final String BACKFILL_THREAD_NAME = "THREAD_BACKFILL";
+
+    // time of the last pressure sample published, kept with settings
+    private static final String STATE_LAST_PUBLISHED = "state_last_published";
 
-    private Location mCurrentLocation;
-    private float mCurrentSensorPressure = 0f;
-    private float mCurrentPressure = 0f;
-    private float mPressureCalibration = 0f;
-    private boolean mMqttStarted = false;
+    private LocationTracker mLocationTracker;
+    private SensorManager mSensorManager;
+    private SensorIngestion mPressureIngestion;
+    private SensorHub mSensorHub;
+    private TimeSeriesStore mPressureHistory;
+    private volatile long mLastPublished = Long.MIN_VALUE;
+    private volatile long mLastLivePublished = Long.MIN_VALUE;
+    // binder used by running backfill, null when no backfill runs
+    private volatile MqttService.MqttBinder mBackfillBinder;
+    private TextView mPressureView;
+
+    private volatile boolean mMqttStarted = false;
     private boolean mPressureAvailable = false;
-    private long mlastTime;
+    private volatile boolean mBinaryPayload = false;
+    private volatile boolean mBatchPayload = false;
+    private final SensorRecord mRecord = new SensorRecord();
+    private final byte[] mPayloadBuffer = new byte[SensorRecordCodec.MAX_SIZE];
+    // batch of samples drained together from the sensor hub, guarded by mRecord
+    private RecordBatchCodec.Encoder mDrainBatch;
+    private byte[] mDrainBuffer;
+    private final StringBuilder mSummaryText = new StringBuilder();
+
+    private volatile TopicRegistry.Topic mPressureTopic;
+    private volatile MqttService.MqttBinder mMqttBinder;
+    private final ServiceConnection mMqttConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder binder) {
+            MqttService.MqttBinder mqttBinder = (MqttService.MqttBinder) binder;
+            SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(MainActivity.this);
+            mqttBinder.setQos(TOPIC_PRESSURE, MqttService.readInt(prefs, PREF_QOS + TOPIC_PRESSURE, 0));
+            // topic is encoded once, publishes only copy its bytes
+            mPressureTopic = mqttBinder.register(TOPIC_PRESSURE);
+            for (SensorHub.Channel channel : mSensorHub.getChannels()) {
+                mqttBinder.setQos(channel.getTopic(), MqttService.readInt(prefs, PREF_QOS + channel.getTopic(), 0));
+                channel.setPublishTopic(mqttBinder.register(channel.getTopic()));
+            }
+            mMqttBinder = mqttBinder;
+            startBackfill(mqttBinder, mPressureTopic);
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            mMqttBinder = null;
+        }
+    };
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.mqtt_activity);
+        mPressureView = (TextView) findViewById(R.id.guiText);
 
         mSensorManager = (SensorManager) getSystemService(Context.SENSOR_SERVICE);
-        mPressure = mSensorManager.getDefaultSensor(Sensor.TYPE_PRESSURE);
-        if (mPressure != null) {
-            mSensorManager.registerListener(this, mPressure, SensorManager.SENSOR_DELAY_NORMAL);
+        Sensor pressure = mSensorManager.getDefaultSensor(Sensor.TYPE_PRESSURE);
+        if (pressure != null) {
+            PerformanceProfile balanced = PerformanceProfile.BALANCED;
+            DeadBandFilter filter = new DeadBandFilter(balanced.deadBand, 0f, HYSTERESIS,
+                    balanced.minInterval * 1000L, balanced.maxInterval * 1000L);
+            mPressureIngestion = new SensorIngestion(mSensorManager, pressure, filter, UI_DELAY, this);
             mPressureAvailable = true;
+            openHistory();
         }
 
-        mLocationManager = (LocationManager) getSystemService(LOCATION_SERVICE);
-        if (isLocationAvailable()) {
-            mLocationProvider = LocationManager.GPS_PROVIDER;
-        } else {
-            mLocationProvider = LocationManager.NETWORK_PROVIDER;
-        }
-        mCurrentLocation = mLocationManager.getLastKnownLocation(mLocationProvider);
+        // other sensors, with their own rate and dead-band, filter intervals come from settings
+        mSensorHub = new SensorHub(mSensorManager, HUB_DRAIN_INTERVAL, this);
+        mSensorHub.register(Sensor.TYPE_AMBIENT_TEMPERATURE, TOPIC_TEMPERATURE, 1, 1000, createFilter(0.2f, 0f));
+        mSensorHub.register(Sensor.TYPE_RELATIVE_HUMIDITY, TOPIC_HUMIDITY, 1, 1000, createFilter(1f, 0f));
+        mSensorHub.register(Sensor.TYPE_LIGHT, TOPIC_LIGHT, 1, 200, createFilter(1f, 0.1f));
+        mSensorHub.register(Sensor.TYPE_ACCELEROMETER, TOPIC_ACCELEROMETER, 3, 20, createFilter(0.5f, 0f));
 
-        mlastTime = System.currentTimeMillis();
+        // locate at most once per publish, policy learns the actual publish interval
+        LocationManager locationManager = (LocationManager) getSystemService(LOCATION_SERVICE);
+        mLocationTracker = new LocationTracker(locationManager,
+                new LocationPolicy(PerformanceProfile.BALANCED.maxInterval * 1000L));
 
         ToggleButton toggle = (ToggleButton) findViewById(R.id.toggleButton);
         toggle.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
@@ -82,7 +166,7 @@ public class MainActivity extends Activity implements SensorEventListener, Locat
                 if (isChecked) {
                     startMQTTClient();
                 } else {
-                    stopMQTTClient(false);
+                    stopMQTTClient(true);
                 }
             }
         });
@@ -96,7 +180,8 @@ public class MainActivity extends Activity implements SensorEventListener, Locat
                 View calibrationView = layoutInflater.inflate(R.layout.calibration_view, null);
 
                 final EditText input = (EditText) calibrationView.findViewById(R.id.userInput);
-                input.setText(String.valueOf(mCurrentSensorPressure));
+                final float sensorPressure = mPressureAvailable ? mPressureIngestion.getRawValue() : 0f;
+                input.setText(String.valueOf(sensorPressure));
 
                 AlertDialog.Builder builder = new AlertDialog.Builder(ctx);
                 builder.setTitle("Pressure calibration");
@@ -105,7 +190,9 @@ public class MainActivity extends Activity implements SensorEventListener, Locat
                 builder.setPositiveButton("OK", new DialogInterface.OnClickListener() {
                     public void onClick(DialogInterface dialog, int id) {
                         float realValue = Float.parseFloat(input.getText().toString());
-                        mPressureCalibration = realValue - mCurrentSensorPressure;
+                        if (mPressureAvailable) {
+                            mPressureIngestion.setCalibration(realValue - sensorPressure);
+                        }
                     }
                 }).setNegativeButton("Cancel", new DialogInterface.OnClickListener() {
                     public void onClick(DialogInterface dialog, int id) {
@@ -118,10 +205,85 @@ public class MainActivity extends Activity implements SensorEventListener, Locat
         });
     }
 
+    /**
+     * Open pressure history, it survives rotations and process death.
+     * Last pressure is displayed until the sensor gives a new one.
+     */
+    private void openHistory() {
+        File directory = new File(getFilesDir(), HISTORY_DIRECTORY);
+        try {
+            mPressureHistory = new TimeSeriesStore(new File(directory, PRESSURE_HISTORY),
+                    HISTORY_CHUNK_SIZE, HISTORY_CHUNKS);
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Pressure history disabled : " + e.getMessage());
+            return;
+        }
+        mPressureIngestion.setHistory(mPressureHistory);
+        Log.i(LOG_TAG, "Pressure history opened with " + mPressureHistory.size() + " samples");
+
+        float last = mPressureHistory.getLastValue();
+        if (!Float.isNaN(last)) {
+            onDisplay(last);
+        }
+        long lastPublished = PreferenceManager.getDefaultSharedPreferences(this)
+                .getLong(STATE_LAST_PUBLISHED, Long.MIN_VALUE);
+        // history recorded before first connection is not published
+        mLastPublished = lastPublished != Long.MIN_VALUE ? lastPublished : mPressureHistory.getLastTime();
+    }
+
+    /**
+     * Publish pressure samples recorded while the client was stopped, on a background thread.
+     * Only binary records carry their timestamp, text payloads and window summaries are not backfilled.
+     * Last published time follows the backfill pages until it is done, then live samples.
+     */
+    private void startBackfill(final MqttService.MqttBinder binder, final TopicRegistry.Topic topic) {
+        final TimeSeriesStore history = mPressureHistory;
+        if (history == null || !mBinaryPayload || mPressureIngestion.getAggregator() != null) {
+            return;
+        }
+        final long to = history.getLastTime();
+        final long from = Math.max(mLastPublished, to - BACKFILL_WINDOW) + 1;
+        if (to < from) {
+            return;
+        }
+        mBackfillBinder = binder;
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long[] times = new long[BACKFILL_PAGE];
+                float[] values = new float[BACKFILL_PAGE];
+                long start = from;
+                int published = 0;
+                int count;
+                while (mMqttBinder == binder && (count = history.read(start, to, times, values, BACKFILL_PAGE)) > 0) {
+                    for (int i = 0; i < count; i++) {
+                        publishHistorySample(binder, topic, times[i], values[i]);
+                    }
+                    published += count;
+                    start = times[count - 1] + 1;
+                    mLastPublished = times[count - 1];
+                }
+                if (mMqttBinder == binder) {
+                    // samples after the backfill range were published live
+                    mLastPublished = Math.max(to, mLastLivePublished);
+                }
+                if (mBackfillBinder == binder) {
+                    mBackfillBinder = null;
+                }
+                Log.i(LOG_TAG, "Backfilled " + published + " pressure samples");
+            }
+        }, BACKFILL_THREAD_NAME).start();
+    }
+
     private void startMQTTClient() {
         final TextView hostTF = (TextView) findViewById(R.id.hostTF);
         final TextView portTF = (TextView) findViewById(R.id.portTF);
 
+        String payloadFormat = PreferenceManager.getDefaultSharedPreferences(this)
+                .getString(MqttService.PREF_PAYLOAD_FORMAT, MqttService.PAYLOAD_TEXT);
+        mBatchPayload = MqttService.PAYLOAD_BATCH.equals(payloadFormat);
+        mBinaryPayload = mBatchPayload || MqttService.PAYLOAD_BINARY.equals(payloadFormat);
+
         Intent start = new Intent(this, MqttService.class);
         start.setAction(MqttService.ACTION_START);
         Bundle bundle = new Bundle();
@@ -129,26 +291,201 @@ public class MainActivity extends Activity implements SensorEventListener, Locat
         bundle.putInt(EXTRA_PORT, Integer.valueOf(portTF.getText().toString()));
         start.putExtras(bundle);
         startService(start);
+        if (!mMqttStarted) {
+            bindService(new Intent(this, MqttService.class), mMqttConnection, Context.BIND_AUTO_CREATE);
+        }
         mMqttStarted = true;
     }
 
-    private void publish(String topic, String message) {
-        if (mMqttStarted) {
-            Intent publish = new Intent(this, MqttService.class);
-            publish.setAction(MqttService.ACTION_PUBLISH);
-            publish.putExtra(EXTRA_TOPIC, topic);
-            publish.putExtra(EXTRA_MESSAGE, message);
-            startService(publish);
+    private void publish(TopicRegistry.Topic topic, String message) {
+        if (mMqttStarted && mMqttBinder != null && topic != null) {
+            mMqttBinder.publish(topic, message);
+        }
+    }
+
+    /**
+     * Publish a sensor value, as geotagged binary record or as text depending on payload format setting.
+     */
+    private void publish(TopicRegistry.Topic topic, int sensorType, long timestamp, float value) {
+        mLocationTracker.onPublish(timestamp);
+        publishSample(topic, sensorType, timestamp, value);
+    }
+
+    private void publishSample(TopicRegistry.Topic topic, int sensorType, long timestamp, float value) {
+        if (!mBinaryPayload) {
+            publish(topic, String.valueOf(value));
+        } else if (mMqttStarted && mMqttBinder != null && topic != null) {
+            synchronized (mRecord) {
+                mRecord.set(timestamp, sensorType, value);
+                mLocationTracker.attach(mRecord);
+                publishRecord(topic);
+            }
+        }
+    }
+
+    /**
+     * Publish a pressure sample read from history as binary record, without location :
+     * the current fix does not apply to an old sample.
+     */
+    private void publishHistorySample(MqttService.MqttBinder binder, TopicRegistry.Topic topic,
+                                      long timestamp, float value) {
+        synchronized (mRecord) {
+            mRecord.set(timestamp, Sensor.TYPE_PRESSURE, value);
+            publishRecord(binder, topic);
+        }
+    }
+
+    /**
+     * Publish a multi values sensor sample, as geotagged binary record or as "x;y;z" text.
+     */
+    private void publish(TopicRegistry.Topic topic, int sensorType, long timestamp,
+                         float[] values, int offset, int count) {
+        mLocationTracker.onPublish(timestamp);
+        if (!mMqttStarted || mMqttBinder == null || topic == null) {
+            return;
+        }
+        synchronized (mRecord) {
+            mRecord.set(timestamp, sensorType, values, offset, count);
+            if (mBinaryPayload) {
+                mLocationTracker.attach(mRecord);
+                publishRecord(topic);
+            } else {
+                mSummaryText.setLength(0);
+                for (int i = 0; i < count; i++) {
+                    if (i > 0) {
+                        mSummaryText.append(';');
+                    }
+                    mSummaryText.append(values[offset + i]);
+                }
+                publish(topic, mSummaryText.toString());
+            }
+        }
+    }
+
+    /**
+     * Publish last window summary of an aggregator, as binary record or as
+     * "name=value;..." text depending on payload format setting.
+     */
+    private void publishSummary(TopicRegistry.Topic topic, int sensorType, long windowEnd, WindowAggregator aggregator) {
+        mLocationTracker.onPublish(windowEnd);
+        if (!mMqttStarted || mMqttBinder == null || topic == null) {
+            return;
+        }
+        synchronized (mRecord) {
+            aggregator.summarize(windowEnd, sensorType, mRecord);
+            if (mBinaryPayload) {
+                mLocationTracker.attach(mRecord);
+                publishRecord(topic);
+            } else {
+                String[] names = WindowAggregator.names(mRecord.aggregates);
+                mSummaryText.setLength(0);
+                for (int i = 0; i < mRecord.valueCount; i++) {
+                    if (i > 0) {
+                        mSummaryText.append(';');
+                    }
+                    mSummaryText.append(names[i]).append('=').append(mRecord.values[i]);
+                }
+                publish(topic, mSummaryText.toString());
+            }
         }
     }
 
-    private void stopMQTTClient(boolean killService) {
-        Intent stop = new Intent(this, MqttService.class);
-        stop.setAction(MqttService.ACTION_STOP);
-        if (killService) {
+    /**
+     * Publish samples drained together as record batches, one frame per {@link RecordBatchCodec#MAX_RECORDS}
+     * samples instead of one frame per sample.
+     */
+    private void publishBatch(TopicRegistry.Topic topic, int sensorType, long[] times, float[] values,
+                              int count, int dimension) {
+        mLocationTracker.onPublish(times[count - 1]);
+        MqttService.MqttBinder binder = mMqttBinder;
+        if (!mMqttStarted || binder == null || topic == null) {
+            return;
+        }
+        synchronized (mRecord) {
+            if (mDrainBatch == null) {
+                mDrainBatch = new RecordBatchCodec.Encoder(RecordBatchCodec.MAX_RECORDS);
+                mDrainBuffer = new byte[mDrainBatch.getMaxSize()];
+            }
+            for (int i = 0; i < count; i++) {
+                mRecord.set(times[i], sensorType, values, i * dimension, dimension);
+                mLocationTracker.attach(mRecord);
+                if (mDrainBatch.add(mRecord)) {
+                    int length = mDrainBatch.encode(mDrainBuffer, 0);
+                    binder.publish(topic, mDrainBuffer, 0, length);
+                }
+            }
+            int length = mDrainBatch.encode(mDrainBuffer, 0);
+            if (length > 0) {
+                binder.publish(topic, mDrainBuffer, 0, length);
+            }
+        }
+    }
+
+    private void publishRecord(TopicRegistry.Topic topic) {
+        publishRecord(mMqttBinder, topic);
+    }
+
+    private void publishRecord(MqttService.MqttBinder binder, TopicRegistry.Topic topic) {
+        if (mBatchPayload) {
+            binder.publish(topic, mRecord);
+            return;
+        }
+        int length = SensorRecordCodec.encode(mRecord, mPayloadBuffer, 0);
+        binder.publish(topic, mPayloadBuffer, 0, length);
+    }
+
+    private static DeadBandFilter createFilter(float absoluteDelta, float relativeDelta) {
+        PerformanceProfile balanced = PerformanceProfile.BALANCED;
+        return new DeadBandFilter(absoluteDelta, relativeDelta, HYSTERESIS,
+                balanced.minInterval * 1000L, balanced.maxInterval * 1000L);
+    }
+
+    /**
+     * Create window aggregator of a topic from its settings.
+     * @param topic
+     * @return aggregator or null if aggregation is disabled for this topic
+     */
+    private static WindowAggregator createAggregator(SharedPreferences prefs, String topic) {
+        long length = MqttService.readInt(prefs, PREF_WINDOW_LENGTH + topic, 0) * 1000L;
+        if (length <= 0) {
+            return null;
+        }
+        long slide = MqttService.readInt(prefs, PREF_WINDOW_SLIDE + topic, 0) * 1000L;
+        if (slide <= 0 || slide > length) {
+            slide = length;
+        }
+        // window length is rounded to a multiple of slide
+        length = Math.max(1, length / slide) * slide;
+
+        int aggregates = 0;
+        Set<String> names = prefs.getStringSet(PREF_WINDOW_AGGREGATES + topic, null);
+        if (names != null) {
+            for (String name : names) {
+                aggregates |= WindowAggregator.flag(name);
+            }
+        }
+        if (aggregates == 0) {
+            aggregates = WindowAggregator.DEFAULT_AGGREGATES;
+        }
+        Log.i(LOG_TAG, "Aggregate " + topic + " over " + length + "ms windows every " + slide + "ms");
+        return new WindowAggregator(length, slide, aggregates, WINDOW_SAMPLES);
+    }
+
+    /**
+     * Unbind from the service. Without stopping it, service keeps its connections until its idle timeout,
+     * so they are reused when the activity resumes.
+     * @param stopService true to close connections and stop the service now
+     */
+    private void stopMQTTClient(boolean stopService) {
+        if (mMqttStarted) {
+            unbindService(mMqttConnection);
+            mMqttBinder = null;
+        }
+        if (stopService) {
+            // stopService() would not deliver the action, service stops itself once disconnected
+            Intent stop = new Intent(this, MqttService.class);
+            stop.setAction(MqttService.ACTION_STOP);
             startService(stop);
-        } else {
-            stopService(stop);
         }
         mMqttStarted = false;
     }
@@ -178,13 +515,14 @@ public class MainActivity extends Activity implements SensorEventListener, Locat
     protected void onResume() {
         // Register a listener for the sensor.
         super.onResume();
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
         if (mPressureAvailable) {
-            mSensorManager.registerListener(this, mPressure, SensorManager.SENSOR_DELAY_NORMAL);
+            mPressureIngestion.setAggregator(createAggregator(prefs, TOPIC_PRESSURE));
+            startSensor(prefs);
         }
+        startSensorHub(prefs);
 
-        if (isLocationAvailable()) {
-            mLocationManager.requestLocationUpdates(mLocationProvider, 400, 1, this);
-        }
+        mLocationTracker.start();
 
         ToggleButton toggle = (ToggleButton) findViewById(R.id.toggleButton);
         if (toggle.isChecked()) {
@@ -197,82 +535,125 @@ public class MainActivity extends Activity implements SensorEventListener, Locat
         // Be sure to unregister the sensor when the activity pauses.
         super.onPause();
         if (mPressureAvailable) {
-            mSensorManager.unregisterListener(this);
+            mPressureIngestion.stop();
         }
+        mSensorHub.stop();
 
-        if (isLocationAvailable()) {
-            mLocationManager.removeUpdates(this);
-        }
+        mLocationTracker.stop();
+        saveHistory();
         stopMQTTClient(false);
+    }
 
+    /**
+     * Checkpoint pressure history and save the last published time.
+     */
+    private void saveHistory() {
+        if (mPressureHistory == null) {
+            return;
+        }
+        mPressureHistory.checkpoint();
+        PreferenceManager.getDefaultSharedPreferences(this).edit()
+                .putLong(STATE_LAST_PUBLISHED, mLastPublished).apply();
     }
+
+    /**
+     * Apply sampling and dead-band settings of current profile, and start pressure sensor.
+     */
+    private void startSensor(SharedPreferences prefs) {
+        PerformanceProfile balanced = PerformanceProfile.BALANCED;
+        int samplingPeriod = Math.max(1, MqttService.readInt(prefs, PREF_SAMPLING_PERIOD, balanced.samplingPeriod));
+        float deadBand = Math.max(0f, MqttService.readFloat(prefs, PREF_DEAD_BAND, balanced.deadBand));
+        int minInterval = Math.max(0, MqttService.readInt(prefs, PREF_MIN_INTERVAL, balanced.minInterval));
+        int maxInterval = Math.max(0, MqttService.readInt(prefs, PREF_MAX_INTERVAL, balanced.maxInterval));
+        mPressureIngestion.getFilter().configure(deadBand, 0f, HYSTERESIS, minInterval * 1000L, maxInterval * 1000L);
+        mPressureIngestion.start(samplingPeriod * 1000, PerformanceProfile.maxReportLatency(minInterval));
+        Log.i(LOG_TAG, "Pressure sampled every " + samplingPeriod + "ms, dead-band " + deadBand
+                + ", published every " + minInterval + "s to " + maxInterval + "s");
+    }
+
+    /**
+     * Apply publish intervals of current profile to enabled hub sensors, and start them.
+     */
+    private void startSensorHub(SharedPreferences prefs) {
+        PerformanceProfile balanced = PerformanceProfile.BALANCED;
+        int minInterval = Math.max(0, MqttService.readInt(prefs, PREF_MIN_INTERVAL, balanced.minInterval));
+        int maxInterval = Math.max(0, MqttService.readInt(prefs, PREF_MAX_INTERVAL, balanced.maxInterval));
+        Set<String> enabled = prefs.getStringSet(PREF_SENSORS, null);
+        for (SensorHub.Channel channel : mSensorHub.getChannels()) {
+            channel.setEnabled(enabled == null || enabled.contains(channel.getTopic()));
+            channel.getFilter().setIntervals(minInterval * 1000L, maxInterval * 1000L);
+        }
+        mSensorHub.start(PerformanceProfile.maxReportLatency(minInterval));
+    }
+
     @Override
     protected void onDestroy() {
         super.onDestroy();
         if (mPressureAvailable) {
-            mSensorManager.unregisterListener(this);
+            mPressureIngestion.release();
+        }
+        mSensorHub.release();
+        if (mPressureHistory != null) {
+            saveHistory();
+            mPressureHistory.close();
         }
 
-        if (isLocationAvailable()) {
-            mLocationManager.removeUpdates(this);
+        mLocationTracker.stop();
+        stopMQTTClient(false);
+        synchronized (mRecord) {
+            if (mDrainBatch != null) {
+                mDrainBatch.release();
+                mDrainBatch = null;
+            }
         }
-        stopMQTTClient(true);
     }
 
     /* Sensor API */
 
+    /**
+     * Called on sensor thread with filtered pressure.
+     */
     @Override
-    public void onSensorChanged(SensorEvent sensorEvent) {
-        mCurrentSensorPressure = sensorEvent.values[0];
-        float pressure = fixedPressure(mCurrentSensorPressure);
-        float diff = mCurrentPressure - pressure;
-        if (diff <= DELTA || diff >= DELTA) {
-            mCurrentPressure = pressure;
-            final TextView textView = (TextView) findViewById(R.id.guiText);
-            textView.setText(pressure + " hPa");
-
-            long currentTime = System.currentTimeMillis();
-            if (currentTime - mlastTime >= DELAY) {
-                publish(TOPIC_PRESSURE, String.valueOf(mCurrentPressure));
-                mlastTime = currentTime;
+    public void onSample(int sensorType, long timestamp, float value) {
+        publish(mPressureTopic, sensorType, timestamp, value);
+        if (mMqttBinder != null && mPressureTopic != null) {
+            mLastLivePublished = timestamp;
+            if (mBackfillBinder == null) {
+                mLastPublished = timestamp;
             }
         }
     }
 
     /**
-     * Fix pressure from sensor with calibration difference.
-     * @param sensorPressure
-     * @return
+     * Called on sensor thread with pressure summary of a window.
      */
-    private float fixedPressure(float sensorPressure) {
-        return sensorPressure + mPressureCalibration;
-    }
-
-    @Override
-    public void onAccuracyChanged(Sensor sensor, int i) {
-    }
-
-    /* Location API */
-
-    private boolean isLocationAvailable() {
-        return mLocationManager.isProviderEnabled(LocationManager.GPS_PROVIDER);
-    }
-
     @Override
-    public void onLocationChanged(Location location) {
-        this.mCurrentLocation = location;
-        Log.i(LOG_TAG, location.toString());
-    }
-
-    @Override
-    public void onStatusChanged(String s, int i, Bundle bundle) {
+    public void onSummary(int sensorType, long windowEnd, WindowAggregator aggregator) {
+        publishSummary(mPressureTopic, sensorType, windowEnd, aggregator);
     }
 
+    /**
+     * Called on sensor hub thread with samples of other sensors.
+     */
     @Override
-    public void onProviderEnabled(String s) {
+    public void onSamples(SensorHub.Channel channel, long[] times, float[] values, int count) {
+        TopicRegistry.Topic topic = channel.getPublishTopic();
+        int dimension = channel.getDimension();
+        if (count > 1 && mBinaryPayload) {
+            publishBatch(topic, channel.getSensorType(), times, values, count, dimension);
+            return;
+        }
+        for (int i = 0; i < count; i++) {
+            if (dimension == 1) {
+                publish(topic, channel.getSensorType(), times[i], values[i]);
+            } else {
+                publish(topic, channel.getSensorType(), times[i], values, i * dimension, dimension);
+            }
+        }
     }
 
     @Override
-    public void onProviderDisabled(String s) {
+    public void onDisplay(float pressure) {
+        mPressureView.setText(pressure + " hPa");
     }
 }
@@ -1,36 +1,50 @@
 package com.qboileau.mqtt;
 
 import android.app.AlarmManager;
+import android.app.Notification;
 import android.app.PendingIntent;
 import android.app.Service;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.SharedPreferences;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
+import android.os.Binder;
+import android.os.Build;
 import android.os.Handler;
-import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
 import android.provider.Settings;
 import android.util.Log;
-import android.widget.Toast;
 
-import org.meqantt.MqttException;
-import org.meqantt.MqttListener;
-import org.meqantt.SocketClient;
-import org.meqantt.message.ConnAckMessage;
-
-import java.io.IOException;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Mqtt client service.
  *
+ * Topics are spread over one or more brokers by {@link TopicSharding}, each with its own
+ * {@link BrokerConnection}. Messages of a topic go to the first connected broker of its
+ * failover order, standby brokers only receive messages while a shard broker is down.
+ *
+ * Once started, the service runs in foreground independently of the activity lifecycle, so
+ * connections are kept open while the activity is paused. It stops itself after the idle
+ * timeout without bound client nor publish intent, a client coming back before saves a handshake.
+ *
  * Inspired from https://github.com/JesseFarebro/Android-Mqtt/blob/master/src/com/jessefarebro/mqtt/MqttService.java
  * using custom version of MQanTT mqtt client.
  * @author qboileau
  */
-public class MqttService extends Service implements MqttListener {
+public class MqttService extends Service implements BrokerConnection.Callback, InboundQueue.Consumer,
+        SharedPreferences.OnSharedPreferenceChangeListener {
 
     public static final String ACTION_START         = "START_MQTT"; // Action to start
     public static final String ACTION_STOP          = "STOP_MQTT"; // Action to stop
@@ -39,39 +53,327 @@ public class MqttService extends Service implements MqttListener {
     public static final String ACTION_PUBLISH       = "PUBLISH_MQTT"; // Action to reconnect
     public static final String ACTION_SUBSCRIBE     = "SUBSCRIBE_MQTT"; // Action to reconnect
     public static final String ACTION_UNSUBSCRIBE   = "UNSUBSCRIBE_MQTT"; // Action to reconnect
+    public static final String EXTRA_BROKER         = "com.qboileau.mqtt.MQTT_BROKER"; // broker index of keep alive
+
+    public static final String PREF_PROFILE         = "pref_profile";
+    public static final String PREF_BATCH_SIZE      = "pref_batch_size";
+    public static final String PREF_FLUSH_LATENCY   = "pref_flush_latency";
+    public static final String PREF_PAYLOAD_FORMAT  = "pref_payload_format";
+    public static final String PREF_STATS_INTERVAL  = "pref_stats_interval";
+    public static final String PREF_QOS_WINDOW      = "pref_qos_window";
+    public static final String PREF_KEEP_ALIVE      = "pref_keep_alive";
+    public static final String PREF_TRANSPORT       = "pref_transport";
+    public static final String PREF_BROKERS         = "pref_brokers";
+    public static final String PREF_STANDBY_BROKERS = "pref_standby_brokers";
+    public static final String PREF_RECORD_BATCH_SIZE = "pref_record_batch_size";
+    public static final String PREF_RECORD_BATCH_LATENCY = "pref_record_batch_latency";
+    public static final String PREF_IDLE_TIMEOUT    = "pref_idle_timeout";
+    public static final String PREF_INBOUND_POLICY  = "pref_inbound_policy";
+    public static final String PREF_INBOUND_CAPACITY = "pref_inbound_capacity";
+    public static final String PAYLOAD_TEXT         = "text";
+    public static final String PAYLOAD_BINARY       = "binary";
+    public static final String PAYLOAD_BATCH        = "batch";
+    public static final String TRANSPORT_SOCKET     = "socket";
+    public static final String TRANSPORT_NIO        = "nio";
 
     private static final String LOG_TAG = MqttService.class.getCanonicalName();
-    private static final String MQTT_THREAD_NAME = "THREAD_MQTT";
-    private static final int KEEP_ALIVE = 5;
-    private static final int TIMEOUT = 5000; //5s
+    // short tag for Log.isLoggable, enable per message logs with "adb shell setprop log.tag.MqttService DEBUG"
+    private static final String LOG_LEVEL_TAG = "MqttService";
+    private static final String STATS_TOPIC_PREFIX = "/stats/";
+    private static final String SENSOR_TOPIC_PREFIX = "/sensor/";
+    private static final long KEEP_ALIVE_WINDOW = 60000; //1min
+    private static final long MIN_KEEP_ALIVE_WINDOW = 5000; //5s, exact alarm below
+    private static final int ROUTER_CACHE_SIZE = 256;
+    private static final int SHARDING_CACHE_SIZE = 256;
+    private static final int DEFAULT_PORT = 1883;
+    private static final long BROKER_RELEASE_TIMEOUT = 5000; //5s
+    private static final int DEFAULT_BATCH_SIZE = 20;
+    private static final long DEFAULT_FLUSH_LATENCY = 1000; //1s
+    private static final int DEFAULT_QOS_WINDOW = 16;
+    private static final String OUTBOX_DIRECTORY = "outbox";
+    private static final int DEFAULT_STATS_INTERVAL = 0; //disabled
+    private static final int DEFAULT_RECORD_BATCH_SIZE = 32;
+    private static final int DEFAULT_RECORD_BATCH_LATENCY = 60; //1min
+    private static final int DEFAULT_IDLE_TIMEOUT = 300; //5min
+    private static final int NOTIFICATION_ID = 1;
+    private static final String INBOUND_THREAD_NAME = "THREAD_INBOUND";
+    private static final int DEFAULT_INBOUND_CAPACITY = 256;
+    private static final int INBOUND_MAX_POOLED_SIZE = 64 * 1024; //bytes
+    private static final int INBOUND_DRAIN_BATCH = 32;
 
-    private Handler mHandler;
+    private Handler mMainHandler;
     private AlarmManager mAlarmManager;
     private ConnectivityManager mConnectivityManager;
 
     private String mDeviceId;
-    private SocketClient mMqttClient;
-    private String mHost;
-    private Integer mPort;
+    private volatile TopicSharding mSharding;
+    private volatile BrokerConnection[] mBrokers;
+    // brokers and transport of current connections, on main thread
+    private String mBrokerConfig;
+
+    private int mBatchSize = DEFAULT_BATCH_SIZE;
+    private long mFlushLatency = DEFAULT_FLUSH_LATENCY;
+    private int mQosWindow = DEFAULT_QOS_WINDOW;
+    private int mKeepAlive = BrokerConnection.DEFAULT_KEEP_ALIVE;
+    private MqttMetrics mMetrics;
+    private volatile boolean mDebugLog = false;
+    private long mStatsInterval = 0;
+    private TopicRegistry.Topic mStatsTopic;
+    private boolean mReceiverRegistered = false;
+
+    // idle tracking, on main thread
+    private long mIdleTimeout = DEFAULT_IDLE_TIMEOUT * 1000L;
+    private boolean mBound = false;
+    private long mLastActivity;
+    private boolean mForeground = false;
+
+    // record batches per sensor topic, guarded by the map
+    private final Map<TopicRegistry.Topic, RecordBatchCodec.Encoder> mRecordBatches
+            = new HashMap<TopicRegistry.Topic, RecordBatchCodec.Encoder>();
+    private int mRecordBatchSize = DEFAULT_RECORD_BATCH_SIZE;
+    private long mRecordBatchLatency = DEFAULT_RECORD_BATCH_LATENCY * 1000L;
+    private byte[] mRecordBuffer = new byte[SensorRecordCodec.MAX_SIZE];
+    private boolean mRecordFlushScheduled = false;
+
+    private final SensorRecord mReceivedRecord = new SensorRecord();
+    private final RecordBatchCodec.Decoder mReceivedBatch = new RecordBatchCodec.Decoder();
+    private final SubscriptionRouter mRouter = new SubscriptionRouter(ROUTER_CACHE_SIZE);
+    private final TopicRegistry mTopics = new TopicRegistry();
+
+    // received messages of all brokers, decoded and routed on inbound thread
+    private InboundQueue mInbound;
+
+    private final Runnable mStatsRunnable = new Runnable() {
+        @Override
+        public void run() {
+            publishStats();
+        }
+    };
+
+    private final Runnable mIdleRunnable = new Runnable() {
+        @Override
+        public void run() {
+            checkIdle();
+        }
+    };
+
+    private final Runnable mRecordFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flushRecords();
+        }
+    };
+
+    private final RecordBatchCodec.Listener mReceivedBatchListener = new RecordBatchCodec.Listener() {
+        @Override
+        public void onRecord(SensorRecord record) {
+            Log.d(LOG_TAG, "  " + record);
+        }
+    };
 
     private final BroadcastReceiver mConnectivityReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
             Log.i(LOG_TAG,"Connectivity Changed...");
-            NetworkInfo info = mConnectivityManager.getActiveNetworkInfo();
-            if (info != null && !info.isConnected()) {
-                disconnect();
+            BrokerConnection[] brokers = mBrokers;
+            if (brokers != null) {
+                boolean online = isOnline();
+                for (BrokerConnection broker : brokers) {
+                    broker.onConnectivityChanged(online);
+                }
             }
         }
     };
 
+    private final IBinder mBinder = new MqttBinder();
+
+    /**
+     * In-process interface of the service, returned when binding to it.
+     * Calls are thread safe and do not go through intents.
+     */
+    public class MqttBinder extends Binder {
+
+        /**
+         * @return true if at least one broker is connected
+         */
+        public boolean isConnected() {
+            return getConnectionState() == ConnectionState.CONNECTED;
+        }
+
+        /**
+         * @return most advanced state of all broker connections
+         */
+        public ConnectionState getConnectionState() {
+            return MqttService.this.getConnectionState();
+        }
+
+        public MqttMetrics getMetrics() {
+            return mMetrics;
+        }
+
+        /**
+         * @return all metrics and current queue sizes, one per line
+         */
+        public String dumpMetrics() {
+            return MqttService.this.dumpMetrics("\n");
+        }
+
+        /**
+         * Register a publish topic, publishing with the returned topic skips topic lookup and encoding.
+         * @param topic
+         * @return registered topic
+         */
+        public TopicRegistry.Topic register(String topic) {
+            return mTopics.register(topic);
+        }
+
+        public void publish(String topic, String message) {
+            MqttService.this.publish(mTopics.register(topic), message);
+        }
+
+        public void publish(TopicRegistry.Topic topic, String message) {
+            MqttService.this.publish(topic, message);
+        }
+
+        public void publish(String topic, String[] messages) {
+            MqttService.this.publish(mTopics.register(topic), messages);
+        }
+
+        public void publish(String topic, byte[] payload, int offset, int length) {
+            MqttService.this.publish(mTopics.register(topic), payload, offset, length);
+        }
+
+        public void publish(TopicRegistry.Topic topic, byte[] payload, int offset, int length) {
+            MqttService.this.publish(topic, payload, offset, length);
+        }
+
+        /**
+         * Publish a binary record, records of /sensor/ topics are grouped in compressed batches.
+         * @param topic
+         * @param record may be reused by caller after this call
+         */
+        public void publish(TopicRegistry.Topic topic, SensorRecord record) {
+            MqttService.this.publish(topic, record);
+        }
+
+        /**
+         * Set QoS of messages published on a topic from now on.
+         * @param topic
+         * @param qos 0, 1 or 2
+         */
+        public void setQos(String topic, int qos) {
+            MqttService.this.setQos(topic, qos);
+        }
+
+        public void subscribe(String topic) {
+            MqttService.this.subscribe(topic);
+        }
+
+        public void unsubscribe(String topic) {
+            MqttService.this.unsubscribe(topic);
+        }
+
+        /**
+         * Receive messages matching a topic filter, on the inbound thread shared by all brokers.
+         * Subscribers are called one at a time, the payload buffer is reused after the call.
+         * @param filter topic filter, may contain + and # wildcards
+         * @param subscriber
+         */
+        public void subscribe(String filter, SubscriptionRouter.Subscriber subscriber) {
+            if (mRouter.subscribe(filter, subscriber)) {
+                MqttService.this.subscribe(filter);
+            }
+        }
+
+        public void unsubscribe(String filter, SubscriptionRouter.Subscriber subscriber) {
+            if (mRouter.unsubscribe(filter, subscriber)) {
+                MqttService.this.unsubscribe(filter);
+            }
+        }
+    }
+
     public MqttService() {
         super();
     }
 
     @Override
     public IBinder onBind(Intent intent) {
-        return null;
+        onClientBound();
+        return mBinder;
+    }
+
+    @Override
+    public void onRebind(Intent intent) {
+        onClientBound();
+    }
+
+    @Override
+    public boolean onUnbind(Intent intent) {
+        mBound = false;
+        onActivity();
+        // rebinding clients go through onRebind
+        return true;
+    }
+
+    private void onClientBound() {
+        mBound = true;
+        mMainHandler.removeCallbacks(mIdleRunnable);
+        Log.i(LOG_TAG, "Client bound, connection " + getConnectionState());
+    }
+
+    /**
+     * Restart idle timeout.
+     */
+    private void onActivity() {
+        mLastActivity = SystemClock.elapsedRealtime();
+        if (!mBound) {
+            mMainHandler.removeCallbacks(mIdleRunnable);
+            mMainHandler.postDelayed(mIdleRunnable, mIdleTimeout);
+        }
+    }
+
+    /**
+     * Close connections and stop the service once idle for the idle timeout.
+     */
+    private void checkIdle() {
+        if (mBound) {
+            return;
+        }
+        long idle = SystemClock.elapsedRealtime() - mLastActivity;
+        if (idle < mIdleTimeout) {
+            mMainHandler.postDelayed(mIdleRunnable, mIdleTimeout - idle);
+            return;
+        }
+        Log.i(LOG_TAG, "Idle for " + idle / 1000 + "s, close connections");
+        disconnect();
+        stopForegroundNotification();
+        stopSelf();
+    }
+
+    /**
+     * Run in foreground so connections survive the activity, with a notification opening it.
+     */
+    private void startForegroundNotification(String host) {
+        if (mForeground) {
+            return;
+        }
+        Intent intent = new Intent(this, MainActivity.class);
+        Notification notification = new Notification.Builder(this)
+                .setSmallIcon(R.drawable.ic_launcher)
+                .setContentTitle(getString(R.string.notification_title))
+                .setContentText(getString(R.string.notification_text, host))
+                .setContentIntent(PendingIntent.getActivity(this, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT))
+                .setOngoing(true)
+                .build();
+        startForeground(NOTIFICATION_ID, notification);
+        mForeground = true;
+    }
+
+    private void stopForegroundNotification() {
+        if (mForeground) {
+            stopForeground(true);
+            mForeground = false;
+        }
     }
 
     @Override
@@ -80,33 +382,137 @@ public class MqttService extends Service implements MqttListener {
 
         Log.i(LOG_TAG,"Service created");
         mDeviceId = Settings.Secure.getString(getContentResolver(), Settings.Secure.ANDROID_ID);
-        mMqttClient = new SocketClient(mDeviceId);
-        mMqttClient.addListener(this);
-
-        HandlerThread thread = new HandlerThread(MQTT_THREAD_NAME);
-        thread.start();
-        mHandler = new Handler(thread.getLooper());
+        mStatsTopic = mTopics.register(STATS_TOPIC_PREFIX + mDeviceId);
+        mMetrics = new MqttMetrics(SystemClock.elapsedRealtime());
+        mMainHandler = new Handler();
+        startInbound();
 
         // Do not set keep alive interval on mOpts we keep track of it with alarm's
         mAlarmManager = (AlarmManager) getSystemService(ALARM_SERVICE);
         mConnectivityManager = (ConnectivityManager) getSystemService(CONNECTIVITY_SERVICE);
+        // settings and profile changes apply to running connections
+        PreferenceManager.getDefaultSharedPreferences(this).registerOnSharedPreferenceChangeListener(this);
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        PreferenceManager.getDefaultSharedPreferences(this).unregisterOnSharedPreferenceChangeListener(this);
+        mMainHandler.removeCallbacks(mStatsRunnable);
+        mMainHandler.removeCallbacks(mIdleRunnable);
+        stopForegroundNotification();
+        // connections are closed on mqtt threads before they stop
+        disconnect();
+        BrokerConnection[] brokers = mBrokers;
+        if (brokers != null) {
+            for (BrokerConnection broker : brokers) {
+                broker.release();
+            }
+        }
+        synchronized (mRecordBatches) {
+            for (RecordBatchCodec.Encoder batch : mRecordBatches.values()) {
+                batch.release();
+            }
+            mRecordBatches.clear();
+        }
+        mInbound.close();
+        mReceivedBatch.release();
+    }
+
+    /**
+     * Create inbound queue with capacity setting and start its worker thread.
+     * Capacity changes apply when the service is created again, policy changes apply at once.
+     */
+    private void startInbound() {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        int capacity = Math.max(1, readInt(prefs, PREF_INBOUND_CAPACITY, DEFAULT_INBOUND_CAPACITY));
+        int policy = InboundQueue.policy(prefs.getString(PREF_INBOUND_POLICY, InboundQueue.policyName(InboundQueue.DROP_OLDEST)));
+        final InboundQueue inbound = new InboundQueue(capacity, INBOUND_MAX_POOLED_SIZE, policy);
+        Log.i(LOG_TAG, "Inbound queue capacity : " + capacity + ", policy : " + InboundQueue.policyName(policy));
+        mInbound = inbound;
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (inbound.await()) {
+                    try {
+                        inbound.drain(MqttService.this, INBOUND_DRAIN_BATCH);
+                    } catch (RuntimeException e) {
+                        Log.e(LOG_TAG, "Failed to dispatch received message", e);
+                    }
+                }
+            }
+        }, INBOUND_THREAD_NAME).start();
+    }
+
+    /**
+     * Print metrics with "adb shell dumpsys activity service com.qboileau.mqtt/.MqttService".
+     */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        writer.println(dumpMetrics("\n"));
+    }
+
+    /**
+     * @param separator entries separator
+     * @return connection state, queue sizes of each broker and metrics
+     */
+    private String dumpMetrics(String separator) {
+        long now = SystemClock.elapsedRealtime();
+        StringBuilder sb = new StringBuilder(1024);
+        sb.append("state=").append(getConnectionState()).append(separator);
+        BrokerConnection[] brokers = mBrokers;
+        if (brokers != null) {
+            for (BrokerConnection broker : brokers) {
+                broker.appendTo(sb, "b" + broker.getIndex() + "_", now, separator);
+            }
+        }
+        mInbound.appendTo(sb, separator);
+        return mMetrics.appendTo(sb, now, separator).toString();
+    }
+
+    private ConnectionState getConnectionState() {
+        BrokerConnection[] brokers = mBrokers;
+        ConnectionState state = ConnectionState.DISCONNECTED;
+        if (brokers != null) {
+            for (BrokerConnection broker : brokers) {
+                ConnectionState brokerState = broker.getState();
+                if (brokerState == ConnectionState.CONNECTED) {
+                    return brokerState;
+                } else if (brokerState == ConnectionState.CONNECTING
+                        || brokerState == ConnectionState.BACKING_OFF && state == ConnectionState.DISCONNECTED) {
+                    state = brokerState;
+                }
+            }
+        }
+        return state;
     }
 
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
 
-        String action = intent.getAction();
+        // null when the system restarts the service
+        String action = intent != null ? intent.getAction() : null;
         if(action != null) {
             if(action.equals(ACTION_START)) {
-                this.mHost = intent.getStringExtra(MainActivity.EXTRA_HOST);
-                this.mPort = intent.getIntExtra(MainActivity.EXTRA_PORT, 1883);
-                connect(mHost, mPort);
+                String host = intent.getStringExtra(MainActivity.EXTRA_HOST);
+                int port = intent.getIntExtra(MainActivity.EXTRA_PORT, DEFAULT_PORT);
+                loadPreferences();
+                if (!loadBrokers(host, port) && getConnectionState() == ConnectionState.CONNECTED) {
+                    mMetrics.onReconnectAvoided();
+                    Log.i(LOG_TAG, "Connection kept, " + mMetrics.getReconnectsAvoided() + " reconnects avoided");
+                }
+                connect();
+                startForegroundNotification(host);
+                onActivity();
             } else if(action.equals(ACTION_STOP)) {
                 disconnect();
+                stopForegroundNotification();
+                stopSelf();
             } else if(action.equals(ACTION_PUBLISH)) {
+                onActivity();
                 final String topic = intent.getStringExtra(MainActivity.EXTRA_TOPIC);
                 final String message = intent.getStringExtra(MainActivity.EXTRA_MESSAGE);
-                publish(topic, message);
+                publish(mTopics.register(topic), message);
             } else if(action.equals(ACTION_SUBSCRIBE)) {
                 final String topic = intent.getStringExtra(MainActivity.EXTRA_TOPIC);
                 subscribe(topic);
@@ -114,14 +520,16 @@ public class MqttService extends Service implements MqttListener {
                 final String topic = intent.getStringExtra(MainActivity.EXTRA_TOPIC);
                 unsubscribe(topic);
             } else if(action.equals(ACTION_KEEPALIVE)) {
-                keepAlive();
+                BrokerConnection[] brokers = mBrokers;
+                int index = intent.getIntExtra(EXTRA_BROKER, 0);
+                if (brokers != null && index < brokers.length) {
+                    brokers[index].keepAlive();
+                }
             } else if(action.equals(ACTION_RECONNECT)) {
-                if (mMqttClient != null && !mMqttClient.isConnected()) {
-                    if (mHost != null && mPort != null) {
-                        connect(mHost, mPort);
-                    } else {
-                        Log.e(LOG_TAG, "Can't reconnect before initial connection");
-                    }
+                if (mBrokers != null) {
+                    connect();
+                } else {
+                    Log.e(LOG_TAG, "Can't reconnect before initial connection");
                 }
             }
         }
@@ -131,158 +539,474 @@ public class MqttService extends Service implements MqttListener {
     }
 
     /**
-     * Connect
-     * @param host
-     * @param port
+     * Read publish batching, QoS window, keep alive and stats settings, and apply them to current brokers.
      */
-    private void connect(final String host, final int port) {
-        if (mMqttClient != null && !mMqttClient.isConnected() && isOnline()) {
-            mHandler.post(new Runnable() {
-                @Override
-                public void run() {
-                    try {
-                        Log.i(LOG_TAG, "Connect to " + host + ":" + port);
-                        mMqttClient.connect(host, port, TIMEOUT, KEEP_ALIVE);
-                        startKeepAlives();
-                        registerReceiver(mConnectivityReceiver, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
-                    } catch (MqttException e) {
-                        Log.e(LOG_TAG, e.getMessage(), e);
-                        Toast.makeText(getBaseContext(), "Failed to connect to " + host + ":" + port, Toast.LENGTH_LONG).show();
-                    }
+    private void loadPreferences() {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        mBatchSize = Math.max(1, readInt(prefs, PREF_BATCH_SIZE, DEFAULT_BATCH_SIZE));
+        mFlushLatency = Math.max(0, readInt(prefs, PREF_FLUSH_LATENCY, (int) DEFAULT_FLUSH_LATENCY));
+        mQosWindow = readInt(prefs, PREF_QOS_WINDOW, DEFAULT_QOS_WINDOW);
+        mKeepAlive = Math.max(10, readInt(prefs, PREF_KEEP_ALIVE, BrokerConnection.DEFAULT_KEEP_ALIVE));
+        mStatsInterval = Math.max(0, readInt(prefs, PREF_STATS_INTERVAL, DEFAULT_STATS_INTERVAL)) * 1000L;
+        mIdleTimeout = Math.max(0, readInt(prefs, PREF_IDLE_TIMEOUT, DEFAULT_IDLE_TIMEOUT)) * 1000L;
+        mDebugLog = Log.isLoggable(LOG_LEVEL_TAG, Log.DEBUG);
+        Log.i(LOG_TAG, "Profile : " + prefs.getString(PREF_PROFILE, PerformanceProfile.BALANCED.name)
+                + ", publish batch size : " + mBatchSize + ", flush latency : " + mFlushLatency + "ms"
+                + ", QoS window : " + mQosWindow + ", keep alive : " + mKeepAlive + "s"
+                + ", stats interval : " + mStatsInterval + "ms, idle timeout : " + mIdleTimeout + "ms");
+
+        int recordBatchSize = Math.max(1, Math.min(RecordBatchCodec.MAX_RECORDS,
+                readInt(prefs, PREF_RECORD_BATCH_SIZE, DEFAULT_RECORD_BATCH_SIZE)));
+        long recordBatchLatency = Math.max(1, readInt(prefs, PREF_RECORD_BATCH_LATENCY, DEFAULT_RECORD_BATCH_LATENCY)) * 1000L;
+        synchronized (mRecordBatches) {
+            if (recordBatchSize != mRecordBatchSize) {
+                // pending batches are published with their previous capacity
+                flushRecords();
+                for (RecordBatchCodec.Encoder batch : mRecordBatches.values()) {
+                    batch.release();
                 }
-            });
+                mRecordBatches.clear();
+            }
+            mRecordBatchSize = recordBatchSize;
+            mRecordBatchLatency = recordBatchLatency;
+        }
+
+        BrokerConnection[] brokers = mBrokers;
+        if (brokers != null) {
+            for (BrokerConnection broker : brokers) {
+                broker.configure(mBatchSize, mFlushLatency, mQosWindow, mKeepAlive, mDebugLog);
+            }
         }
     }
 
+    /**
+     * Read brokers and transport settings and create broker connections, current connections
+     * are kept if main broker and these settings did not change, otherwise they are closed first.
+     * @param host main broker host
+     * @param port main broker port
+     * @return true if broker connections were created
+     */
+    private boolean loadBrokers(String host, int port) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        List<String> brokers = new ArrayList<String>();
+        brokers.add(host + ":" + port);
+        parseBrokers(prefs.getString(PREF_BROKERS, ""), brokers);
+        int shards = brokers.size();
+        parseBrokers(prefs.getString(PREF_STANDBY_BROKERS, ""), brokers);
+        boolean nio = TRANSPORT_NIO.equals(prefs.getString(PREF_TRANSPORT, TRANSPORT_SOCKET));
+        String config = brokers + "/" + shards + (nio ? TRANSPORT_NIO : TRANSPORT_SOCKET);
+        if (mBrokers != null) {
+            if (config.equals(mBrokerConfig)) {
+                return false;
+            }
+            Log.i(LOG_TAG, "Brokers changed to " + brokers + ", closing current connections");
+            releaseBrokers();
+        }
+        createBrokers(brokers.toArray(new String[brokers.size()]), shards, nio);
+        mBrokerConfig = config;
+        for (BrokerConnection broker : mBrokers) {
+            broker.configure(mBatchSize, mFlushLatency, mQosWindow, mKeepAlive, mDebugLog);
+        }
+        return true;
+    }
+
+    /**
+     * Close and release current broker connections, waiting for their outbox to be closed.
+     * Connections must be replaced by new ones right after.
+     */
+    private void releaseBrokers() {
+        disconnect();
+        BrokerConnection[] brokers = mBrokers;
+        for (BrokerConnection broker : brokers) {
+            broker.release();
+        }
+        for (BrokerConnection broker : brokers) {
+            if (!broker.awaitRelease(BROKER_RELEASE_TIMEOUT)) {
+                Log.w(LOG_TAG, "Broker " + broker.getName() + " not released after " + BROKER_RELEASE_TIMEOUT + "ms");
+            }
+        }
+    }
+
+    /**
+     * Apply a changed setting without reconnecting, called on the main thread.
+     */
+    @Override
+    public void onSharedPreferenceChanged(SharedPreferences prefs, String key) {
+        if (key == null) {
+            return;
+        }
+        if (key.startsWith(MainActivity.PREF_QOS + "/")) {
+            setQos(key.substring(MainActivity.PREF_QOS.length()), readInt(prefs, key, 0));
+        } else if (key.equals(PREF_BATCH_SIZE) || key.equals(PREF_FLUSH_LATENCY) || key.equals(PREF_QOS_WINDOW)
+                || key.equals(PREF_KEEP_ALIVE) || key.equals(PREF_STATS_INTERVAL)
+                || key.equals(PREF_RECORD_BATCH_SIZE) || key.equals(PREF_RECORD_BATCH_LATENCY)
+                || key.equals(PREF_IDLE_TIMEOUT)) {
+            loadPreferences();
+            if (key.equals(PREF_STATS_INTERVAL) && getConnectionState() == ConnectionState.CONNECTED) {
+                scheduleStats();
+            }
+        } else if (key.equals(PREF_INBOUND_POLICY)) {
+            int policy = InboundQueue.policy(prefs.getString(key, null));
+            mInbound.setPolicy(policy);
+            Log.i(LOG_TAG, "Inbound policy : " + InboundQueue.policyName(policy));
+        }
+    }
+
+    /**
+     * @param value "host:port" entries separated by commas or spaces, port is optional
+     * @param brokers destination list, duplicates are ignored
+     */
+    private static void parseBrokers(String value, List<String> brokers) {
+        for (String entry : value.split("[,\\s]+")) {
+            if (entry.length() == 0) {
+                continue;
+            }
+            String broker = entry.indexOf(':') < 0 ? entry + ":" + DEFAULT_PORT : entry;
+            if (!brokers.contains(broker)) {
+                brokers.add(broker);
+            }
+        }
+    }
+
+    /**
+     * @param names "host:port" of shard brokers then standby brokers
+     * @param shards number of shard brokers
+     * @param nio use non blocking transport
+     */
+    private void createBrokers(String[] names, int shards, boolean nio) {
+        BrokerConnection[] brokers = new BrokerConnection[names.length];
+        for (int i = 0; i < names.length; i++) {
+            int separator = names[i].lastIndexOf(':');
+            String host = names[i].substring(0, separator);
+            int port;
+            try {
+                port = Integer.parseInt(names[i].substring(separator + 1));
+            } catch (NumberFormatException e) {
+                Log.e(LOG_TAG, "Invalid broker port " + names[i], e);
+                port = DEFAULT_PORT;
+            }
+            // first broker keeps the outbox of single broker versions
+            File outbox = new File(getFilesDir(), i == 0 ? OUTBOX_DIRECTORY : OUTBOX_DIRECTORY + "-" + i);
+            brokers[i] = new BrokerConnection(i, host, port, mDeviceId, nio, outbox, this, this, mMetrics, mRouter,
+                    mInbound);
+        }
+        Log.i(LOG_TAG, shards + " shard brokers, " + (names.length - shards) + " standby brokers, "
+                + (nio ? TRANSPORT_NIO : TRANSPORT_SOCKET) + " transport");
+        mSharding = new TopicSharding(names, shards, SHARDING_CACHE_SIZE);
+        mBrokers = brokers;
+    }
+
+    static int readInt(SharedPreferences prefs, String key, int defaultValue) {
+        try {
+            return Integer.parseInt(prefs.getString(key, String.valueOf(defaultValue)));
+        } catch (NumberFormatException e) {
+            Log.e(LOG_TAG, "Invalid value for " + key, e);
+            return defaultValue;
+        }
+    }
+
+    static float readFloat(SharedPreferences prefs, String key, float defaultValue) {
+        try {
+            return Float.parseFloat(prefs.getString(key, String.valueOf(defaultValue)));
+        } catch (NumberFormatException e) {
+            Log.e(LOG_TAG, "Invalid value for " + key, e);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Connect all brokers, and keep reconnecting until {@link #disconnect()}.
+     */
+    private void connect() {
+        if (!mReceiverRegistered) {
+            registerReceiver(mConnectivityReceiver, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+            mReceiverRegistered = true;
+        }
+        for (BrokerConnection broker : mBrokers) {
+            broker.connect();
+        }
+    }
+
+    /**
+     * Close all connections and stop reconnecting.
+     */
     private void disconnect() {
-        if (mMqttClient != null && mMqttClient.isConnected()) {
-            mHandler.post(new Runnable() {
-                @Override
-                public void run() {
-                    try {
-                        Log.i(LOG_TAG, "Close connection");
-                        mMqttClient.disconnect();
-                        unregisterReceiver(mConnectivityReceiver);
-                        stopKeepAlives();
-                    } catch (MqttException e) {
-                        Log.e(LOG_TAG, e.getMessage(), e);
-                    }
-                }
-            });
+        if (mReceiverRegistered) {
+            unregisterReceiver(mConnectivityReceiver);
+            mReceiverRegistered = false;
+        }
+        mMainHandler.removeCallbacks(mStatsRunnable);
+        // pending records go to the queues, then to the outbox
+        flushRecords();
+        BrokerConnection[] brokers = mBrokers;
+        if (brokers != null) {
+            for (BrokerConnection broker : brokers) {
+                broker.disconnect();
+            }
         }
     }
 
-    private void publish(final String topic, final String message) {
-        if (mMqttClient != null && mMqttClient.isConnected() && isOnline()) {
-            mHandler.post(new Runnable() {
-                @Override
-                public void run() {
-                    try {
-                        Log.i(LOG_TAG, "Send message on topic : " + topic);
-                        mMqttClient.publish(topic, message);
-                    } catch (IOException e) {
-                        Log.e(LOG_TAG, e.getMessage(), e);
-                    }
-                }
-            });
+    /**
+     * @param topic
+     * @return first connected broker in the failover order of topic,
+     * or its primary broker if none is connected, null before start
+     */
+    private BrokerConnection route(String topic) {
+        BrokerConnection[] brokers = mBrokers;
+        if (brokers == null) {
+            return null;
+        }
+        int[] order = mSharding.order(topic);
+        for (int index : order) {
+            if (brokers[index].isConnected()) {
+                return brokers[index];
+            }
+        }
+        return brokers[order[0]];
+    }
+
+    /**
+     * Queue an encoded message on the broker of its topic.
+     * @param topic
+     * @param frame encoded publish message
+     */
+    private void publish(String topic, byte[] frame) {
+        BrokerConnection broker = route(topic);
+        if (broker != null) {
+            broker.publish(topic, frame);
         } else {
-            Log.e(LOG_TAG, "Client not connected");
+            mMetrics.onDropped();
+            Log.e(LOG_TAG, "Service not started, message dropped on topic : " + topic);
         }
     }
 
-    private void keepAlive() {
-        if (mMqttClient != null && mMqttClient.isConnected() && isOnline()) {
-            mHandler.post(new Runnable() {
-                @Override
-                public void run() {
-                    try {
-                        Log.d(LOG_TAG, "Ping server");
-                        mMqttClient.ping();
-                    } catch (MqttException e) {
-                        Log.e(LOG_TAG, e.getMessage(), e);
-                    }
+    /**
+     * Queue a message, it will be sent with the next batch
+     * when batch size or flush latency is reached.
+     * Message id of QoS 1 and 2 messages is assigned when sent.
+     * @param topic
+     * @param message
+     */
+    private void publish(final TopicRegistry.Topic topic, final String message) {
+        publish(topic.getName(), topic.frame(message));
+    }
+
+    /**
+     * Queue a binary message.
+     * @param topic
+     * @param payload buffer holding the payload, may be reused by caller after this call
+     * @param offset payload offset in buffer
+     * @param length payload length
+     */
+    private void publish(final TopicRegistry.Topic topic, final byte[] payload, int offset, int length) {
+        publish(topic.getName(), topic.frame(payload, offset, length));
+    }
+
+    /**
+     * Queue several messages on the same topic.
+     * @param topic
+     * @param messages
+     */
+    private void publish(final TopicRegistry.Topic topic, final String[] messages) {
+        for (String message : messages) {
+            publish(topic.getName(), topic.frame(message));
+        }
+    }
+
+    /**
+     * Publish a record as a binary record, or add it to the batch of its topic for sensor topics.
+     * A batch is published when full, or after record batch latency.
+     * @param topic
+     * @param record
+     */
+    private void publish(TopicRegistry.Topic topic, SensorRecord record) {
+        synchronized (mRecordBatches) {
+            if (mRecordBatchSize <= 1 || !topic.getName().startsWith(SENSOR_TOPIC_PREFIX)) {
+                int length = SensorRecordCodec.encode(record, mRecordBuffer, 0);
+                publish(topic, mRecordBuffer, 0, length);
+                return;
+            }
+            RecordBatchCodec.Encoder batch = mRecordBatches.get(topic);
+            if (batch == null) {
+                batch = new RecordBatchCodec.Encoder(mRecordBatchSize);
+                mRecordBatches.put(topic, batch);
+                if (mRecordBuffer.length < batch.getMaxSize()) {
+                    mRecordBuffer = new byte[batch.getMaxSize()];
                 }
-            });
-        } else {
-            Log.e(LOG_TAG, "Client not connected");
+            }
+            if (batch.add(record)) {
+                publishBatch(topic, batch);
+            } else if (!mRecordFlushScheduled) {
+                mRecordFlushScheduled = true;
+                mMainHandler.postDelayed(mRecordFlushRunnable, mRecordBatchLatency);
+            }
         }
     }
 
-    private void subscribe(final String topic) {
-        if (mMqttClient != null && mMqttClient.isConnected() && isOnline()) {
-            mHandler.post(new Runnable() {
-                @Override
-                public void run() {
-                    try {
-                        Log.i(LOG_TAG, "Subscribe on topic : " + topic);
-                        mMqttClient.subscribe(topic);
-                    } catch (IOException e) {
-                        Log.e(LOG_TAG, e.getMessage(), e);
-                    }
+    /**
+     * Encode and publish a batch, must hold record batches lock.
+     */
+    private void publishBatch(TopicRegistry.Topic topic, RecordBatchCodec.Encoder batch) {
+        int records = batch.getCount();
+        int recordBytes = batch.getRecordBytes();
+        long start = System.nanoTime();
+        int length = batch.encode(mRecordBuffer, 0);
+        mMetrics.onBatch(records, recordBytes, length, (System.nanoTime() - start) / 1000);
+        publish(topic, mRecordBuffer, 0, length);
+    }
+
+    /**
+     * Publish all pending record batches.
+     */
+    private void flushRecords() {
+        synchronized (mRecordBatches) {
+            mMainHandler.removeCallbacks(mRecordFlushRunnable);
+            mRecordFlushScheduled = false;
+            for (Map.Entry<TopicRegistry.Topic, RecordBatchCodec.Encoder> entry : mRecordBatches.entrySet()) {
+                if (entry.getValue().getCount() > 0) {
+                    publishBatch(entry.getKey(), entry.getValue());
                 }
-            });
-        } else {
+            }
+        }
+    }
+
+    private void setQos(String topic, int qos) {
+        TopicRegistry.Topic registered = mTopics.register(topic);
+        registered.setQos(qos);
+        Log.i(LOG_TAG, "QoS " + registered.getQos() + " on topic : " + topic);
+    }
+
+    private void scheduleStats() {
+        mMainHandler.removeCallbacks(mStatsRunnable);
+        if (mStatsInterval > 0) {
+            mMainHandler.postDelayed(mStatsRunnable, mStatsInterval);
+        }
+    }
+
+    /**
+     * Publish metrics on the stats topic of this device while a broker is connected, then program next publish.
+     */
+    private void publishStats() {
+        if (getConnectionState() != ConnectionState.CONNECTED) {
+            return;
+        }
+        publish(mStatsTopic, dumpMetrics(";"));
+        scheduleStats();
+    }
+
+    /**
+     * Subscribe on all brokers, topics are sharded for publishing only.
+     */
+    private void subscribe(final String topic) {
+        BrokerConnection[] brokers = mBrokers;
+        if (brokers == null) {
             Log.e(LOG_TAG, "Client not connected");
+            return;
+        }
+        for (BrokerConnection broker : brokers) {
+            broker.subscribe(topic);
         }
     }
 
     private void unsubscribe(final String topic) {
-        if (mMqttClient != null && mMqttClient.isConnected() && isOnline()) {
-            mHandler.post(new Runnable() {
-                @Override
-                public void run() {
-                    try {
-                        Log.i(LOG_TAG, "Unsubscribe on topic : " + topic);
-                        mMqttClient.unsubscribe(topic);
-                    } catch (IOException e) {
-                        Log.e(LOG_TAG, e.getMessage(), e);
-                    }
-                }
-            });
-        } else {
+        BrokerConnection[] brokers = mBrokers;
+        if (brokers == null) {
             Log.e(LOG_TAG, "Client not connected");
+            return;
+        }
+        for (BrokerConnection broker : brokers) {
+            broker.unsubscribe(topic);
         }
     }
 
-    /**
-     * Program ping requests
-     */
-    private void startKeepAlives() {
+    private PendingIntent keepAliveIntent(BrokerConnection broker) {
         Intent i = new Intent();
         i.setClass(this, MqttService.class);
         i.setAction(ACTION_KEEPALIVE);
-        PendingIntent pi = PendingIntent.getService(this, 0, i, 0);
-        mAlarmManager.setRepeating(AlarmManager.RTC_WAKEUP,
-                System.currentTimeMillis() + KEEP_ALIVE * 1000,
-                KEEP_ALIVE * 1000, pi);
+        i.putExtra(EXTRA_BROKER, broker.getIndex());
+        // request code keeps one pending intent per broker, extras are not compared
+        return PendingIntent.getService(this, broker.getIndex(), i, PendingIntent.FLAG_UPDATE_CURRENT);
     }
 
     /**
-     * Remove all scheduled ping requests
+     * Program next ping request of a broker at the end of its idle interval.
+     * On API 19+ the alarm may be delivered in a window to be batched with other wakeups,
+     * no longer than the broker allows and than {@link #KEEP_ALIVE_WINDOW}. Alarm is exact
+     * when the allowed window is too short to be worth batching.
      */
-    private void stopKeepAlives() {
-        Intent i = new Intent();
-        i.setClass(this, MqttService.class);
-        i.setAction(ACTION_KEEPALIVE);
-        PendingIntent pi = PendingIntent.getService(this, 0, i , 0);
-        mAlarmManager.cancel(pi);
+    @Override
+    public void scheduleKeepAlive(BrokerConnection broker, long time, long window) {
+        PendingIntent pi = keepAliveIntent(broker);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            window = Math.min(KEEP_ALIVE_WINDOW, window);
+            if (window < MIN_KEEP_ALIVE_WINDOW) {
+                mAlarmManager.setExact(AlarmManager.ELAPSED_REALTIME_WAKEUP, time, pi);
+            } else {
+                mAlarmManager.setWindow(AlarmManager.ELAPSED_REALTIME_WAKEUP, time, window, pi);
+            }
+        } else {
+            mAlarmManager.set(AlarmManager.ELAPSED_REALTIME_WAKEUP, time, pi);
+        }
     }
 
-    private boolean isOnline() {
-        NetworkInfo info = mConnectivityManager.getActiveNetworkInfo();
-        return (info != null) && info.isConnected();
+    /**
+     * Remove scheduled ping requests of a broker.
+     */
+    @Override
+    public void cancelKeepAlive(BrokerConnection broker) {
+        mAlarmManager.cancel(keepAliveIntent(broker));
     }
 
     @Override
-    public void connectAck(ConnAckMessage.ConnectionStatus connectionStatus) {
+    public void onBrokerConnected(BrokerConnection broker) {
+        if (mSharding.getBrokerCount() > 1) {
+            Log.i(LOG_TAG, "Broker " + broker.getName() + " up, " + getConnectedCount() + "/"
+                    + mSharding.getBrokerCount() + " connected");
+        }
+        scheduleStats();
     }
 
     @Override
-    public void disconnected() {
+    public void onBrokerDisconnected(BrokerConnection broker) {
+        if (mSharding.getBrokerCount() > 1) {
+            // next messages of its topics fail over to the next connected broker
+            Log.w(LOG_TAG, "Broker " + broker.getName() + " down, " + getConnectedCount() + "/"
+                    + mSharding.getBrokerCount() + " connected");
+        }
+    }
+
+    private int getConnectedCount() {
+        int count = 0;
+        for (BrokerConnection broker : mBrokers) {
+            if (broker.isConnected()) {
+                count++;
+            }
+        }
+        return count;
     }
 
     @Override
-    public void publishArrived(String s, byte[] bytes) {
-        Log.i(LOG_TAG, "New message on topic ("+s+") : "+String.valueOf(bytes));
+    public boolean isOnline() {
+        NetworkInfo info = mConnectivityManager.getActiveNetworkInfo();
+        return (info != null) && info.isConnected();
+    }
+
+    /**
+     * Message received from a broker, called on inbound thread with a pooled payload buffer.
+     */
+    @Override
+    public void onMessage(String topic, byte[] payload, int length) {
+        mMetrics.onReceived(length);
+        if (mRouter.route(topic, payload, length) > 0 || !mDebugLog) {
+            return;
+        }
+        if (RecordBatchCodec.isBatch(payload, 0, length)) {
+            Log.d(LOG_TAG, "New batch on topic ("+topic+") : "+length+" bytes");
+            mReceivedBatch.decode(payload, 0, length, mReceivedBatchListener);
+        } else if (SensorRecordCodec.decode(payload, 0, length, mReceivedRecord) > 0) {
+            Log.d(LOG_TAG, "New record on topic ("+topic+") : "+mReceivedRecord);
+        } else {
+            Log.d(LOG_TAG, "New message on topic ("+topic+") : "+length+" bytes");
+        }
     }
 }
@@ -0,0 +1,299 @@
+package com.qboileau.mqtt;
+
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Ingestion of several sensors, each registered with its own sampling period, topic and filter.
+ *
+ * Events of all sensors are received on one dedicated thread. Samples accepted by the sensor filter
+ * are stored in a preallocated {@link SampleRing} per sensor, and rings are drained in bulk every
+ * drain interval to a {@link Consumer}, on the same thread. Nothing is allocated per event,
+ * so high rate sensors like the accelerometer do not cause garbage collections, and the UI thread
+ * is never involved.
+ * @author qboileau
+ */
+public class SensorHub {
+
+    private static final String LOG_TAG = SensorHub.class.getCanonicalName();
+    private static final String HUB_THREAD_NAME = "THREAD_SENSOR_HUB";
+
+    //minimum ring capacity (samples)
+    private static final int MIN_CAPACITY = 64;
+
+    //samples moved per drain call
+    private static final int DRAIN_SIZE = 256;
+
+    /**
+     * Receive drained samples, called on the hub thread.
+     */
+    public interface Consumer {
+        /**
+         * @param channel sensor channel
+         * @param times sample times in ms
+         * @param values sample values, channel dimension values per sample
+         * @param count number of samples, arrays are only valid during this call
+         */
+        void onSamples(Channel channel, long[] times, float[] values, int count);
+    }
+
+    /**
+     * A registered sensor, with its topic, filter and ring of accepted samples.
+     */
+    public static final class Channel implements SensorEventListener {
+
+        private final Sensor mSensor;
+        private final String mTopic;
+        private final int mSamplingPeriod;
+        private final DeadBandFilter mFilter;
+        private final SampleRing mRing;
+        private final float[] mValues;
+        private final long mClockOffset;
+        private volatile boolean mEnabled = true;
+        private volatile TopicRegistry.Topic mPublishTopic;
+
+        private Channel(Sensor sensor, String topic, int dimension, int samplingPeriod, DeadBandFilter filter,
+                        int capacity) {
+            this.mSensor = sensor;
+            this.mTopic = topic;
+            this.mSamplingPeriod = samplingPeriod;
+            this.mFilter = filter;
+            this.mRing = new SampleRing(capacity, dimension);
+            this.mValues = new float[dimension];
+            // sensor event timestamps are nanoseconds since boot
+            this.mClockOffset = System.currentTimeMillis() - SystemClock.elapsedRealtime();
+        }
+
+        public int getSensorType() {
+            return mSensor.getType();
+        }
+
+        public String getTopic() {
+            return mTopic;
+        }
+
+        public int getDimension() {
+            return mValues.length;
+        }
+
+        /**
+         * @return sampling period in ms
+         */
+        public int getSamplingPeriod() {
+            return mSamplingPeriod;
+        }
+
+        /**
+         * @return filter of samples, or null if every sample is kept
+         */
+        public DeadBandFilter getFilter() {
+            return mFilter;
+        }
+
+        public SampleRing getRing() {
+            return mRing;
+        }
+
+        public boolean isEnabled() {
+            return mEnabled;
+        }
+
+        /**
+         * Must be called while the hub is stopped.
+         */
+        public void setEnabled(boolean enabled) {
+            this.mEnabled = enabled;
+        }
+
+        /**
+         * @return registered topic to publish on, or null until set
+         */
+        public TopicRegistry.Topic getPublishTopic() {
+            return mPublishTopic;
+        }
+
+        public void setPublishTopic(TopicRegistry.Topic publishTopic) {
+            this.mPublishTopic = publishTopic;
+        }
+
+        @Override
+        public void onSensorChanged(SensorEvent sensorEvent) {
+            float[] eventValues = sensorEvent.values;
+            int dimension = Math.min(mValues.length, eventValues.length);
+            float filtered;
+            if (dimension == 1) {
+                filtered = eventValues[0];
+            } else {
+                // multi axis sensors are filtered on their magnitude
+                float sum = 0f;
+                for (int i = 0; i < dimension; i++) {
+                    sum += eventValues[i] * eventValues[i];
+                }
+                filtered = (float) Math.sqrt(sum);
+            }
+
+            long time = mClockOffset + sensorEvent.timestamp / 1000000L;
+            if (mFilter == null || mFilter.accept(time, filtered)) {
+                System.arraycopy(eventValues, 0, mValues, 0, dimension);
+                mRing.put(time, mValues);
+            }
+        }
+
+        @Override
+        public void onAccuracyChanged(Sensor sensor, int i) {
+        }
+    }
+
+    private final SensorManager mSensorManager;
+    private final long mDrainInterval;
+    private final Consumer mConsumer;
+    private final List<Channel> mChannels = new ArrayList<Channel>();
+    private HandlerThread mThread;
+    private Handler mHandler;
+    private volatile boolean mStarted = false;
+
+    // drain buffers, used on hub thread only
+    private final long[] mDrainTimes = new long[DRAIN_SIZE];
+    private final float[] mDrainValues = new float[DRAIN_SIZE * SensorRecord.MAX_VALUES];
+
+    private final Runnable mDrainRunnable = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+            if (mStarted) {
+                mHandler.postDelayed(this, mDrainInterval);
+            }
+        }
+    };
+
+    /**
+     * @param sensorManager
+     * @param drainInterval delay between two drains of sample rings in ms
+     * @param consumer receiver of drained samples
+     */
+    public SensorHub(SensorManager sensorManager, long drainInterval, Consumer consumer) {
+        this.mSensorManager = sensorManager;
+        this.mDrainInterval = drainInterval;
+        this.mConsumer = consumer;
+    }
+
+    /**
+     * Register a sensor, must be called while the hub is stopped.
+     * @param sensorType android sensor type
+     * @param topic topic of the sensor samples
+     * @param dimension number of values kept per sample
+     * @param samplingPeriod sampling period in ms
+     * @param filter filter of samples, or null to keep every sample
+     * @return registered channel, or null if the device has no such sensor
+     */
+    public Channel register(int sensorType, String topic, int dimension, int samplingPeriod, DeadBandFilter filter) {
+        Sensor sensor = mSensorManager.getDefaultSensor(sensorType);
+        if (sensor == null) {
+            return null;
+        }
+        // twice the samples of a drain interval, and a whole hardware fifo flushed at once
+        int capacity = (int) Math.max(MIN_CAPACITY, 2 * mDrainInterval / Math.max(1, samplingPeriod));
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            capacity = Math.max(capacity, sensor.getFifoMaxEventCount());
+        }
+        Channel channel = new Channel(sensor, topic, dimension, samplingPeriod, filter, capacity);
+        mChannels.add(channel);
+        Log.i(LOG_TAG, "Sensor " + sensor.getName() + " on " + topic + " every " + samplingPeriod
+                + "ms, " + channel.mRing.getCapacity() + " samples ring");
+        return channel;
+    }
+
+    public List<Channel> getChannels() {
+        return Collections.unmodifiableList(mChannels);
+    }
+
+    /**
+     * Register listeners of enabled sensors and start draining.
+     * @param maxReportLatency maximum batching latency in us, used on API 19+
+     */
+    public void start(int maxReportLatency) {
+        if (mStarted) {
+            return;
+        }
+        if (mThread == null) {
+            mThread = new HandlerThread(HUB_THREAD_NAME);
+            mThread.start();
+            mHandler = new Handler(mThread.getLooper());
+        }
+        mStarted = true;
+        for (Channel channel : mChannels) {
+            if (!channel.mEnabled) {
+                continue;
+            }
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+                mSensorManager.registerListener(channel, channel.mSensor, channel.mSamplingPeriod * 1000,
+                        maxReportLatency, mHandler);
+            } else {
+                mSensorManager.registerListener(channel, channel.mSensor, channel.mSamplingPeriod * 1000, mHandler);
+            }
+        }
+        mHandler.postDelayed(mDrainRunnable, mDrainInterval);
+    }
+
+    /**
+     * Unregister listeners, samples left in rings are drained on the hub thread.
+     * Thread is kept for next start.
+     */
+    public void stop() {
+        if (!mStarted) {
+            return;
+        }
+        mStarted = false;
+        for (Channel channel : mChannels) {
+            mSensorManager.unregisterListener(channel);
+        }
+        mHandler.removeCallbacks(mDrainRunnable);
+        mHandler.post(mDrainRunnable);
+    }
+
+    /**
+     * Stop and quit hub thread once remaining samples are drained.
+     */
+    public void release() {
+        stop();
+        if (mThread != null) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    Looper.myLooper().quit();
+                }
+            });
+            mThread = null;
+            mHandler = null;
+        }
+    }
+
+    /**
+     * Move samples of every ring to the consumer, hub thread only.
+     */
+    private void drain() {
+        for (Channel channel : mChannels) {
+            SampleRing ring = channel.mRing;
+            int count;
+            while ((count = ring.drain(mDrainTimes, mDrainValues, DRAIN_SIZE)) > 0) {
+                mConsumer.onSamples(channel, mDrainTimes, mDrainValues, count);
+            }
+            long dropped = ring.getDropped();
+            if (!mStarted && dropped > 0) {
+                Log.w(LOG_TAG, dropped + " samples of " + channel.mTopic + " dropped on full ring");
+            }
+        }
+    }
+}
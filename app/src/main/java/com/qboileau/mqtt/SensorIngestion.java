@@ -0,0 +1,235 @@
+package com.qboileau.mqtt;
+
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Receive sensor events on a dedicated thread, filter them with a {@link DeadBandFilter}
+ * and forward accepted samples to a listener on the same thread.
+ * When a {@link WindowAggregator} is set, every sample is aggregated instead
+ * and only window summaries are forwarded.
+ *
+ * Samples accepted by the filter are also appended to a {@link TimeSeriesStore} history when set.
+ * Latest value is also forwarded to the UI thread, at most once every ui interval.
+ * On API 19+ events are batched by the sensor hub up to the max report latency.
+ * @author qboileau
+ */
+public class SensorIngestion implements SensorEventListener {
+
+    private static final String LOG_TAG = SensorIngestion.class.getCanonicalName();
+    private static final String SENSOR_THREAD_NAME = "THREAD_SENSOR";
+    private static final long FLUSH_TIMEOUT = 500; //500ms
+
+    /**
+     * Receive samples, {@link #onSample} and {@link #onSummary} are called on the sensor thread
+     * and {@link #onDisplay} on the UI thread.
+     */
+    public interface Listener {
+
+        void onSample(int sensorType, long timestamp, float value);
+
+        /**
+         * @param sensorType
+         * @param windowEnd window end time in ms
+         * @param aggregator aggregator holding window summary, only valid during this call
+         */
+        void onSummary(int sensorType, long windowEnd, WindowAggregator aggregator);
+
+        void onDisplay(float value);
+    }
+
+    private final SensorManager mSensorManager;
+    private final Sensor mSensor;
+    private final DeadBandFilter mFilter;
+    private final Listener mListener;
+    private final Handler mUiHandler;
+    private final long mUiInterval;
+    private HandlerThread mThread;
+    private Handler mHandler;
+
+    private volatile WindowAggregator mAggregator;
+    private volatile TimeSeriesStore mHistory;
+    private volatile float mCalibration = 0f;
+    private volatile float mRawValue;
+    private volatile float mDisplayValue;
+    private long mLastDisplayTime = 0;
+    private final long mClockOffset;
+
+    private final Runnable mDisplayRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mListener.onDisplay(mDisplayValue);
+        }
+    };
+
+    private final WindowAggregator.Listener mWindowListener = new WindowAggregator.Listener() {
+        @Override
+        public void onWindow(long windowEnd, WindowAggregator aggregator) {
+            mListener.onSummary(mSensor.getType(), windowEnd, aggregator);
+        }
+    };
+
+    /**
+     * @param sensorManager
+     * @param sensor sensor to listen
+     * @param filter filter of calibrated values
+     * @param uiInterval minimum delay between two UI updates in ms
+     * @param listener
+     */
+    public SensorIngestion(SensorManager sensorManager, Sensor sensor, DeadBandFilter filter,
+                           long uiInterval, Listener listener) {
+        this.mSensorManager = sensorManager;
+        this.mSensor = sensor;
+        this.mFilter = filter;
+        this.mUiInterval = uiInterval;
+        this.mListener = listener;
+        this.mUiHandler = new Handler(Looper.getMainLooper());
+        // sensor event timestamps are nanoseconds since boot
+        this.mClockOffset = System.currentTimeMillis() - SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Register sensor listener.
+     * @param samplingPeriod sampling period in us or one of SensorManager.SENSOR_DELAY_*
+     * @param maxReportLatency maximum batching latency in us, used on API 19+
+     */
+    public void start(int samplingPeriod, int maxReportLatency) {
+        if (mThread == null) {
+            mThread = new HandlerThread(SENSOR_THREAD_NAME);
+            mThread.start();
+            mHandler = new Handler(mThread.getLooper());
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            mSensorManager.registerListener(this, mSensor, samplingPeriod, maxReportLatency, mHandler);
+        } else {
+            mSensorManager.registerListener(this, mSensor, samplingPeriod, mHandler);
+        }
+    }
+
+    /**
+     * Unregister sensor listener, thread is kept for next start.
+     * Current window is summarized on the sensor thread, after events already queued,
+     * this call waits for it so the summary is forwarded before the caller disconnects.
+     */
+    public void stop() {
+        mSensorManager.unregisterListener(this);
+        mUiHandler.removeCallbacks(mDisplayRunnable);
+        final WindowAggregator aggregator = mAggregator;
+        if (aggregator == null) {
+            return;
+        }
+        if (mHandler == null) {
+            aggregator.flush(mWindowListener);
+            return;
+        }
+        final CountDownLatch flushed = new CountDownLatch(1);
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                aggregator.flush(mWindowListener);
+                flushed.countDown();
+            }
+        });
+        try {
+            if (!flushed.await(FLUSH_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                Log.w(LOG_TAG, "Window flush still pending after " + FLUSH_TIMEOUT + " ms");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Unregister sensor listener and stop sensor thread once queued events and flush are done.
+     */
+    public void release() {
+        stop();
+        if (mThread != null) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    Looper.myLooper().quit();
+                }
+            });
+            mThread = null;
+            mHandler = null;
+        }
+    }
+
+    public void setCalibration(float calibration) {
+        this.mCalibration = calibration;
+    }
+
+    /**
+     * @return last sensor value, before calibration
+     */
+    public float getRawValue() {
+        return mRawValue;
+    }
+
+    public DeadBandFilter getFilter() {
+        return mFilter;
+    }
+
+    /**
+     * Aggregate samples over windows instead of filtering them.
+     * Must be called while the sensor is stopped.
+     * @param aggregator window aggregator, or null to publish filtered samples
+     */
+    public void setAggregator(WindowAggregator aggregator) {
+        this.mAggregator = aggregator;
+    }
+
+    public WindowAggregator getAggregator() {
+        return mAggregator;
+    }
+
+    /**
+     * @param history store of filtered samples, or null
+     */
+    public void setHistory(TimeSeriesStore history) {
+        this.mHistory = history;
+    }
+
+    @Override
+    public void onSensorChanged(SensorEvent sensorEvent) {
+        float rawValue = sensorEvent.values[0];
+        float value = rawValue + mCalibration;
+        mRawValue = rawValue;
+
+        long time = mClockOffset + sensorEvent.timestamp / 1000000L;
+        boolean accepted = mFilter.accept(time, value);
+        WindowAggregator aggregator = mAggregator;
+        if (aggregator != null) {
+            aggregator.add(time, value, mWindowListener);
+        } else if (accepted) {
+            mListener.onSample(mSensor.getType(), time, value);
+        }
+        TimeSeriesStore history = mHistory;
+        if (accepted && history != null) {
+            history.append(time, value);
+        }
+
+        mDisplayValue = value;
+        long now = SystemClock.elapsedRealtime();
+        if (now - mLastDisplayTime >= mUiInterval) {
+            mLastDisplayTime = now;
+            mUiHandler.post(mDisplayRunnable);
+        }
+    }
+
+    @Override
+    public void onAccuracyChanged(Sensor sensor, int i) {
+    }
+}
@@ -2,16 +2,94 @@ package com.qboileau.mqtt;
 
 import android.content.SharedPreferences;
 import android.os.Bundle;
+import android.preference.EditTextPreference;
+import android.preference.ListPreference;
 import android.preference.Preference;
 import android.preference.PreferenceActivity;
 
 /**
  * Created by qboileau on 23/06/14.
+ *
+ * Choosing a performance profile writes all its settings, editing one of them switches to the custom profile.
+ * Running service applies changes without reconnecting.
  */
-public class SettingsActivity extends PreferenceActivity {
+public class SettingsActivity extends PreferenceActivity implements SharedPreferences.OnSharedPreferenceChangeListener {
+
+    private static final String PREF_PRESSURE_QOS = MainActivity.PREF_QOS + MainActivity.TOPIC_PRESSURE;
+
+    // settings written by profiles
+    private static final String[] PROFILE_KEYS = {
+            MainActivity.PREF_SAMPLING_PERIOD, MainActivity.PREF_DEAD_BAND,
+            MainActivity.PREF_MIN_INTERVAL, MainActivity.PREF_MAX_INTERVAL,
+            MqttService.PREF_BATCH_SIZE, MqttService.PREF_FLUSH_LATENCY,
+            MqttService.PREF_KEEP_ALIVE, PREF_PRESSURE_QOS
+    };
+
+    private boolean mApplyingProfile = false;
+
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         addPreferencesFromResource(R.xml.preference);
     }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        getPreferenceScreen().getSharedPreferences().registerOnSharedPreferenceChangeListener(this);
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        getPreferenceScreen().getSharedPreferences().unregisterOnSharedPreferenceChangeListener(this);
+    }
+
+    @Override
+    public void onSharedPreferenceChanged(SharedPreferences prefs, String key) {
+        if (mApplyingProfile || key == null) {
+            return;
+        }
+        if (key.equals(MqttService.PREF_PROFILE)) {
+            PerformanceProfile profile = PerformanceProfile.forName(prefs.getString(key, PerformanceProfile.CUSTOM));
+            if (profile != null) {
+                applyProfile(profile);
+            }
+        } else {
+            for (String profileKey : PROFILE_KEYS) {
+                if (profileKey.equals(key)) {
+                    setValue(MqttService.PREF_PROFILE, PerformanceProfile.CUSTOM);
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Write all settings of a profile, through their preference so displayed values are updated.
+     */
+    private void applyProfile(PerformanceProfile profile) {
+        mApplyingProfile = true;
+        try {
+            setValue(MainActivity.PREF_SAMPLING_PERIOD, String.valueOf(profile.samplingPeriod));
+            setValue(MainActivity.PREF_DEAD_BAND, String.valueOf(profile.deadBand));
+            setValue(MainActivity.PREF_MIN_INTERVAL, String.valueOf(profile.minInterval));
+            setValue(MainActivity.PREF_MAX_INTERVAL, String.valueOf(profile.maxInterval));
+            setValue(MqttService.PREF_BATCH_SIZE, String.valueOf(profile.batchSize));
+            setValue(MqttService.PREF_FLUSH_LATENCY, String.valueOf(profile.flushLatency));
+            setValue(MqttService.PREF_KEEP_ALIVE, String.valueOf(profile.keepAlive));
+            setValue(PREF_PRESSURE_QOS, String.valueOf(profile.qos));
+        } finally {
+            mApplyingProfile = false;
+        }
+    }
+
+    private void setValue(String key, String value) {
+        Preference preference = findPreference(key);
+        if (preference instanceof EditTextPreference) {
+            ((EditTextPreference) preference).setText(value);
+        } else if (preference instanceof ListPreference) {
+            ((ListPreference) preference).setValue(value);
+        }
+    }
 }
@@ -0,0 +1,95 @@
+package com.qboileau.mqtt;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CPU cost of a batch of pressure samples with location, from records to compressed
+ * envelope and back. Encoded size against single records is printed on setup.
+ * @author qboileau
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BatchCodecBenchmark {
+
+    private static final int TYPE_PRESSURE = 6;
+
+    @Param({"8", "32", "128"})
+    public int batch;
+
+    private final SensorRecord[] mRecords = new SensorRecord[RecordBatchCodec.MAX_RECORDS];
+    private RecordBatchCodec.Encoder mEncoder;
+    private RecordBatchCodec.Decoder mDecoder;
+    private byte[] mBuffer;
+    private byte[] mEncoded;
+    private int mEncodedLength;
+    private float mSum;
+
+    private final RecordBatchCodec.Listener mListener = new RecordBatchCodec.Listener() {
+        @Override
+        public void onRecord(SensorRecord record) {
+            mSum += record.values[0];
+        }
+    };
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        long time = System.currentTimeMillis();
+        float pressure = 1013.25f;
+        for (int i = 0; i < mRecords.length; i++) {
+            time += 5000 + random.nextInt(200);
+            pressure += (random.nextInt(200) - 100) / 100f;
+            mRecords[i] = new SensorRecord().set(time, TYPE_PRESSURE, pressure)
+                    .setLocation((48856600 + random.nextInt(20)) / 1e6, 2.3522);
+        }
+        mEncoder = new RecordBatchCodec.Encoder(batch);
+        mDecoder = new RecordBatchCodec.Decoder();
+        mBuffer = new byte[mEncoder.getMaxSize()];
+        for (int i = 0; i < batch; i++) {
+            mEncoder.add(mRecords[i]);
+        }
+        int recordBytes = mEncoder.getRecordBytes();
+        mEncodedLength = mEncoder.encode(mBuffer, 0);
+        mEncoded = mBuffer.clone();
+        System.out.println(batch + " records : " + recordBytes + " bytes as single records, "
+                + mEncodedLength + " bytes as batch");
+    }
+
+    @TearDown
+    public void tearDown() {
+        mEncoder.release();
+        mDecoder.release();
+    }
+
+    @Benchmark
+    public int encodeBatch() {
+        for (int i = 0; i < batch; i++) {
+            mEncoder.add(mRecords[i]);
+        }
+        return mEncoder.encode(mBuffer, 0);
+    }
+
+    @Benchmark
+    public float decodeBatch() {
+        mDecoder.decode(mEncoded, 0, mEncodedLength, mListener);
+        return mSum;
+    }
+}
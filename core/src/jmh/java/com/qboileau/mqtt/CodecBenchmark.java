@@ -0,0 +1,74 @@
+package com.qboileau.mqtt;
+
+import org.meqantt.message.PublishMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding cost of a pressure sample, from record to complete PUBLISH frame,
+ * in text (current default) and binary payload formats.
+ * @author qboileau
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+
+    private static final String TOPIC = "/sensor/pressure";
+    private static final int TYPE_PRESSURE = 6;
+
+    private final SensorRecord mRecord = new SensorRecord();
+    private final SensorRecord mDecoded = new SensorRecord();
+    private final byte[] mBuffer = new byte[SensorRecordCodec.MAX_SIZE];
+    private byte[] mEncoded;
+    private float mValue = 1013.25f;
+
+    @Setup
+    public void setup() {
+        mRecord.set(System.currentTimeMillis(), TYPE_PRESSURE, mValue).setLocation(48.8566, 2.3522);
+        mEncoded = new byte[SensorRecordCodec.encodedSize(mRecord)];
+        SensorRecordCodec.encode(mRecord, mEncoded, 0);
+    }
+
+    @Benchmark
+    public int encodeRecord() {
+        mRecord.values[0] = mValue;
+        return SensorRecordCodec.encode(mRecord, mBuffer, 0);
+    }
+
+    @Benchmark
+    public int decodeRecord() {
+        return SensorRecordCodec.decode(mEncoded, 0, mEncoded.length, mDecoded);
+    }
+
+    /**
+     * Binary frame built with PublishMessage : payload copy then frame encoding,
+     * see {@link TopicBenchmark} for frames built from a registered topic.
+     */
+    @Benchmark
+    public byte[] binaryFrame() {
+        mRecord.values[0] = mValue;
+        int length = SensorRecordCodec.encode(mRecord, mBuffer, 0);
+        byte[] payload = new byte[length];
+        System.arraycopy(mBuffer, 0, payload, 0, length);
+        return new PublishMessage(TOPIC, payload).toBytes();
+    }
+
+    @Benchmark
+    public byte[] textFrame() {
+        return new PublishMessage(TOPIC, String.valueOf(mValue)).toBytes();
+    }
+}
@@ -0,0 +1,83 @@
+package com.qboileau.mqtt;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Append and range read of a {@link TimeSeriesStore} holding pressure samples
+ * at one second with timing jitter. Setup prints the encoded bits per sample.
+ * @author qboileau
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HistoryBenchmark {
+
+    private static final int CHUNK_SIZE = 4096;
+    private static final int MAX_CHUNKS = 256;
+    private static final int SAMPLES = 200000;
+    private static final int READ_SIZE = 1000;
+
+    private File mFile;
+    private TimeSeriesStore mStore;
+    private final Random mRandom = new Random(42);
+    private long mTime;
+    private float mValue = 1013.25f;
+    private long mReadFrom;
+    private final long[] mTimes = new long[READ_SIZE];
+    private final float[] mValues = new float[READ_SIZE];
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        mFile = File.createTempFile("history", ".tsdb");
+        mStore = new TimeSeriesStore(mFile, CHUNK_SIZE, MAX_CHUNKS);
+        mTime = System.currentTimeMillis();
+        for (int i = 0; i < SAMPLES; i++) {
+            append();
+        }
+        mReadFrom = mStore.getFirstTime() + (mTime - mStore.getFirstTime()) / 2;
+        System.out.println(mStore.size() + " samples in " + mStore.getEncodedBytes() + " bytes, "
+                + (mStore.getEncodedBytes() * 8.0 / mStore.size()) + " bits per sample");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mStore.close();
+        mFile.delete();
+    }
+
+    @Benchmark
+    public boolean append() {
+        mTime += 999 + mRandom.nextInt(3);
+        if (mRandom.nextInt(5) == 0) {
+            mValue = Math.round((mValue + (float) mRandom.nextGaussian() * 0.3f) * 100) / 100f;
+        }
+        return mStore.append(mTime, mValue);
+    }
+
+    /**
+     * Chart window of 1000 samples in the middle of the history.
+     */
+    @Benchmark
+    public int readRange() {
+        return mStore.read(mReadFrom, Long.MAX_VALUE, mTimes, mValues, READ_SIZE);
+    }
+}
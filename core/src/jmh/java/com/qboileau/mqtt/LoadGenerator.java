@@ -0,0 +1,378 @@
+package com.qboileau.mqtt;
+
+import org.meqantt.MqttException;
+import org.meqantt.SocketClient;
+import org.meqantt.message.PublishMessage;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Headless load generator : N virtual devices, each with its own {@link SocketClient}
+ * and random device id (as MqttService uses ANDROID_ID), replaying a pressure / location
+ * trace against a broker, by default an in-process {@link StubBroker}.
+ *
+ * All devices are driven by a small scheduled thread pool. MeQanTT still starts one reader
+ * thread per client, the stub broker serves all of them from one selector thread.
+ *
+ * Options :
+ * <pre>
+ * --devices N       virtual devices (100)
+ * --rate R          messages per second per device (1)
+ * --duration S      test duration in seconds (60)
+ * --ramp S          connect all devices over S seconds, 0 for a connect storm (0)
+ * --keepalive S     ping interval of idle devices in seconds (60)
+ * --format F        text or binary payloads, binary records carry their timestamp (binary)
+ * --trace FILE      csv lines "pressure[,latitude,longitude]", a random walk if absent
+ * --host H --port P external broker instead of the in-process stub
+ * --threads T       scheduler threads (2 * cores)
+ * --report S        progress report interval in seconds (5)
+ * </pre>
+ * Run with {@code gradle :core:loadgen -Pargs="--devices 10000 --rate 0.2"}.
+ * @author qboileau
+ */
+public class LoadGenerator {
+
+    private static final String TOPIC_PREFIX = "/device/";
+    private static final String TOPIC_SUFFIX = "/sensor/pressure";
+    private static final int TYPE_PRESSURE = 6;
+    private static final int TIMEOUT = 10000; //10s
+    private static final int PING_FRAME_SIZE = 2;
+
+    private final int mDevices;
+    private final double mRate;
+    private final long mDuration;
+    private final long mRamp;
+    private final long mKeepAlive;
+    private final boolean mBinary;
+    private final float[][] mTrace;
+    private final int mReportInterval;
+
+    private String mHost;
+    private int mPort;
+    private StubBroker mBroker;
+    private final ScheduledExecutorService mScheduler;
+
+    private final AtomicInteger mConnected = new AtomicInteger();
+    private final AtomicLong mConnectFailures = new AtomicLong();
+    private final AtomicLong mPublished = new AtomicLong();
+    private final AtomicLong mPublishFailures = new AtomicLong();
+    private final AtomicLong mPings = new AtomicLong();
+    private final AtomicLong mBytesSent = new AtomicLong();
+    private volatile long mAllConnectedTime = -1;
+
+    // connect to CONNACK (ms)
+    private final LatencyHistogram mConnectLatency = new LatencyHistogram();
+    // publish call, encoding and socket write (us)
+    private final LatencyHistogram mPublishLatency = new LatencyHistogram();
+    // record timestamp to broker reception (ms), binary format and stub broker only
+    private final LatencyHistogram mRecordLatency = new LatencyHistogram();
+
+    /**
+     * Simulated phone, all its tasks run synchronized on the device.
+     */
+    private final class Device implements Runnable {
+
+        private final String mId;
+        private final String mTopic;
+        private final SocketClient mClient;
+        private final SensorRecord mRecord = new SensorRecord();
+        private final byte[] mBuffer = new byte[SensorRecordCodec.MAX_SIZE];
+        private OutputStream mOutput;
+        private int mTraceIndex;
+        private long mLastSend;
+        private boolean mConnected = false;
+
+        private Device(String id, int traceIndex) {
+            this.mId = id;
+            this.mTopic = TOPIC_PREFIX + id + TOPIC_SUFFIX;
+            this.mClient = new SocketClient(id);
+            this.mTraceIndex = traceIndex;
+        }
+
+        private synchronized void connect() {
+            long start = System.nanoTime();
+            try {
+                mClient.connect(mHost, mPort, TIMEOUT, (int) (mKeepAlive * 3 / 2000));
+                if (mBinary) {
+                    mOutput = SocketClientAccess.outputStream(mClient);
+                }
+            } catch (MqttException e) {
+                mConnectFailures.incrementAndGet();
+                SocketClientAccess.close(mClient);
+                return;
+            }
+            mConnectLatency.record((System.nanoTime() - start) / 1000000L);
+            mConnected = true;
+            mLastSend = System.currentTimeMillis();
+            if (LoadGenerator.this.mConnected.incrementAndGet() == mDevices) {
+                mAllConnectedTime = System.currentTimeMillis();
+            }
+        }
+
+        /**
+         * Publish next trace sample.
+         */
+        @Override
+        public synchronized void run() {
+            if (!mConnected) {
+                return;
+            }
+            float[] sample = mTrace[mTraceIndex];
+            mTraceIndex = (mTraceIndex + 1) % mTrace.length;
+            long now = System.currentTimeMillis();
+            long start = System.nanoTime();
+            try {
+                int size;
+                if (mBinary) {
+                    mRecord.set(now, TYPE_PRESSURE, sample[0]);
+                    if (sample.length >= 3) {
+                        mRecord.setLocation(sample[1], sample[2]);
+                    }
+                    int length = SensorRecordCodec.encode(mRecord, mBuffer, 0);
+                    byte[] payload = new byte[length];
+                    System.arraycopy(mBuffer, 0, payload, 0, length);
+                    byte[] frame = new PublishMessage(mTopic, payload).toBytes();
+                    mOutput.write(frame);
+                    mOutput.flush();
+                    size = frame.length;
+                } else {
+                    String message = String.valueOf(sample[0]);
+                    mClient.publish(mTopic, message);
+                    size = 4 + mTopic.length() + 2 + message.length();
+                }
+                mPublishLatency.record((System.nanoTime() - start) / 1000L);
+                mPublished.incrementAndGet();
+                mBytesSent.addAndGet(size);
+                mLastSend = now;
+            } catch (IOException e) {
+                onError();
+            }
+        }
+
+        /**
+         * Ping if nothing was sent for a keep alive interval.
+         */
+        private synchronized void keepAlive() {
+            if (!mConnected || System.currentTimeMillis() - mLastSend < mKeepAlive) {
+                return;
+            }
+            try {
+                mClient.ping();
+                mPings.incrementAndGet();
+                mBytesSent.addAndGet(PING_FRAME_SIZE);
+                mLastSend = System.currentTimeMillis();
+            } catch (MqttException e) {
+                onError();
+            }
+        }
+
+        private void onError() {
+            mPublishFailures.incrementAndGet();
+            mConnected = false;
+            LoadGenerator.this.mConnected.decrementAndGet();
+            SocketClientAccess.close(mClient);
+        }
+
+        /**
+         * Close socket locally, after a DISCONNECT the client reader thread fails on the broker close.
+         */
+        private synchronized void close() {
+            if (mConnected) {
+                mConnected = false;
+                SocketClientAccess.close(mClient);
+            }
+        }
+    }
+
+    public LoadGenerator(Map<String, String> options) throws IOException {
+        mDevices = Integer.parseInt(option(options, "devices", "100"));
+        mRate = Double.parseDouble(option(options, "rate", "1"));
+        mDuration = Long.parseLong(option(options, "duration", "60")) * 1000L;
+        mRamp = Long.parseLong(option(options, "ramp", "0")) * 1000L;
+        mKeepAlive = Long.parseLong(option(options, "keepalive", "60")) * 1000L;
+        mBinary = !"text".equals(option(options, "format", "binary"));
+        mReportInterval = Integer.parseInt(option(options, "report", "5"));
+        String trace = options.get("trace");
+        mTrace = trace != null ? readTrace(trace) : randomTrace(new Random(), 3600);
+
+        if (options.containsKey("host")) {
+            mHost = options.get("host");
+            mPort = Integer.parseInt(option(options, "port", "1883"));
+        } else {
+            mBroker = new StubBroker();
+            mBroker.setRecordLatency(mRecordLatency);
+            mHost = mBroker.getHost();
+            mPort = mBroker.getPort();
+        }
+        int threads = Integer.parseInt(option(options, "threads",
+                String.valueOf(2 * Runtime.getRuntime().availableProcessors())));
+        mScheduler = new ScheduledThreadPoolExecutor(threads);
+    }
+
+    public void run() throws InterruptedException, IOException {
+        System.out.println(String.format(Locale.US, "%d devices, %.2f msg/s each, %s payloads, %ds connect ramp, broker %s:%d",
+                mDevices, mRate, mBinary ? "binary" : "text", mRamp / 1000, mHost, mPort));
+
+        Random random = new Random();
+        final List<Device> devices = new ArrayList<Device>(mDevices);
+        long period = Math.max(1, (long) (1000000 / mRate)); //us
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < mDevices; i++) {
+            final Device device = new Device(deviceId(random), random.nextInt(mTrace.length));
+            devices.add(device);
+            long connectDelay = mRamp * i / mDevices;
+            mScheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    device.connect();
+                }
+            }, connectDelay, TimeUnit.MILLISECONDS);
+            // spread publishes of devices over the period
+            mScheduler.scheduleAtFixedRate(device, connectDelay * 1000 + random.nextInt((int) Math.min(period, Integer.MAX_VALUE)),
+                    period, TimeUnit.MICROSECONDS);
+            mScheduler.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    device.keepAlive();
+                }
+            }, connectDelay + mKeepAlive, Math.max(1000, mKeepAlive / 10), TimeUnit.MILLISECONDS);
+        }
+
+        long lastPublished = 0;
+        long lastTime = start;
+        long end = start + mDuration;
+        while (System.currentTimeMillis() < end) {
+            Thread.sleep(Math.min(mReportInterval * 1000L, Math.max(1, end - System.currentTimeMillis())));
+            long now = System.currentTimeMillis();
+            long published = mPublished.get();
+            System.out.println(String.format(Locale.US, "%6.1fs  connected %d  %.0f msg/s  connect p99 %dms  publish p99 %dus",
+                    (now - start) / 1000.0, mConnected.get(), (published - lastPublished) * 1000.0 / Math.max(1, now - lastTime),
+                    mConnectLatency.getPercentile(0.99), mPublishLatency.getPercentile(0.99)));
+            lastPublished = published;
+            lastTime = now;
+        }
+
+        mScheduler.shutdownNow();
+        mScheduler.awaitTermination(TIMEOUT, TimeUnit.MILLISECONDS);
+        report(System.currentTimeMillis() - start, start);
+        for (Device device : devices) {
+            device.close();
+        }
+        if (mBroker != null) {
+            mBroker.close();
+        }
+    }
+
+    private void report(long elapsed, long start) {
+        long published = mPublished.get();
+        long bytes = mBytesSent.get();
+        System.out.println();
+        System.out.println("Throughput");
+        System.out.println(String.format(Locale.US, "  published       %d messages, %.0f msg/s, %.1f KB/s, %d failures",
+                published, published * 1000.0 / elapsed, bytes / 1.024 / elapsed, mPublishFailures.get()));
+        if (mBroker != null) {
+            System.out.println(String.format(Locale.US, "  broker received %d messages, %d bytes",
+                    mBroker.getPublishCount(), mBroker.getByteCount()));
+        }
+        System.out.println("Connect storm");
+        System.out.println(String.format(Locale.US, "  connected       %d/%d, %d failures%s",
+                mConnectLatency.getCount(), mDevices, mConnectFailures.get(),
+                mAllConnectedTime > 0 ? String.format(Locale.US, ", all connected in %dms (%.0f connections/s)",
+                        mAllConnectedTime - start, mDevices * 1000.0 / Math.max(1, mAllConnectedTime - start)) : ""));
+        System.out.println(histogram("  connect latency ms  ", mConnectLatency));
+        System.out.println("Keep alive");
+        System.out.println(String.format(Locale.US, "  pings           %d, %.1f pings/device/h, %.2f%% of sent bytes",
+                mPings.get(), mPings.get() * 3600000.0 / elapsed / mDevices,
+                bytes == 0 ? 0 : mPings.get() * PING_FRAME_SIZE * 100.0 / bytes));
+        System.out.println("Latency");
+        System.out.println(histogram("  publish call us     ", mPublishLatency));
+        if (mBroker != null && mBinary) {
+            System.out.println(histogram("  end to end ms       ", mRecordLatency));
+        }
+    }
+
+    private static String histogram(String name, LatencyHistogram histogram) {
+        return name + "count/mean/p50/p90/p99/max " + histogram.appendTo(new StringBuilder());
+    }
+
+    /**
+     * @return random 64 bits hexadecimal id, like ANDROID_ID
+     */
+    private static String deviceId(Random random) {
+        return String.format("%016x", random.nextLong());
+    }
+
+    private static float[][] readTrace(String path) throws IOException {
+        List<float[]> samples = new ArrayList<float[]>();
+        BufferedReader reader = new BufferedReader(new FileReader(path));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.length() == 0 || line.startsWith("#")) {
+                    continue;
+                }
+                String[] columns = line.split(",");
+                float[] sample = new float[columns.length >= 3 ? 3 : 1];
+                for (int i = 0; i < sample.length; i++) {
+                    sample[i] = Float.parseFloat(columns[i].trim());
+                }
+                samples.add(sample);
+            }
+        } finally {
+            reader.close();
+        }
+        if (samples.isEmpty()) {
+            throw new IOException("Empty trace " + path);
+        }
+        return samples.toArray(new float[samples.size()][]);
+    }
+
+    /**
+     * Random walk around sea level pressure, moving around Paris.
+     */
+    private static float[][] randomTrace(Random random, int length) {
+        float[][] samples = new float[length][];
+        float pressure = 1013.25f;
+        float latitude = 48.8566f;
+        float longitude = 2.3522f;
+        for (int i = 0; i < length; i++) {
+            pressure += (random.nextFloat() - 0.5f) * 0.2f;
+            latitude += (random.nextFloat() - 0.5f) * 0.0002f;
+            longitude += (random.nextFloat() - 0.5f) * 0.0002f;
+            samples[i] = new float[] {pressure, latitude, longitude};
+        }
+        return samples;
+    }
+
+    private static String option(Map<String, String> options, String name, String defaultValue) {
+        String value = options.get(name);
+        return value != null ? value : defaultValue;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<String, String>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (!args[i].startsWith("--")) {
+                throw new IllegalArgumentException("Unexpected argument " + args[i]);
+            }
+            options.put(args[i].substring(2), args[i + 1]);
+        }
+        new LoadGenerator(options).run();
+        System.exit(0);
+    }
+}
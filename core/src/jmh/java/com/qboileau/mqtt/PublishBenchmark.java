@@ -0,0 +1,83 @@
+package com.qboileau.mqtt;
+
+import org.meqantt.MqttException;
+import org.meqantt.SocketClient;
+import org.meqantt.message.PublishMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End to end publish through {@link SocketClient} into a loopback {@link StubBroker} :
+ * one socket write per message as the client does, against pre-encoded frames
+ * written in batches as MqttService does.
+ *
+ * Run in throughput and sample time modes, the latter reports tail latency percentiles.
+ * @author qboileau
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PublishBenchmark {
+
+    private static final String TOPIC = "/sensor/pressure";
+    private static final String MESSAGE = "1013.25";
+    private static final int TIMEOUT = 5000;
+    private static final int KEEP_ALIVE = 900;
+
+    @Param({"20"})
+    public int batchSize;
+
+    private StubBroker mBroker;
+    private SocketClient mClient;
+    private OutputStream mOutput;
+    private PublishBatcher mBatcher;
+    private byte[] mFrame;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, MqttException {
+        mBroker = new StubBroker();
+        mClient = new SocketClient("bench");
+        mClient.connect(mBroker.getHost(), mBroker.getPort(), TIMEOUT, KEEP_ALIVE);
+        mOutput = SocketClientAccess.outputStream(mClient);
+        mBatcher = new PublishBatcher(500);
+        mFrame = new PublishMessage(TOPIC, MESSAGE).toBytes();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        SocketClientAccess.close(mClient);
+        mBroker.close();
+    }
+
+    @Benchmark
+    public void clientPublish() throws MqttException {
+        mClient.publish(TOPIC, MESSAGE);
+    }
+
+    @Benchmark
+    public int batchedPublish() throws IOException {
+        int pending = mBatcher.offer(mFrame);
+        if (pending >= batchSize) {
+            return mBatcher.flush(mOutput);
+        }
+        return pending;
+    }
+}
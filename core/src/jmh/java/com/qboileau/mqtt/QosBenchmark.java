@@ -0,0 +1,102 @@
+package com.qboileau.mqtt;
+
+import org.meqantt.MqttException;
+import org.meqantt.message.PublishMessage;
+import org.meqantt.message.QoS;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * QoS 1 publish throughput against in-flight window size, through {@link QosSocketClient}
+ * or {@link NioClient} into a loopback {@link StubBroker}. Each invocation publishes {@link #MESSAGES}
+ * messages and returns once all of them are acknowledged, a window of 1 waits for each PUBACK
+ * so it measures the round trip and wakeup latency of the transport.
+ * @author qboileau
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QosBenchmark {
+
+    private static final String TOPIC = "/sensor/pressure";
+    private static final String MESSAGE = "1013.25";
+    private static final int MESSAGES = 1000;
+    private static final int TIMEOUT = 5000;
+    private static final int KEEP_ALIVE = 900;
+
+    @Param({"1", "8", "32", "128"})
+    public int window;
+
+    @Param({"socket", "nio"})
+    public String transport;
+
+    private StubBroker mBroker;
+    private MqttTransport mClient;
+    private OutputStream mOutput;
+    private QosPublisher mPublisher;
+    private final Semaphore mAcks = new Semaphore(0);
+    private final byte[][] mFrames = new byte[MESSAGES][];
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, MqttException {
+        mBroker = new StubBroker();
+        mPublisher = new QosPublisher(window, MESSAGES);
+        MqttTransport.AckListener listener = new MqttTransport.AckListener() {
+            @Override
+            public void onAck(int type, int messageId) {
+                mPublisher.onAck(type, messageId, System.currentTimeMillis());
+                mAcks.release();
+            }
+        };
+        mClient = "nio".equals(transport) ? new NioClient("bench", listener) : new QosSocketClient("bench", listener);
+        mClient.connect(mBroker.getHost(), mBroker.getPort(), TIMEOUT, KEEP_ALIVE);
+        mOutput = mClient.getOutputStream();
+        for (int i = 0; i < MESSAGES; i++) {
+            PublishMessage message = new PublishMessage(TOPIC, MESSAGE);
+            message.setQos(QoS.AT_LEAST_ONCE);
+            mFrames[i] = message.toBytes();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        mClient.close();
+        mBroker.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public long publishAcknowledged() throws IOException, InterruptedException {
+        long expected = mPublisher.getAckedCount() + MESSAGES;
+        for (byte[] frame : mFrames) {
+            mPublisher.offer(frame);
+        }
+        while (mPublisher.getAckedCount() < expected) {
+            mPublisher.send(mOutput, System.currentTimeMillis());
+            if (!mAcks.tryAcquire(TIMEOUT, TimeUnit.MILLISECONDS)) {
+                throw new IOException("Acknowledgement timeout, " + mPublisher.getInFlightCount() + " in flight");
+            }
+        }
+        return mPublisher.getAckedCount();
+    }
+}
@@ -0,0 +1,104 @@
+package com.qboileau.mqtt;
+
+import org.meqantt.message.PublishMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost per message of the publish queue and of the offline outbox.
+ * @author qboileau
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueueBenchmark {
+
+    private static final OutputStream NULL_OUTPUT = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+
+    @Param({"1", "20"})
+    public int batchSize;
+
+    private PublishBatcher mBatcher;
+    private LatencyHistogram mLatency;
+    private byte[] mFrame;
+    private File mOutboxDir;
+    private Outbox mOutbox;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        mBatcher = new PublishBatcher(500);
+        mLatency = new LatencyHistogram();
+        mFrame = new PublishMessage("/sensor/pressure", "1013.25").toBytes();
+        mOutboxDir = File.createTempFile("outbox", "");
+        mOutboxDir.delete();
+        mOutbox = new Outbox(mOutboxDir, 256 * 1024, 4);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mOutbox.close();
+        File[] files = mOutboxDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mOutboxDir.delete();
+    }
+
+    /**
+     * Offer a frame, and flush every batch size frames as the mqtt thread would.
+     */
+    @Benchmark
+    public int offerAndFlush() throws IOException {
+        int pending = mBatcher.offer(mFrame);
+        if (pending >= batchSize) {
+            return mBatcher.flush(NULL_OUTPUT, mLatency);
+        }
+        return pending;
+    }
+
+    /**
+     * Store a frame offline, and replay every batch size frames.
+     */
+    @Benchmark
+    public int outboxAppendAndReplay() throws IOException {
+        mOutbox.append(mFrame);
+        if (mOutbox.size() >= batchSize) {
+            int count = 0;
+            while (mOutbox.next() != null) {
+                count++;
+            }
+            mOutbox.commit();
+            return count;
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,76 @@
+package com.qboileau.mqtt;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Topic matching cost against the number of device filters, on cached topics and on topics
+ * missing the cache. Matching walks one trie path per topic level, so its cost should not
+ * grow with the number of filters.
+ * @author qboileau
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RouterBenchmark {
+
+    private static final int CACHE_SIZE = 256;
+    // distinct topics cycled by uncached matches, more than the cache holds
+    private static final int MIN_TOPICS = 4 * CACHE_SIZE;
+
+    private static final SubscriptionRouter.Subscriber SUBSCRIBER = new SubscriptionRouter.Subscriber() {
+        @Override
+        public void onMessage(String topic, byte[] payload, int length) {
+        }
+    };
+
+    @Param({"10", "100", "1000", "10000"})
+    public int filters;
+
+    private SubscriptionRouter mRouter;
+    private String[] mTopics;
+    private int mIndex = 0;
+
+    @Setup
+    public void setup() {
+        mRouter = new SubscriptionRouter(CACHE_SIZE);
+        for (int i = 0; i < filters; i++) {
+            mRouter.subscribe("/device/" + i + "/sensor/+", SUBSCRIBER);
+        }
+        // every topic matches one device filter
+        mTopics = new String[Math.max(filters, MIN_TOPICS)];
+        for (int i = 0; i < mTopics.length; i++) {
+            mTopics[i] = "/device/" + (i % filters) + "/sensor/s" + (i / filters);
+        }
+        mRouter.subscribe("/device/+/stats", SUBSCRIBER);
+        mRouter.subscribe("/device/#", SUBSCRIBER);
+    }
+
+    @Benchmark
+    public int matchCached() {
+        return mRouter.match(mTopics[0]).length;
+    }
+
+    /**
+     * Cycle over more topics than the cache holds, every match walks the trie.
+     */
+    @Benchmark
+    public int matchUncached() {
+        mIndex = (mIndex + 1) % mTopics.length;
+        return mRouter.match(mTopics[mIndex]).length;
+    }
+}
@@ -0,0 +1,332 @@
+package com.qboileau.mqtt;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Minimal in-process MQTT 3.1 broker on the loopback interface, used to measure the client side.
+ *
+ * It accepts every connection, answers CONNECT, SUBSCRIBE, UNSUBSCRIBE and PINGREQ,
+ * acknowledges QoS 1 and 2 publishes and counts received PUBLISH frames.
+ * Messages are not forwarded to subscribers.
+ * All connections are served by a single selector thread, so tens of thousands of clients
+ * only cost their buffers.
+ * @author qboileau
+ */
+public class StubBroker {
+
+    private static final int CONNECT = 1;
+    private static final int PUBLISH = 3;
+    private static final int PUBREL = 6;
+    private static final int SUBSCRIBE = 8;
+    private static final int UNSUBSCRIBE = 10;
+    private static final int PINGREQ = 12;
+    private static final int DISCONNECT = 14;
+
+    private static final byte[] CONNACK = {0x20, 0x02, 0x00, 0x00};
+    private static final byte[] PINGRESP = {(byte) 0xD0, 0x00};
+
+    private static final int BACKLOG = 4096;
+    private static final int BUFFER_SIZE = 4096;
+
+    /**
+     * Read and write buffers of a client connection.
+     */
+    private static final class Connection {
+        private ByteBuffer in = ByteBuffer.allocate(BUFFER_SIZE);
+        private ByteBuffer out = ByteBuffer.allocate(64);
+    }
+
+    private final Selector mSelector;
+    private final ServerSocketChannel mServer;
+    private final Thread mThread;
+    private volatile boolean mRunning = true;
+    private volatile LatencyHistogram mRecordLatency;
+    private final SensorRecord mRecord = new SensorRecord();
+
+    private final AtomicLong mConnections = new AtomicLong();
+    private final AtomicLong mPublishes = new AtomicLong();
+    private final AtomicLong mPings = new AtomicLong();
+    private final AtomicLong mBytes = new AtomicLong();
+
+    /**
+     * Start listening on an ephemeral loopback port.
+     * @throws IOException
+     */
+    public StubBroker() throws IOException {
+        mSelector = Selector.open();
+        mServer = ServerSocketChannel.open();
+        mServer.socket().bind(new InetSocketAddress("127.0.0.1", 0), BACKLOG);
+        mServer.configureBlocking(false);
+        mServer.register(mSelector, SelectionKey.OP_ACCEPT);
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                selectLoop();
+            }
+        }, "stub-broker");
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    public String getHost() {
+        return mServer.socket().getInetAddress().getHostAddress();
+    }
+
+    public int getPort() {
+        return mServer.socket().getLocalPort();
+    }
+
+    public long getConnectionCount() {
+        return mConnections.get();
+    }
+
+    /**
+     * @return number of PUBLISH frames received since start
+     */
+    public long getPublishCount() {
+        return mPublishes.get();
+    }
+
+    public long getPingCount() {
+        return mPings.get();
+    }
+
+    /**
+     * @return number of bytes received since start, all frame types
+     */
+    public long getByteCount() {
+        return mBytes.get();
+    }
+
+    /**
+     * Record the delay between the timestamp of received binary sensor records and their reception.
+     * @param latency histogram in ms, or null to disable
+     */
+    public void setRecordLatency(LatencyHistogram latency) {
+        this.mRecordLatency = latency;
+    }
+
+    /**
+     * Wait until given number of PUBLISH frames were received.
+     * @param count expected publish count
+     * @param timeout maximum wait in ms
+     * @return true if count was reached
+     */
+    public boolean awaitPublishes(long count, long timeout) throws InterruptedException {
+        long end = System.currentTimeMillis() + timeout;
+        while (mPublishes.get() < count) {
+            if (System.currentTimeMillis() >= end) {
+                return false;
+            }
+            Thread.sleep(1);
+        }
+        return true;
+    }
+
+    /**
+     * Stop listening and close all client connections.
+     */
+    public void close() throws IOException {
+        mRunning = false;
+        mSelector.wakeup();
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (SelectionKey key : mSelector.keys()) {
+            key.channel().close();
+        }
+        mSelector.close();
+    }
+
+    private void selectLoop() {
+        while (mRunning) {
+            try {
+                mSelector.select();
+            } catch (IOException e) {
+                return;
+            }
+            Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                try {
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else {
+                        if (key.isReadable()) {
+                            read(key);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            flush(key);
+                        }
+                    }
+                } catch (IOException e) {
+                    // client gone
+                    closeQuietly(key);
+                }
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = mServer.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            channel.register(mSelector, SelectionKey.OP_READ, new Connection());
+            mConnections.incrementAndGet();
+        }
+    }
+
+    private void read(SelectionKey key) throws IOException {
+        SocketChannel channel = (SocketChannel) key.channel();
+        Connection connection = (Connection) key.attachment();
+        int read = channel.read(connection.in);
+        if (read < 0) {
+            closeQuietly(key);
+            return;
+        }
+        mBytes.addAndGet(read);
+
+        ByteBuffer in = connection.in;
+        in.flip();
+        while (in.remaining() >= 2) {
+            int start = in.position();
+            int header = in.get() & 0xFF;
+            int length = 0;
+            int multiplier = 1;
+            int digit = 0x80;
+            while ((digit & 0x80) != 0 && in.hasRemaining()) {
+                digit = in.get() & 0xFF;
+                length += (digit & 0x7F) * multiplier;
+                multiplier *= 128;
+            }
+            if ((digit & 0x80) != 0 || in.remaining() < length) {
+                // incomplete frame, wait for more bytes
+                in.position(start);
+                if (start == 0 && in.limit() == in.capacity()) {
+                    in = grow(connection, length + 5);
+                }
+                break;
+            }
+            int body = in.position();
+            if (!handle(key, connection, header, in, body, length)) {
+                return;
+            }
+            in.position(body + length);
+        }
+        in.compact();
+        flush(key);
+    }
+
+    private static ByteBuffer grow(Connection connection, int size) {
+        ByteBuffer grown = ByteBuffer.allocate(Math.max(size, connection.in.capacity() * 2));
+        grown.put(connection.in);
+        grown.flip();
+        connection.in = grown;
+        return grown;
+    }
+
+    /**
+     * Handle a complete frame.
+     * @return false if connection was closed
+     */
+    private boolean handle(SelectionKey key, Connection connection, int header, ByteBuffer in, int body, int length) {
+        int type = (header >> 4) & 0x0F;
+        if (type == PUBLISH) {
+            mPublishes.incrementAndGet();
+            int topicLength = in.getShort(body) & 0xFFFF;
+            int qos = (header >> 1) & 0x03;
+            int payload = body + 2 + topicLength + (qos > 0 ? 2 : 0);
+            if (qos > 0) {
+                ack(connection, qos == 1 ? 0x40 : 0x50, in, body + 2 + topicLength);
+            }
+            recordLatency(in, payload, body + length - payload);
+        } else if (type == PUBREL) {
+            ack(connection, 0x70, in, body);
+        } else if (type == CONNECT) {
+            write(connection, CONNACK);
+        } else if (type == SUBSCRIBE) {
+            // one granted QoS 0 per requested topic
+            int topics = 0;
+            for (int pos = body + 2; pos < body + length; ) {
+                pos += 2 + (in.getShort(pos) & 0xFFFF) + 1;
+                topics++;
+            }
+            byte[] suback = new byte[4 + topics];
+            suback[0] = (byte) 0x90;
+            suback[1] = (byte) (2 + topics);
+            suback[2] = in.get(body);
+            suback[3] = in.get(body + 1);
+            write(connection, suback);
+        } else if (type == UNSUBSCRIBE) {
+            ack(connection, 0xB0, in, body);
+        } else if (type == PINGREQ) {
+            mPings.incrementAndGet();
+            write(connection, PINGRESP);
+        } else if (type == DISCONNECT) {
+            closeQuietly(key);
+            return false;
+        }
+        return true;
+    }
+
+    private void recordLatency(ByteBuffer in, int offset, int length) {
+        LatencyHistogram latency = mRecordLatency;
+        if (latency != null && in.hasArray()
+                && SensorRecordCodec.decode(in.array(), in.arrayOffset() + offset, length, mRecord) > 0) {
+            latency.record(System.currentTimeMillis() - mRecord.timestamp);
+        }
+    }
+
+    private static void ack(Connection connection, int header, ByteBuffer in, int idOffset) {
+        write(connection, new byte[] {(byte) header, 0x02, in.get(idOffset), in.get(idOffset + 1)});
+    }
+
+    private static void write(Connection connection, byte[] frame) {
+        if (connection.out.remaining() < frame.length) {
+            ByteBuffer grown = ByteBuffer.allocate(connection.out.capacity() * 2 + frame.length);
+            connection.out.flip();
+            grown.put(connection.out);
+            connection.out = grown;
+        }
+        connection.out.put(frame);
+    }
+
+    private static void flush(SelectionKey key) throws IOException {
+        Connection connection = (Connection) key.attachment();
+        ByteBuffer out = connection.out;
+        if (out.position() > 0) {
+            out.flip();
+            ((SocketChannel) key.channel()).write(out);
+            out.compact();
+        }
+        // wait for writability only while replies are pending
+        int ops = out.position() > 0 ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ;
+        if (key.interestOps() != ops) {
+            key.interestOps(ops);
+        }
+    }
+
+    private static void closeQuietly(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            // already closed
+        }
+    }
+}
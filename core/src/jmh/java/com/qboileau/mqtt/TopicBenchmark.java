@@ -0,0 +1,83 @@
+package com.qboileau.mqtt;
+
+import org.meqantt.message.PublishMessage;
+import org.meqantt.message.QoS;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * PUBLISH frame building with {@code PublishMessage} against a registered topic,
+ * for text and binary payloads. Run with "-prof gc" to compare gc.alloc.rate.norm,
+ * the bytes allocated per publish.
+ * @author qboileau
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TopicBenchmark {
+
+    private static final String TOPIC = "/sensor/pressure";
+    private static final String MESSAGE = "1013.25";
+
+    @Param({"0", "1"})
+    public int qos;
+
+    private TopicRegistry.Topic mTopic;
+    private final byte[] mPayload = new byte[SensorRecordCodec.MAX_SIZE];
+    private int mPayloadLength;
+
+    @Setup
+    public void setup() {
+        mTopic = new TopicRegistry().register(TOPIC);
+        mTopic.setQos(qos);
+        SensorRecord record = new SensorRecord().set(System.currentTimeMillis(), 6, 1013.25f);
+        mPayloadLength = SensorRecordCodec.encode(record, mPayload, 0);
+        if (!Arrays.equals(textMessage(), textTopic()) || !Arrays.equals(binaryMessage(), binaryTopic())) {
+            throw new IllegalStateException("Registered topic frames differ from PublishMessage frames");
+        }
+    }
+
+    @Benchmark
+    public byte[] textMessage() {
+        PublishMessage message = new PublishMessage(TOPIC, MESSAGE);
+        message.setQos(QoS.values()[qos]);
+        return message.toBytes();
+    }
+
+    @Benchmark
+    public byte[] textTopic() {
+        return mTopic.frame(MESSAGE);
+    }
+
+    /**
+     * Binary publish as done before registered topics : payload copy then frame encoding.
+     */
+    @Benchmark
+    public byte[] binaryMessage() {
+        byte[] data = new byte[mPayloadLength];
+        System.arraycopy(mPayload, 0, data, 0, mPayloadLength);
+        PublishMessage message = new PublishMessage(TOPIC, data);
+        message.setQos(QoS.values()[qos]);
+        return message.toBytes();
+    }
+
+    @Benchmark
+    public byte[] binaryTopic() {
+        return mTopic.frame(mPayload, 0, mPayloadLength);
+    }
+}
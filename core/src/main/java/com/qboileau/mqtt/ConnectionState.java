@@ -0,0 +1,16 @@
+package com.qboileau.mqtt;
+
+/**
+ * State of the broker connection.
+ * @author qboileau
+ */
+public enum ConnectionState {
+    /** Not connected and no connection wanted. */
+    DISCONNECTED,
+    /** Connection attempt in progress. */
+    CONNECTING,
+    /** Connected and acknowledged by the broker. */
+    CONNECTED,
+    /** Connection wanted, waiting for next attempt or for network. */
+    BACKING_OFF
+}
@@ -0,0 +1,117 @@
+package com.qboileau.mqtt;
+
+/**
+ * Dead-band filter of a sensor value.
+ *
+ * A sample is accepted when it differs from the last accepted value by more than
+ * max(absolute delta, relative delta * |last value|) for {@code hysteresis} consecutive samples,
+ * so a single noisy sample does not trigger a publish.
+ * Accepted changes are rate limited to one every {@code minInterval} ms, a change received
+ * during this interval is kept and accepted with the next sample after the interval.
+ * A sample is also accepted every {@code maxInterval} ms even without change.
+ * @author qboileau
+ */
+public class DeadBandFilter {
+
+    private float mAbsoluteDelta;
+    private float mRelativeDelta;
+    private int mHysteresis;
+    private long mMinInterval;
+    private long mMaxInterval;
+
+    private boolean mHasValue = false;
+    private float mLastValue;
+    private long mLastTime;
+    private int mOutsideCount = 0;
+    private boolean mChangePending = false;
+
+    private long mSampleCount = 0;
+    private long mAcceptedCount = 0;
+
+    /**
+     * @param absoluteDelta minimum absolute change
+     * @param relativeDelta minimum change relative to last value (0.01 for 1%)
+     * @param hysteresis number of consecutive samples outside the band needed to accept a change
+     * @param minInterval minimum time between two accepted samples in ms
+     * @param maxInterval maximum time between two accepted samples in ms, 0 to disable
+     */
+    public DeadBandFilter(float absoluteDelta, float relativeDelta, int hysteresis, long minInterval, long maxInterval) {
+        configure(absoluteDelta, relativeDelta, hysteresis, minInterval, maxInterval);
+    }
+
+    public synchronized void configure(float absoluteDelta, float relativeDelta, int hysteresis,
+                                       long minInterval, long maxInterval) {
+        this.mAbsoluteDelta = absoluteDelta;
+        this.mRelativeDelta = relativeDelta;
+        this.mHysteresis = Math.max(1, hysteresis);
+        this.mMinInterval = minInterval;
+        this.mMaxInterval = maxInterval;
+    }
+
+    /**
+     * Change rate limits only, dead-band and hysteresis are kept.
+     * @param minInterval minimum time between two accepted samples in ms
+     * @param maxInterval maximum time between two accepted samples in ms, 0 to disable
+     */
+    public synchronized void setIntervals(long minInterval, long maxInterval) {
+        this.mMinInterval = minInterval;
+        this.mMaxInterval = maxInterval;
+    }
+
+    /**
+     * @param time sample time in ms
+     * @param value sample value
+     * @return true if sample should be published
+     */
+    public synchronized boolean accept(long time, float value) {
+        mSampleCount++;
+        if (!mHasValue) {
+            return doAccept(time, value);
+        }
+
+        float threshold = Math.max(mAbsoluteDelta, mRelativeDelta * Math.abs(mLastValue));
+        if (Math.abs(value - mLastValue) > threshold) {
+            if (++mOutsideCount >= mHysteresis) {
+                mChangePending = true;
+            }
+        } else {
+            mOutsideCount = 0;
+        }
+
+        long elapsed = time - mLastTime;
+        if (mChangePending && elapsed >= mMinInterval) {
+            return doAccept(time, value);
+        }
+        if (mMaxInterval > 0 && elapsed >= mMaxInterval) {
+            return doAccept(time, value);
+        }
+        return false;
+    }
+
+    private boolean doAccept(long time, float value) {
+        mHasValue = true;
+        mLastValue = value;
+        mLastTime = time;
+        mOutsideCount = 0;
+        mChangePending = false;
+        mAcceptedCount++;
+        return true;
+    }
+
+    /**
+     * Forget last accepted value, next sample will be accepted.
+     */
+    public synchronized void reset() {
+        mHasValue = false;
+        mOutsideCount = 0;
+        mChangePending = false;
+    }
+
+    public synchronized long getSampleCount() {
+        return mSampleCount;
+    }
+
+    public synchronized long getAcceptedCount() {
+        return mAcceptedCount;
+    }
+}
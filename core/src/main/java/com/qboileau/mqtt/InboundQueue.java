@@ -0,0 +1,320 @@
+package com.qboileau.mqtt;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Bounded queue of received messages between transport reader threads and a worker thread.
+ *
+ * Payloads are copied into pooled buffers owned by the queue slots, so a received message
+ * does not allocate once buffers have grown to the usual payload size. The worker swaps the
+ * buffer of the slot it dispatches with a spare one, producers never wait for a handler.
+ * When the queue is full, the overflow policy drops the oldest message, drops the new one,
+ * or throttles producers : blocking readers wait for room, which pauses socket reads and lets
+ * TCP flow control slow down the broker.
+ * @author qboileau
+ */
+public class InboundQueue {
+
+    public static final int DROP_OLDEST = 0;
+    public static final int DROP_NEWEST = 1;
+    public static final int THROTTLE = 2;
+
+    private static final String[] POLICY_NAMES = {"drop_oldest", "drop_newest", "throttle"};
+
+    //initial size of pooled buffers
+    private static final int MIN_BUFFER_SIZE = 256;
+
+    //producer wait between checks of queue state (ms)
+    private static final long THROTTLE_WAIT = 1000;
+
+    /**
+     * Receive dequeued messages, on the worker thread.
+     */
+    public interface Consumer {
+        /**
+         * @param topic message topic
+         * @param payload pooled buffer holding the payload, only valid during this call
+         * @param length payload length
+         */
+        void onMessage(String topic, byte[] payload, int length);
+    }
+
+    private final Object mLock = new Object();
+    private final int mCapacity;
+    private final int mMaxPooledSize;
+    private final String[] mTopics;
+    private final byte[][] mBuffers;
+    private final int[] mLengths;
+    private byte[] mSpare = new byte[MIN_BUFFER_SIZE];
+    private volatile int mPolicy;
+
+    // guarded by mLock
+    private int mHead = 0;
+    private int mCount = 0;
+    private boolean mClosed = false;
+    private int mWaitingProducers = 0;
+    private boolean mWaitingConsumer = false;
+    private long mEnqueued = 0;
+    private long mDropped = 0;
+    private long mThrottleTime = 0;
+    private int mMaxDepth = 0;
+
+    /**
+     * @param capacity maximum number of queued messages
+     * @param maxPooledSize payloads larger than this are copied to buffers released after dispatch
+     * @param policy overflow policy, {@link #DROP_OLDEST}, {@link #DROP_NEWEST} or {@link #THROTTLE}
+     */
+    public InboundQueue(int capacity, int maxPooledSize, int policy) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        this.mCapacity = capacity;
+        this.mMaxPooledSize = Math.max(MIN_BUFFER_SIZE, maxPooledSize);
+        this.mTopics = new String[capacity];
+        this.mBuffers = new byte[capacity][];
+        this.mLengths = new int[capacity];
+        setPolicy(policy);
+    }
+
+    /**
+     * @param name policy name, "drop_oldest", "drop_newest" or "throttle"
+     * @return policy, {@link #DROP_OLDEST} for unknown names
+     */
+    public static int policy(String name) {
+        for (int i = 0; i < POLICY_NAMES.length; i++) {
+            if (POLICY_NAMES[i].equals(name)) {
+                return i;
+            }
+        }
+        return DROP_OLDEST;
+    }
+
+    public static String policyName(int policy) {
+        return POLICY_NAMES[policy];
+    }
+
+    public void setPolicy(int policy) {
+        this.mPolicy = Math.max(DROP_OLDEST, Math.min(THROTTLE, policy));
+        synchronized (mLock) {
+            // producers waiting under previous policy apply the new one
+            mLock.notifyAll();
+        }
+    }
+
+    public int getPolicy() {
+        return mPolicy;
+    }
+
+    /**
+     * Queue a message, waiting for room with the throttle policy.
+     * @param topic message topic
+     * @param payload buffer holding the payload, may be reused by caller after this call
+     * @param offset payload offset in buffer
+     * @param length payload length
+     * @return false if the message was dropped
+     */
+    public boolean offer(String topic, byte[] payload, int offset, int length) {
+        synchronized (mLock) {
+            int slot = reserve(true);
+            if (slot < 0) {
+                return false;
+            }
+            System.arraycopy(payload, offset, buffer(slot, length), 0, length);
+            commit(slot, topic, length);
+            return true;
+        }
+    }
+
+    /**
+     * Queue a message without waiting, for event loop readers which pause reads themselves
+     * while {@link #isThrottling()} : when the queue is full the message is dropped.
+     * @param topic message topic
+     * @param payload buffer holding the payload, its position is changed
+     * @param offset payload offset in buffer
+     * @param length payload length
+     * @return false if the message was dropped
+     */
+    public boolean offer(String topic, ByteBuffer payload, int offset, int length) {
+        synchronized (mLock) {
+            int slot = reserve(false);
+            if (slot < 0) {
+                return false;
+            }
+            payload.position(offset);
+            payload.get(buffer(slot, length), 0, length);
+            commit(slot, topic, length);
+            return true;
+        }
+    }
+
+    /**
+     * Find a free slot according to the overflow policy, must hold mLock.
+     * @return slot index, or -1 if message must be dropped
+     */
+    private int reserve(boolean block) {
+        if (mCount == mCapacity && block && mPolicy == THROTTLE && !mClosed) {
+            long start = System.currentTimeMillis();
+            mWaitingProducers++;
+            try {
+                while (mCount == mCapacity && mPolicy == THROTTLE && !mClosed) {
+                    mLock.wait(THROTTLE_WAIT);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                mWaitingProducers--;
+                mThrottleTime += System.currentTimeMillis() - start;
+            }
+        }
+        if (mClosed) {
+            mDropped++;
+            return -1;
+        }
+        if (mCount == mCapacity) {
+            if (mPolicy != DROP_OLDEST) {
+                mDropped++;
+                return -1;
+            }
+            mTopics[mHead] = null;
+            mHead = (mHead + 1) % mCapacity;
+            mCount--;
+            mDropped++;
+        }
+        return (mHead + mCount) % mCapacity;
+    }
+
+    /**
+     * @return pooled buffer of a slot, grown to hold length bytes
+     */
+    private byte[] buffer(int slot, int length) {
+        byte[] buffer = mBuffers[slot];
+        if (buffer == null || buffer.length < length) {
+            buffer = new byte[Math.max(MIN_BUFFER_SIZE, Integer.highestOneBit(Math.max(1, length - 1)) << 1)];
+            mBuffers[slot] = buffer;
+        }
+        return buffer;
+    }
+
+    private void commit(int slot, String topic, int length) {
+        mTopics[slot] = topic;
+        mLengths[slot] = length;
+        mCount++;
+        mEnqueued++;
+        if (mCount > mMaxDepth) {
+            mMaxDepth = mCount;
+        }
+        if (mWaitingConsumer) {
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * Wait for messages, worker thread only.
+     * @return false once the queue is closed and empty
+     */
+    public boolean await() {
+        synchronized (mLock) {
+            while (mCount == 0 && !mClosed) {
+                mWaitingConsumer = true;
+                try {
+                    mLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                } finally {
+                    mWaitingConsumer = false;
+                }
+            }
+            return mCount > 0;
+        }
+    }
+
+    /**
+     * Dispatch queued messages, worker thread only. Consumer is called without holding
+     * the queue lock, producers keep queuing meanwhile.
+     * @param consumer
+     * @param max maximum number of messages dispatched
+     * @return number of messages dispatched
+     */
+    public int drain(Consumer consumer, int max) {
+        int dispatched = 0;
+        while (dispatched < max) {
+            String topic;
+            byte[] buffer;
+            int length;
+            synchronized (mLock) {
+                if (mCount == 0) {
+                    break;
+                }
+                // take slot buffer, the slot gets the spare one
+                topic = mTopics[mHead];
+                buffer = mBuffers[mHead];
+                length = mLengths[mHead];
+                mTopics[mHead] = null;
+                mBuffers[mHead] = mSpare;
+                mHead = (mHead + 1) % mCapacity;
+                mCount--;
+                if (mWaitingProducers > 0) {
+                    mLock.notifyAll();
+                }
+            }
+            try {
+                consumer.onMessage(topic, buffer, length);
+            } finally {
+                mSpare = buffer.length <= mMaxPooledSize ? buffer : new byte[MIN_BUFFER_SIZE];
+            }
+            dispatched++;
+        }
+        return dispatched;
+    }
+
+    /**
+     * @return true if the throttle policy applies and the queue is full, readers should pause
+     */
+    public boolean isThrottling() {
+        if (mPolicy != THROTTLE) {
+            return false;
+        }
+        synchronized (mLock) {
+            return mCount == mCapacity && !mClosed;
+        }
+    }
+
+    /**
+     * Release waiting producers and worker, following messages are dropped.
+     */
+    public void close() {
+        synchronized (mLock) {
+            mClosed = true;
+            mLock.notifyAll();
+        }
+    }
+
+    public int size() {
+        synchronized (mLock) {
+            return mCount;
+        }
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * Append queue counters as "name=value" entries.
+     * @param sb destination
+     * @param separator entries separator
+     * @return given builder
+     */
+    public StringBuilder appendTo(StringBuilder sb, String separator) {
+        synchronized (mLock) {
+            sb.append("inbound_policy=").append(POLICY_NAMES[mPolicy]).append(separator);
+            sb.append("inbound_queue=").append(mCount).append('/').append(mCapacity).append(separator);
+            sb.append("inbound_max_depth=").append(mMaxDepth).append(separator);
+            sb.append("inbound_enqueued=").append(mEnqueued).append(separator);
+            sb.append("inbound_dropped=").append(mDropped).append(separator);
+            sb.append("inbound_throttle_ms=").append(mThrottleTime).append(separator);
+        }
+        return sb;
+    }
+}
@@ -0,0 +1,145 @@
+package com.qboileau.mqtt;
+
+/**
+ * Adaptive keep alive interval.
+ *
+ * Any frame sent to the broker counts as keep alive, so a ping is only due after
+ * an idle period of the current interval. The interval starts at the minimum and grows
+ * by one step after each successful ping until the maximum, or until the connection
+ * is lost while idle : the interval then falls back to the last one known to be safe
+ * for the NAT/broker path and stops growing.
+ *
+ * All times are in ms, from the same monotonic clock.
+ * @author qboileau
+ */
+public class KeepAliveScheduler {
+
+    private long mMinInterval;
+    private long mMaxInterval;
+    private long mStep;
+
+    private long mInterval;
+    private long mSafeInterval;
+    private boolean mLearning = true;
+    private long mLastActivity;
+
+    private final long mStartTime;
+    private long mWakeupCount = 0;
+    private long mPingCount = 0;
+    private long mSkippedCount = 0;
+
+    /**
+     * @param minInterval first and minimum interval
+     * @param maxInterval maximum interval, must be lower than the mqtt keep alive given to the broker
+     * @param step interval increase after a successful ping
+     * @param now current time
+     */
+    public KeepAliveScheduler(long minInterval, long maxInterval, long step, long now) {
+        configure(minInterval, maxInterval, step);
+        this.mStartTime = now;
+        this.mLastActivity = now;
+    }
+
+    public synchronized void configure(long minInterval, long maxInterval, long step) {
+        this.mMinInterval = minInterval;
+        this.mMaxInterval = Math.max(minInterval, maxInterval);
+        this.mStep = step;
+        this.mInterval = minInterval;
+        this.mSafeInterval = minInterval;
+        this.mLearning = true;
+    }
+
+    /**
+     * Frame sent to the broker.
+     */
+    public synchronized void onActivity(long now) {
+        mLastActivity = now;
+    }
+
+    /**
+     * Connection established.
+     */
+    public synchronized void onConnected(long now) {
+        mLastActivity = now;
+    }
+
+    /**
+     * Keep alive alarm received.
+     * @return true if a ping should be sent, false if recent traffic already kept connection alive
+     */
+    public synchronized boolean onWakeup(long now) {
+        mWakeupCount++;
+        if (isPingDue(now)) {
+            return true;
+        }
+        mSkippedCount++;
+        return false;
+    }
+
+    public synchronized boolean isPingDue(long now) {
+        return now - mLastActivity >= mInterval;
+    }
+
+    /**
+     * Ping written successfully after an idle period.
+     */
+    public synchronized void onPingSent(long now) {
+        long idle = now - mLastActivity;
+        mPingCount++;
+        mLastActivity = now;
+        if (idle >= mInterval) {
+            mSafeInterval = Math.max(mSafeInterval, mInterval);
+            if (mLearning) {
+                mInterval = Math.min(mMaxInterval, mInterval + mStep);
+            }
+        }
+    }
+
+    /**
+     * Connection lost, if it happened after an idle period longer than the safe interval
+     * the current interval is too long for the network path.
+     */
+    public synchronized void onConnectionLost(long now) {
+        long idle = now - mLastActivity;
+        if (idle > mSafeInterval && mInterval > mSafeInterval) {
+            mInterval = mSafeInterval;
+            mLearning = false;
+        }
+    }
+
+    /**
+     * @return time of next ping if no other frame is sent
+     */
+    public synchronized long nextPingTime() {
+        return mLastActivity + mInterval;
+    }
+
+    public synchronized long getInterval() {
+        return mInterval;
+    }
+
+    public synchronized long getWakeupCount() {
+        return mWakeupCount;
+    }
+
+    public synchronized long getPingCount() {
+        return mPingCount;
+    }
+
+    /**
+     * @return number of wakeups without ping thanks to recent traffic
+     */
+    public synchronized long getSkippedCount() {
+        return mSkippedCount;
+    }
+
+    public synchronized float getWakeupsPerHour(long now) {
+        long elapsed = now - mStartTime;
+        return elapsed <= 0 ? 0f : mWakeupCount * 3600000f / elapsed;
+    }
+
+    public synchronized float getPingsPerHour(long now) {
+        long elapsed = now - mStartTime;
+        return elapsed <= 0 ? 0f : mPingCount * 3600000f / elapsed;
+    }
+}
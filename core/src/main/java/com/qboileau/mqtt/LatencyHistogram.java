@@ -0,0 +1,86 @@
+package com.qboileau.mqtt;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of positive values with power of two buckets.
+ *
+ * Bucket i counts values in [2^(i-1), 2^i), so percentiles are approximated
+ * by the upper bound of their bucket (at most 2x the real value).
+ * Recording a value is a few atomic increments, it never blocks nor allocates.
+ * @author qboileau
+ */
+public class LatencyHistogram {
+
+    private static final int BUCKETS = 40;
+
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    /**
+     * @param value value to record, negative values are recorded as 0
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value));
+        mBuckets.incrementAndGet(bucket);
+        mCount.incrementAndGet();
+        mSum.addAndGet(value);
+
+        long max = mMax.get();
+        while (value > max && !mMax.compareAndSet(max, value)) {
+            max = mMax.get();
+        }
+    }
+
+    public long getCount() {
+        return mCount.get();
+    }
+
+    public long getMax() {
+        return mMax.get();
+    }
+
+    public long getMean() {
+        long count = mCount.get();
+        return count == 0 ? 0 : mSum.get() / count;
+    }
+
+    /**
+     * @param p percentile in [0, 1]
+     * @return upper bound of the bucket holding given percentile, 0 if empty
+     */
+    public long getPercentile(double p) {
+        long count = mCount.get();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(p * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += mBuckets.get(i);
+            if (seen >= rank) {
+                // last bucket is unbounded
+                long upper = i == 0 ? 0 : i == BUCKETS - 1 ? Long.MAX_VALUE : (1L << i) - 1;
+                return Math.min(upper, mMax.get());
+            }
+        }
+        return mMax.get();
+    }
+
+    /**
+     * Append "count/mean/p50/p90/p99/max" to given builder.
+     */
+    public StringBuilder appendTo(StringBuilder sb) {
+        return sb.append(getCount()).append('/').append(getMean())
+                .append('/').append(getPercentile(0.50))
+                .append('/').append(getPercentile(0.90))
+                .append('/').append(getPercentile(0.99))
+                .append('/').append(getMax());
+    }
+}
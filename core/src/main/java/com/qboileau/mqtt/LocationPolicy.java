@@ -0,0 +1,160 @@
+package com.qboileau.mqtt;
+
+/**
+ * Choose location provider and update rate from the publish cadence and the device movement.
+ *
+ * A location is only needed once per published record, so updates are requested at the
+ * average publish interval and never faster than {@link #MIN_INTERVAL}. While the device does not move
+ * the interval is multiplied by {@link #STATIONARY_FACTOR}. The GPS is only used when the device
+ * moves more than {@link #GPS_DISTANCE} between two publishes, below that the network
+ * provider accuracy is enough.
+ *
+ * Publish interval and speed are exponential moving averages. Thread safe.
+ * @author qboileau
+ */
+public class LocationPolicy {
+
+    public static final int PROVIDER_NETWORK = 0;
+    public static final int PROVIDER_GPS = 1;
+
+    public static final long MIN_INTERVAL = 5000; //5s
+    public static final long MAX_INTERVAL = 900000; //15min
+    public static final int STATIONARY_FACTOR = 6;
+    public static final float STATIONARY_SPEED = 0.5f; //m/s
+    public static final float GPS_DISTANCE = 100f; //m
+    public static final float MIN_DISTANCE = 10f; //m
+
+    //minimum age of a location attached to a record (ms)
+    private static final long MIN_MAX_AGE = 60000;
+    //weight of the last sample in moving averages
+    private static final double ALPHA = 0.25;
+    private static final double EARTH_RADIUS = 6371000; //m
+
+    private long mLastPublish = -1;
+    private double mPublishInterval;
+    private boolean mHasFix = false;
+    private long mFixTime;
+    private double mLatitude;
+    private double mLongitude;
+    private double mSpeed = 0;
+
+    private int mProvider = PROVIDER_NETWORK;
+    private long mInterval;
+    private float mDistance = MIN_DISTANCE;
+
+    /**
+     * @param publishInterval expected publish interval in ms until publishes are observed
+     */
+    public LocationPolicy(long publishInterval) {
+        this.mPublishInterval = publishInterval;
+        update();
+    }
+
+    /**
+     * A record was published.
+     * @param time publish time in ms
+     */
+    public synchronized void onPublish(long time) {
+        if (mLastPublish >= 0 && time > mLastPublish) {
+            mPublishInterval += ALPHA * ((time - mLastPublish) - mPublishInterval);
+        }
+        mLastPublish = time;
+    }
+
+    /**
+     * A location was received, speed is estimated from the distance to previous location
+     * beyond its accuracy, so a static device with a noisy fix stays stationary.
+     * @param time location time in ms
+     * @param latitude degrees
+     * @param longitude degrees
+     * @param accuracy radius in m, 0 if unknown
+     */
+    public synchronized void onLocation(long time, double latitude, double longitude, float accuracy) {
+        if (mHasFix && time > mFixTime) {
+            double moved = Math.max(0, distance(mLatitude, mLongitude, latitude, longitude) - accuracy);
+            double speed = moved * 1000 / (time - mFixTime);
+            mSpeed += ALPHA * (speed - mSpeed);
+        }
+        mHasFix = true;
+        mFixTime = time;
+        mLatitude = latitude;
+        mLongitude = longitude;
+    }
+
+    /**
+     * Compute provider, interval and distance from current publish interval and speed.
+     * @return true if provider changed or interval changed by more than half, updates should be requested again
+     */
+    public synchronized boolean update() {
+        long interval = Math.max(MIN_INTERVAL, Math.min(MAX_INTERVAL, (long) mPublishInterval));
+        boolean stationary = mSpeed < STATIONARY_SPEED;
+        if (stationary) {
+            interval = Math.min(MAX_INTERVAL, interval * STATIONARY_FACTOR);
+        }
+        // distance covered between two publishes
+        double travel = mSpeed * mPublishInterval / 1000;
+        int provider = !stationary && travel > GPS_DISTANCE ? PROVIDER_GPS : PROVIDER_NETWORK;
+        float distance = (float) Math.max(MIN_DISTANCE, travel / 2);
+
+        boolean changed = provider != mProvider || interval * 2 < mInterval || interval > mInterval * 2;
+        mProvider = provider;
+        mDistance = distance;
+        if (changed) {
+            mInterval = interval;
+        }
+        return changed;
+    }
+
+    /**
+     * @return {@link #PROVIDER_NETWORK} or {@link #PROVIDER_GPS}
+     */
+    public synchronized int getProvider() {
+        return mProvider;
+    }
+
+    /**
+     * @return minimum time between location updates in ms
+     */
+    public synchronized long getInterval() {
+        return mInterval;
+    }
+
+    /**
+     * @return minimum distance between location updates in m
+     */
+    public synchronized float getDistance() {
+        return mDistance;
+    }
+
+    /**
+     * @return maximum age of a location attached to a record in ms
+     */
+    public synchronized long getMaxAge() {
+        return Math.max(MIN_MAX_AGE, mInterval * 2);
+    }
+
+    /**
+     * @return estimated speed in m/s
+     */
+    public synchronized double getSpeed() {
+        return mSpeed;
+    }
+
+    /**
+     * @return average publish interval in ms
+     */
+    public synchronized long getPublishInterval() {
+        return (long) mPublishInterval;
+    }
+
+    /**
+     * @return haversine distance in m between two points in degrees
+     */
+    static double distance(double lat1, double lon1, double lat2, double lon2) {
+        double dLat = Math.toRadians(lat2 - lat1);
+        double dLon = Math.toRadians(lon2 - lon1);
+        double a = Math.sin(dLat / 2) * Math.sin(dLat / 2)
+                + Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) * Math.sin(dLon / 2) * Math.sin(dLon / 2);
+        return 2 * EARTH_RADIUS * Math.asin(Math.sqrt(Math.min(1, a)));
+    }
+}
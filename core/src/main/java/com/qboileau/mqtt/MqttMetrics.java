@@ -0,0 +1,292 @@
+package com.qboileau.mqtt;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runtime counters and latency histograms of the mqtt service.
+ *
+ * Updated from the publishing threads, the mqtt thread and the client reader thread
+ * with atomic operations only, so the hot path never waits on a lock.
+ * @author qboileau
+ */
+public class MqttMetrics {
+
+    private final long mStartTime;
+
+    private final AtomicLong mPublished = new AtomicLong();
+    private final AtomicLong mOverflows = new AtomicLong();
+    private final AtomicLong mStored = new AtomicLong();
+    private final AtomicLong mDropped = new AtomicLong();
+    private final AtomicLong mFlushes = new AtomicLong();
+    private final AtomicLong mFramesSent = new AtomicLong();
+    private final AtomicLong mBytesSent = new AtomicLong();
+    private final AtomicLong mFramesReplayed = new AtomicLong();
+    private final AtomicLong mFramesReceived = new AtomicLong();
+    private final AtomicLong mBytesReceived = new AtomicLong();
+    private final AtomicLong mPings = new AtomicLong();
+    private final AtomicLong mConnectAttempts = new AtomicLong();
+    private final AtomicLong mConnections = new AtomicLong();
+    private final AtomicLong mConnectionsLost = new AtomicLong();
+    private final AtomicLong mRetransmitted = new AtomicLong();
+    private final AtomicLong mBatchRecords = new AtomicLong();
+    private final AtomicLong mBatchRecordBytes = new AtomicLong();
+    private final AtomicLong mBatchBytes = new AtomicLong();
+    private final AtomicLong mReconnectsAvoided = new AtomicLong();
+    private final AtomicLong mHandshakeSaved = new AtomicLong();
+
+    // enqueue to socket write latency (us)
+    private final LatencyHistogram mSendLatency = new LatencyHistogram();
+    // pending messages in publish queue after each enqueue
+    private final LatencyHistogram mQueueDepth = new LatencyHistogram();
+    // connection lost to connection accepted (ms)
+    private final LatencyHistogram mReconnectLatency = new LatencyHistogram();
+    // QoS 1 and 2 publish to final acknowledgement (ms)
+    private final LatencyHistogram mAckLatency = new LatencyHistogram();
+    // connect to connection accepted (ms)
+    private final LatencyHistogram mHandshakeTime = new LatencyHistogram();
+    // records batch encoding time (us)
+    private final LatencyHistogram mBatchEncodeTime = new LatencyHistogram();
+
+    /**
+     * @param startTime metrics start time in ms
+     */
+    public MqttMetrics(long startTime) {
+        this.mStartTime = startTime;
+    }
+
+    /**
+     * A message was added to the publish queue.
+     * @param pending messages in queue after insertion
+     */
+    public void onEnqueued(int pending) {
+        mPublished.incrementAndGet();
+        mQueueDepth.record(pending);
+    }
+
+    /**
+     * Publish queue was full, message went to the outbox.
+     */
+    public void onOverflow() {
+        mOverflows.incrementAndGet();
+    }
+
+    /**
+     * A message was stored in the outbox.
+     */
+    public void onStored() {
+        mStored.incrementAndGet();
+    }
+
+    /**
+     * A message could not be queued nor stored.
+     */
+    public void onDropped() {
+        mDropped.incrementAndGet();
+    }
+
+    /**
+     * Queued messages were written to the socket.
+     */
+    public void onFlushed(int frames, int bytes) {
+        mFlushes.incrementAndGet();
+        mFramesSent.addAndGet(frames);
+        mBytesSent.addAndGet(bytes);
+    }
+
+    /**
+     * Stored messages were written to the socket.
+     */
+    public void onReplayed(int frames, int bytes) {
+        mFramesReplayed.addAndGet(frames);
+        mFramesSent.addAndGet(frames);
+        mBytesSent.addAndGet(bytes);
+    }
+
+    /**
+     * Unacknowledged QoS 1 or 2 messages were written again.
+     */
+    public void onRetransmitted(int frames) {
+        mRetransmitted.addAndGet(frames);
+    }
+
+    /**
+     * Sensor records were encoded in one batch payload.
+     * @param records number of records in batch
+     * @param recordBytes size of the records encoded one by one
+     * @param bytes size of the batch payload
+     * @param encodeTime encoding time in us
+     */
+    public void onBatch(int records, int recordBytes, int bytes, long encodeTime) {
+        mBatchRecords.addAndGet(records);
+        mBatchRecordBytes.addAndGet(recordBytes);
+        mBatchBytes.addAndGet(bytes);
+        mBatchEncodeTime.record(encodeTime);
+    }
+
+    public void onReceived(int bytes) {
+        mFramesReceived.incrementAndGet();
+        mBytesReceived.addAndGet(bytes);
+    }
+
+    public void onPing() {
+        mPings.incrementAndGet();
+    }
+
+    public void onConnectAttempt() {
+        mConnectAttempts.incrementAndGet();
+    }
+
+    /**
+     * @param reconnectLatency time since connection was lost in ms, or -1 for a first connection
+     */
+    public void onConnected(long reconnectLatency) {
+        mConnections.incrementAndGet();
+        if (reconnectLatency >= 0) {
+            mReconnectLatency.record(reconnectLatency);
+        }
+    }
+
+    /**
+     * @param handshakeTime TCP connect and mqtt CONNECT to CONNACK time in ms
+     */
+    public void onHandshake(long handshakeTime) {
+        mHandshakeTime.record(handshakeTime);
+    }
+
+    /**
+     * A client came back while the connection was still open, counted as a saved handshake
+     * of the mean measured duration.
+     */
+    public void onReconnectAvoided() {
+        mReconnectsAvoided.incrementAndGet();
+        mHandshakeSaved.addAndGet(mHandshakeTime.getMean());
+    }
+
+    public void onConnectionLost() {
+        mConnectionsLost.incrementAndGet();
+    }
+
+    /**
+     * @return histogram of enqueue to socket write latency in us
+     */
+    public LatencyHistogram getSendLatency() {
+        return mSendLatency;
+    }
+
+    public LatencyHistogram getQueueDepth() {
+        return mQueueDepth;
+    }
+
+    public LatencyHistogram getReconnectLatency() {
+        return mReconnectLatency;
+    }
+
+    /**
+     * @return histogram of QoS 1 and 2 publish to PUBACK or PUBCOMP latency in ms
+     */
+    public LatencyHistogram getAckLatency() {
+        return mAckLatency;
+    }
+
+    /**
+     * @return histogram of records batch encoding time in us
+     */
+    public LatencyHistogram getBatchEncodeTime() {
+        return mBatchEncodeTime;
+    }
+
+    /**
+     * @return size of batched records encoded one by one divided by size of batch payloads, 0 without batch
+     */
+    public double getBatchRatio() {
+        long bytes = mBatchBytes.get();
+        return bytes > 0 ? (double) mBatchRecordBytes.get() / bytes : 0;
+    }
+
+    public long getPublishedCount() {
+        return mPublished.get();
+    }
+
+    public long getDroppedCount() {
+        return mDropped.get();
+    }
+
+    public long getFramesSent() {
+        return mFramesSent.get();
+    }
+
+    public long getBytesSent() {
+        return mBytesSent.get();
+    }
+
+    public long getFramesReceived() {
+        return mFramesReceived.get();
+    }
+
+    public long getRetransmittedCount() {
+        return mRetransmitted.get();
+    }
+
+    /**
+     * @return histogram of connection handshake time in ms
+     */
+    public LatencyHistogram getHandshakeTime() {
+        return mHandshakeTime;
+    }
+
+    public long getReconnectsAvoided() {
+        return mReconnectsAvoided.get();
+    }
+
+    /**
+     * @return estimated handshake time saved by kept connections in ms
+     */
+    public long getHandshakeSaved() {
+        return mHandshakeSaved.get();
+    }
+
+    public long getReconnectCount() {
+        return mReconnectLatency.getCount();
+    }
+
+    /**
+     * Append all metrics as "name=value" entries.
+     * Histograms are written as count/mean/p50/p90/p99/max.
+     * @param sb destination
+     * @param now current time in ms
+     * @param separator entries separator
+     * @return given builder
+     */
+    public StringBuilder appendTo(StringBuilder sb, long now, String separator) {
+        sb.append("uptime_s=").append((now - mStartTime) / 1000).append(separator);
+        sb.append("published=").append(mPublished.get()).append(separator);
+        sb.append("overflows=").append(mOverflows.get()).append(separator);
+        sb.append("stored=").append(mStored.get()).append(separator);
+        sb.append("dropped=").append(mDropped.get()).append(separator);
+        sb.append("flushes=").append(mFlushes.get()).append(separator);
+        sb.append("frames_sent=").append(mFramesSent.get()).append(separator);
+        sb.append("bytes_sent=").append(mBytesSent.get()).append(separator);
+        sb.append("frames_replayed=").append(mFramesReplayed.get()).append(separator);
+        sb.append("frames_received=").append(mFramesReceived.get()).append(separator);
+        sb.append("bytes_received=").append(mBytesReceived.get()).append(separator);
+        sb.append("pings=").append(mPings.get()).append(separator);
+        sb.append("connect_attempts=").append(mConnectAttempts.get()).append(separator);
+        sb.append("connections=").append(mConnections.get()).append(separator);
+        sb.append("connections_lost=").append(mConnectionsLost.get()).append(separator);
+        sb.append("reconnects_avoided=").append(mReconnectsAvoided.get()).append(separator);
+        sb.append("handshake_saved_ms=").append(mHandshakeSaved.get()).append(separator);
+        sb.append("retransmitted=").append(mRetransmitted.get()).append(separator);
+        sb.append("batch_records=").append(mBatchRecords.get()).append(separator);
+        sb.append("batch_bytes=").append(mBatchBytes.get()).append(separator);
+        // two decimals without String.format allocations
+        long ratio = Math.round(getBatchRatio() * 100);
+        sb.append("batch_ratio=").append(ratio / 100).append('.').append(ratio % 100 / 10).append(ratio % 10).append(separator);
+        mSendLatency.appendTo(sb.append("send_latency_us=")).append(separator);
+        mQueueDepth.appendTo(sb.append("queue_depth=")).append(separator);
+        mAckLatency.appendTo(sb.append("ack_latency_ms=")).append(separator);
+        mBatchEncodeTime.appendTo(sb.append("batch_encode_us=")).append(separator);
+        mHandshakeTime.appendTo(sb.append("handshake_ms=")).append(separator);
+        mReconnectLatency.appendTo(sb.append("reconnect_latency_ms="));
+        return sb;
+    }
+}
@@ -0,0 +1,48 @@
+package com.qboileau.mqtt;
+
+import org.meqantt.MqttClient;
+import org.meqantt.MqttException;
+
+import java.io.OutputStream;
+
+/**
+ * Mqtt connection used by the service, implemented over MeQanTT blocking {@link org.meqantt.SocketClient}
+ * by {@link QosSocketClient} or over a non blocking channel by {@link NioClient}.
+ * Both notify {@link org.meqantt.MqttListener} callbacks and publish acknowledgements.
+ * @author qboileau
+ */
+public interface MqttTransport extends MqttClient {
+
+    /**
+     * Receive PUBACK, PUBREC and PUBCOMP, on the transport reader thread.
+     */
+    interface AckListener {
+        /**
+         * @param type message type, {@link QosPublisher#PUBACK}, {@link QosPublisher#PUBREC} or {@link QosPublisher#PUBCOMP}
+         * @param messageId acknowledged message id
+         */
+        void onAck(int type, int messageId);
+    }
+
+    /**
+     * Connect and wait for the broker CONNACK.
+     * @param host
+     * @param port
+     * @param timeout connection timeout in ms
+     * @param keepAlive keep alive given to the broker in s
+     * @throws MqttException
+     */
+    void connect(String host, int port, int timeout, int keepAlive) throws MqttException;
+
+    /**
+     * @return stream to write pre-encoded frames on the current connection
+     * @throws MqttException if not connected
+     */
+    OutputStream getOutputStream() throws MqttException;
+
+    /**
+     * Close connection without sending a DISCONNECT message,
+     * used when connection is already broken. Listeners are not notified.
+     */
+    void close();
+}
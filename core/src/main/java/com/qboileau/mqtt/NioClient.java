@@ -0,0 +1,577 @@
+package com.qboileau.mqtt;
+
+import org.meqantt.AbstractMqttClient;
+import org.meqantt.MqttException;
+import org.meqantt.MqttListener;
+import org.meqantt.message.ConnAckMessage;
+import org.meqantt.message.ConnectMessage;
+import org.meqantt.message.DisconnectMessage;
+import org.meqantt.message.Message;
+import org.meqantt.message.PingReqMessage;
+import org.meqantt.message.PublishMessage;
+import org.meqantt.message.QoS;
+import org.meqantt.message.SubscribeMessage;
+import org.meqantt.message.UnsubscribeMessage;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Mqtt client over a non blocking {@link SocketChannel}.
+ *
+ * A single event loop thread per connection reads and writes the socket, instead of
+ * MeQanTT reader thread plus blocking writes from the caller thread.
+ * Frames written by callers are copied into pooled direct buffers and sent with one gathering
+ * write per loop, incoming frames are decoded incrementally from a direct read buffer.
+ * Control messages are encoded with MeQanTT messages, as its netty encoder does.
+ * With an {@link InboundQueue}, received payloads are copied straight from the read buffer
+ * to the queue, and reads are paused while the queue throttles.
+ * @author qboileau
+ */
+public class NioClient extends AbstractMqttClient implements MqttTransport {
+
+    private static final int CONNACK = 2;
+    private static final int PUBLISH = 3;
+    private static final int PUBACK = 4;
+    private static final int PUBREC = 5;
+    private static final int PUBREL = 6;
+    private static final int PUBCOMP = 7;
+
+    private static final String THREAD_NAME = "MqttNio";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int READ_BUFFER_SIZE = 8 * 1024; //8KB
+    private static final int CHUNK_SIZE = 8 * 1024; //8KB
+    private static final int MAX_POOLED_CHUNKS = 16;
+    private static final int MAX_PENDING_BYTES = 256 * 1024; //256KB
+    private static final long WRITE_TIMEOUT = 5000; //5s
+    private static final long THROTTLE_POLL_INTERVAL = 50; //50ms
+    //remaining length takes at most 4 bytes
+    private static final int MAX_LENGTH_BYTES = 4;
+    public static final int DEFAULT_MAX_FRAME_SIZE = 1024 * 1024; //1MB
+
+    private final AckListener mAckListener;
+    private volatile Connection mConnection;
+    private volatile InboundQueue mInbound;
+    private volatile int mMaxFrameSize = DEFAULT_MAX_FRAME_SIZE;
+
+    public NioClient(String id, AckListener ackListener) {
+        super();
+        this.id = id;
+        this.mAckListener = ackListener;
+    }
+
+    /**
+     * Queue received messages instead of notifying listeners on the loop thread.
+     * @param inbound queue of received messages, or null to notify listeners
+     */
+    public void setInboundQueue(InboundQueue inbound) {
+        this.mInbound = inbound;
+    }
+
+    /**
+     * @param maxFrameSize maximum remaining length of a received frame in bytes,
+     *                     connection is closed as a protocol error when a larger frame is announced
+     */
+    public void setMaxFrameSize(int maxFrameSize) {
+        this.mMaxFrameSize = maxFrameSize;
+    }
+
+    @Override
+    public boolean isConnected() {
+        Connection connection = mConnection;
+        return connection != null && connection.isConnected();
+    }
+
+    @Override
+    public void connect(String host, int port) throws MqttException {
+        connect(host, port, 5000, 300);
+    }
+
+    @Override
+    public void connect(String host, int port, int timeout, int keepAlive) throws MqttException {
+        close();
+        Connection connection = new Connection();
+        mConnection = connection;
+        try {
+            connection.open(new InetSocketAddress(host, port), new ConnectMessage(id, false, keepAlive).toBytes());
+            if (!connection.awaitConnAck(timeout)) {
+                throw new MqttException("No CONNACK from " + host + ":" + port + " after " + timeout + "ms");
+            }
+        } catch (IOException e) {
+            connection.close();
+            throw new MqttException(e.getMessage(), e);
+        } catch (InterruptedException e) {
+            connection.close();
+            throw new MqttException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Send a DISCONNECT message, connection is closed once it is written.
+     */
+    @Override
+    public void disconnect() throws MqttException {
+        Connection connection = connection();
+        send(connection, new DisconnectMessage());
+        connection.closeAfterFlush();
+    }
+
+    @Override
+    public void close() {
+        Connection connection = mConnection;
+        if (connection != null) {
+            connection.close();
+        }
+    }
+
+    @Override
+    public void subscribe(String topic) throws MqttException {
+        send(connection(), new SubscribeMessage(topic, QoS.AT_MOST_ONCE));
+    }
+
+    @Override
+    public void unsubscribe(String topic) throws MqttException {
+        send(connection(), new UnsubscribeMessage(topic));
+    }
+
+    @Override
+    public void publish(String topic, String message) throws MqttException {
+        send(connection(), new PublishMessage(topic, message));
+    }
+
+    @Override
+    public void ping() throws MqttException {
+        send(connection(), new PingReqMessage());
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws MqttException {
+        return connection().mOutput;
+    }
+
+    private Connection connection() throws MqttException {
+        Connection connection = mConnection;
+        if (connection == null || !connection.isConnected()) {
+            throw new MqttException("Client not connected");
+        }
+        return connection;
+    }
+
+    private static void send(Connection connection, Message message) throws MqttException {
+        byte[] frame = message.toBytes();
+        try {
+            connection.write(frame, 0, frame.length, true);
+            connection.flush();
+        } catch (IOException e) {
+            throw new MqttException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * One socket connection and its event loop.
+     */
+    private final class Connection implements Runnable {
+
+        private final Object mLock = new Object();
+        // chunks filled by writers, in write mode, guarded by mLock
+        private final ArrayDeque<ByteBuffer> mQueue = new ArrayDeque<ByteBuffer>();
+        private final ArrayDeque<ByteBuffer> mPool = new ArrayDeque<ByteBuffer>();
+        private int mPendingBytes = 0;
+        private boolean mWakeupPending = false;
+        private boolean mCloseAfterFlush = false;
+
+        // chunks owned by the loop, in read mode
+        private ByteBuffer[] mWriting = new ByteBuffer[MAX_POOLED_CHUNKS];
+        private int mWritingCount = 0;
+        private ByteBuffer mIn = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        // reads paused while inbound queue throttles, on loop thread
+        private boolean mPaused = false;
+
+        private final CountDownLatch mConnAck = new CountDownLatch(1);
+        private final OutputStream mOutput = new ConnectionOutputStream(this);
+        private SocketChannel mChannel;
+        private Selector mSelector;
+        private volatile boolean mOpen = false;
+        private volatile boolean mAccepted = false;
+        private volatile boolean mClosedLocally = false;
+        private volatile IOException mFailure;
+
+        void open(InetSocketAddress address, byte[] connect) throws IOException {
+            mSelector = Selector.open();
+            mChannel = SocketChannel.open();
+            mChannel.configureBlocking(false);
+            mChannel.socket().setTcpNoDelay(true);
+            mOpen = true;
+            write(connect, 0, connect.length, false);
+            if (mChannel.connect(address)) {
+                mChannel.register(mSelector, SelectionKey.OP_READ);
+            } else {
+                mChannel.register(mSelector, SelectionKey.OP_CONNECT);
+            }
+            Thread thread = new Thread(this, THREAD_NAME);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        boolean awaitConnAck(long timeout) throws IOException, InterruptedException {
+            boolean received = mConnAck.await(timeout, TimeUnit.MILLISECONDS);
+            if (mFailure != null) {
+                throw mFailure;
+            }
+            return received;
+        }
+
+        boolean isConnected() {
+            return mOpen && mAccepted;
+        }
+
+        /**
+         * Copy bytes to the write queue, sent on next {@link #flush()}.
+         * @param block wait while too many bytes are pending, false on the loop thread
+         */
+        void write(byte[] b, int off, int len, boolean block) throws IOException {
+            synchronized (mLock) {
+                if (block) {
+                    long end = System.currentTimeMillis() + WRITE_TIMEOUT;
+                    while (mOpen && mPendingBytes + len > MAX_PENDING_BYTES && mPendingBytes > 0) {
+                        long wait = end - System.currentTimeMillis();
+                        if (wait <= 0) {
+                            throw new IOException("Write timeout, " + mPendingBytes + " bytes pending");
+                        }
+                        try {
+                            mLock.wait(wait);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new IOException("Write interrupted");
+                        }
+                    }
+                }
+                if (!mOpen) {
+                    throw new IOException("Connection closed");
+                }
+                mPendingBytes += len;
+                ByteBuffer chunk = mQueue.peekLast();
+                while (len > 0) {
+                    if (chunk == null || !chunk.hasRemaining()) {
+                        chunk = mPool.isEmpty() ? ByteBuffer.allocateDirect(CHUNK_SIZE) : mPool.pollFirst();
+                        mQueue.addLast(chunk);
+                    }
+                    int count = Math.min(len, chunk.remaining());
+                    chunk.put(b, off, count);
+                    off += count;
+                    len -= count;
+                }
+            }
+        }
+
+        /**
+         * Wake up the loop to send queued bytes.
+         */
+        void flush() {
+            synchronized (mLock) {
+                if (mWakeupPending || mQueue.isEmpty()) {
+                    return;
+                }
+                mWakeupPending = true;
+            }
+            mSelector.wakeup();
+        }
+
+        void closeAfterFlush() {
+            mClosedLocally = true;
+            synchronized (mLock) {
+                mCloseAfterFlush = true;
+            }
+            mSelector.wakeup();
+        }
+
+        void close() {
+            mClosedLocally = true;
+            shutdown();
+        }
+
+        private void shutdown() {
+            synchronized (mLock) {
+                if (!mOpen) {
+                    return;
+                }
+                mOpen = false;
+                mLock.notifyAll();
+            }
+            mConnAck.countDown();
+            try {
+                mChannel.close();
+            } catch (IOException e) {
+                // already closed
+            }
+            mSelector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (mOpen) {
+                    mSelector.select(mPaused ? THROTTLE_POLL_INTERVAL : 0);
+                    if (mPaused && !isThrottling()) {
+                        // handle buffered frames, then read again
+                        mPaused = false;
+                        parse();
+                        updateInterest();
+                    }
+                    Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isConnectable()) {
+                            mChannel.finishConnect();
+                            key.interestOps(SelectionKey.OP_READ);
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            read();
+                        }
+                    }
+                    if (mOpen && mChannel.isConnected() && writePending()) {
+                        shutdown();
+                    }
+                }
+            } catch (IOException e) {
+                if (mOpen && !mClosedLocally) {
+                    mFailure = e;
+                }
+            } finally {
+                boolean notify = mAccepted && !mClosedLocally;
+                shutdown();
+                try {
+                    mSelector.close();
+                } catch (IOException e) {
+                    // nothing to release
+                }
+                if (notify) {
+                    for (MqttListener listener : listeners) {
+                        listener.disconnected();
+                    }
+                }
+            }
+        }
+
+        /**
+         * Gathering write of all queued chunks.
+         * @return true if connection must be closed, all bytes being written after a DISCONNECT
+         */
+        private boolean writePending() throws IOException {
+            boolean closeAfterFlush;
+            synchronized (mLock) {
+                mWakeupPending = false;
+                while (!mQueue.isEmpty()) {
+                    ByteBuffer chunk = mQueue.pollFirst();
+                    chunk.flip();
+                    if (mWritingCount == mWriting.length) {
+                        ByteBuffer[] grown = new ByteBuffer[mWriting.length * 2];
+                        System.arraycopy(mWriting, 0, grown, 0, mWritingCount);
+                        mWriting = grown;
+                    }
+                    mWriting[mWritingCount++] = chunk;
+                }
+                closeAfterFlush = mCloseAfterFlush;
+            }
+            if (mWritingCount == 0) {
+                return closeAfterFlush;
+            }
+
+            long written = mChannel.write(mWriting, 0, mWritingCount);
+            int done = 0;
+            while (done < mWritingCount && !mWriting[done].hasRemaining()) {
+                done++;
+            }
+            synchronized (mLock) {
+                mPendingBytes -= written;
+                for (int i = 0; i < done; i++) {
+                    if (mPool.size() < MAX_POOLED_CHUNKS) {
+                        mWriting[i].clear();
+                        mPool.addLast(mWriting[i]);
+                    }
+                }
+                mLock.notifyAll();
+            }
+            System.arraycopy(mWriting, done, mWriting, 0, mWritingCount - done);
+            for (int i = mWritingCount - done; i < mWritingCount; i++) {
+                mWriting[i] = null;
+            }
+            mWritingCount -= done;
+
+            updateInterest();
+            return closeAfterFlush && mWritingCount == 0;
+        }
+
+        /**
+         * Wait for readability unless reads are paused, and for writability only while bytes are left.
+         */
+        private void updateInterest() {
+            SelectionKey key = mChannel.keyFor(mSelector);
+            int ops = (mPaused ? 0 : SelectionKey.OP_READ) | (mWritingCount > 0 ? SelectionKey.OP_WRITE : 0);
+            if (key.interestOps() != ops) {
+                key.interestOps(ops);
+            }
+        }
+
+        private boolean isThrottling() {
+            InboundQueue inbound = mInbound;
+            return inbound != null && inbound.isThrottling();
+        }
+
+        /**
+         * Read available bytes and handle complete frames, a partial frame stays in buffer.
+         */
+        private void read() throws IOException {
+            int read = mChannel.read(mIn);
+            if (read < 0) {
+                throw new IOException("Connection closed by broker");
+            }
+            parse();
+        }
+
+        /**
+         * Handle complete frames of the read buffer, until a partial frame or a throttling inbound queue.
+         */
+        private void parse() throws IOException {
+            ByteBuffer in = mIn;
+            in.flip();
+            while (in.remaining() >= 2) {
+                if (isThrottling()) {
+                    mPaused = true;
+                    updateInterest();
+                    break;
+                }
+                int start = in.position();
+                int header = in.get() & 0xFF;
+                int length = 0;
+                int multiplier = 1;
+                int digit = 0x80;
+                int lengthBytes = 0;
+                while ((digit & 0x80) != 0 && in.hasRemaining()) {
+                    digit = in.get() & 0xFF;
+                    length += (digit & 0x7F) * multiplier;
+                    multiplier *= 128;
+                    if (++lengthBytes == MAX_LENGTH_BYTES && (digit & 0x80) != 0) {
+                        throw new IOException("Malformed remaining length");
+                    }
+                }
+                if ((digit & 0x80) == 0 && length > mMaxFrameSize) {
+                    throw new IOException("Frame of " + length + " bytes exceeds maximum of " + mMaxFrameSize);
+                }
+                if ((digit & 0x80) != 0 || in.remaining() < length) {
+                    in.position(start);
+                    if (start == 0 && in.limit() == in.capacity()) {
+                        // frame larger than buffer
+                        ByteBuffer grown = ByteBuffer.allocateDirect(Math.max(length + 5, in.capacity() * 2));
+                        grown.put(in);
+                        grown.flip();
+                        mIn = in = grown;
+                    }
+                    break;
+                }
+                int body = in.position();
+                handle(header, in, body, length);
+                in.position(body + length);
+            }
+            in.compact();
+        }
+
+        private void handle(int header, ByteBuffer in, int body, int length) throws IOException {
+            int type = (header >> 4) & 0x0F;
+            switch (type) {
+                case CONNACK:
+                    int code = in.get(body + 1) & 0xFF;
+                    ConnAckMessage.ConnectionStatus[] statuses = ConnAckMessage.ConnectionStatus.values();
+                    ConnAckMessage.ConnectionStatus status = code < statuses.length
+                            ? statuses[code] : ConnAckMessage.ConnectionStatus.SERVER_UNAVAILABLE;
+                    mAccepted = status == ConnAckMessage.ConnectionStatus.ACCEPTED;
+                    for (MqttListener listener : listeners) {
+                        listener.connectAck(status);
+                    }
+                    mConnAck.countDown();
+                    break;
+                case PUBLISH:
+                    int topicLength = in.getShort(body) & 0xFFFF;
+                    int qos = (header >> 1) & 0x03;
+                    int payload = body + 2 + topicLength + (qos > 0 ? 2 : 0);
+                    byte[] topic = new byte[topicLength];
+                    in.position(body + 2);
+                    in.get(topic);
+                    if (qos > 0) {
+                        reply(qos == 1 ? 0x40 : 0x50, in, body + 2 + topicLength);
+                    }
+                    String topicName = new String(topic, UTF8);
+                    InboundQueue inbound = mInbound;
+                    if (inbound != null) {
+                        inbound.offer(topicName, in, payload, body + length - payload);
+                        break;
+                    }
+                    byte[] data = new byte[body + length - payload];
+                    in.position(payload);
+                    in.get(data);
+                    for (MqttListener listener : listeners) {
+                        listener.publishArrived(topicName, data);
+                    }
+                    break;
+                case PUBACK:
+                case PUBREC:
+                case PUBCOMP:
+                    if (mAckListener != null) {
+                        mAckListener.onAck(type, in.getShort(body) & 0xFFFF);
+                    }
+                    break;
+                case PUBREL:
+                    reply(0x70, in, body);
+                    break;
+                default:
+                    // SUBACK, UNSUBACK and PINGRESP need no handling
+            }
+        }
+
+        private void reply(int header, ByteBuffer in, int idOffset) throws IOException {
+            byte[] frame = {(byte) header, 0x02, in.get(idOffset), in.get(idOffset + 1)};
+            write(frame, 0, frame.length, false);
+        }
+    }
+
+    /**
+     * Frames written on a connection, bytes are sent by the event loop on {@link #flush()}.
+     */
+    private static final class ConnectionOutputStream extends OutputStream {
+
+        private final Connection mConnection;
+
+        private ConnectionOutputStream(Connection connection) {
+            this.mConnection = connection;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            mConnection.write(b, off, len, true);
+        }
+
+        @Override
+        public void flush() {
+            mConnection.flush();
+        }
+    }
+}
@@ -0,0 +1,327 @@
+package com.qboileau.mqtt;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Disk backed store and forward queue of encoded frames.
+ *
+ * Frames are appended to memory-mapped segment files as [length][frame] records.
+ * The length is written after the frame so an interrupted append is ignored on recovery,
+ * and delivered records are marked with a negative length so they are not replayed
+ * after a crash. When the maximum number of segments is reached, the oldest segment is evicted.
+ *
+ * Reading is transactional : frames returned by {@link #next()} are only removed
+ * by {@link #commit()}, {@link #rollback()} makes them available again.
+ * @author qboileau
+ */
+public class Outbox {
+
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final int RECORD_HEADER = 4;
+
+    private final File mDirectory;
+    private final int mSegmentSize;
+    private final int mMaxSegments;
+    private final List<Segment> mSegments = new ArrayList<Segment>();
+    private long mNextSegmentId = 0;
+
+    private int mPendingCount = 0;
+    private int mReadCount = 0;
+    private long mAppendedCount = 0;
+    private long mReplayedCount = 0;
+    private long mEvictedCount = 0;
+    private int mRecoveredCount = 0;
+
+    /**
+     * Open an outbox, frames left by a previous instance are recovered.
+     * @param directory segments directory
+     * @param segmentSize size in bytes of each segment file
+     * @param maxSegments maximum number of segments kept on disk
+     * @throws IOException
+     */
+    public Outbox(File directory, int segmentSize, int maxSegments) throws IOException {
+        if (maxSegments < 1) {
+            throw new IllegalArgumentException("At least one segment is required");
+        }
+        this.mDirectory = directory;
+        this.mSegmentSize = segmentSize;
+        this.mMaxSegments = maxSegments;
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create outbox directory " + directory);
+        }
+        recover();
+    }
+
+    private void recover() throws IOException {
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.endsWith(SEGMENT_SUFFIX)) {
+                continue;
+            }
+            long id;
+            try {
+                id = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            if (file.length() != mSegmentSize) {
+                // written with another segment size
+                file.delete();
+                continue;
+            }
+            Segment segment = new Segment(file, mSegmentSize);
+            segment.scan();
+            mNextSegmentId = Math.max(mNextSegmentId, id + 1);
+            if (segment.pendingCount == 0) {
+                segment.delete();
+            } else {
+                mSegments.add(segment);
+                mPendingCount += segment.pendingCount;
+            }
+        }
+        while (mSegments.size() > mMaxSegments) {
+            evictOldest();
+        }
+        mRecoveredCount = mPendingCount;
+    }
+
+    /**
+     * Append a frame, the oldest segment is evicted when outbox is full.
+     * @param frame encoded frame
+     * @return false if frame is larger than a segment
+     * @throws IOException
+     */
+    public synchronized boolean append(byte[] frame) throws IOException {
+        if (frame.length == 0 || frame.length + RECORD_HEADER > mSegmentSize) {
+            return false;
+        }
+        Segment tail = mSegments.isEmpty() ? null : mSegments.get(mSegments.size() - 1);
+        if (tail == null || !tail.canAppend(frame.length)) {
+            if (mSegments.size() >= mMaxSegments) {
+                evictOldest();
+            }
+            tail = new Segment(new File(mDirectory, segmentName(mNextSegmentId++)), mSegmentSize);
+            mSegments.add(tail);
+        }
+        tail.append(frame);
+        mPendingCount++;
+        mAppendedCount++;
+        return true;
+    }
+
+    /**
+     * Next frame not yet read since last commit or rollback.
+     * @return frame or null if all frames were read
+     */
+    public synchronized byte[] next() {
+        for (Segment segment : mSegments) {
+            byte[] frame = segment.next();
+            if (frame != null) {
+                mReadCount++;
+                return frame;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Mark all read frames as delivered.
+     */
+    public synchronized void commit() {
+        int i = 0;
+        while (i < mSegments.size()) {
+            Segment segment = mSegments.get(i);
+            segment.commit();
+            boolean isTail = i == mSegments.size() - 1;
+            if (segment.pendingCount == 0 && !isTail) {
+                mSegments.remove(i);
+                segment.delete();
+            } else {
+                i++;
+            }
+        }
+        mPendingCount -= mReadCount;
+        mReplayedCount += mReadCount;
+        mReadCount = 0;
+    }
+
+    /**
+     * Make all read frames available again.
+     */
+    public synchronized void rollback() {
+        for (Segment segment : mSegments) {
+            segment.rollback();
+        }
+        mReadCount = 0;
+    }
+
+    /**
+     * Write mapped segments to disk.
+     */
+    public synchronized void sync() {
+        for (Segment segment : mSegments) {
+            segment.buffer.force();
+        }
+    }
+
+    public synchronized void close() {
+        for (Segment segment : mSegments) {
+            segment.close();
+        }
+        mSegments.clear();
+    }
+
+    private void evictOldest() {
+        Segment oldest = mSegments.remove(0);
+        mReadCount -= oldest.readCount;
+        mPendingCount -= oldest.pendingCount;
+        mEvictedCount += oldest.pendingCount;
+        oldest.delete();
+    }
+
+    private static String segmentName(long id) {
+        return String.format("%016d", id) + SEGMENT_SUFFIX;
+    }
+
+    /**
+     * @return number of frames waiting for delivery.
+     */
+    public synchronized int size() {
+        return mPendingCount;
+    }
+
+    public synchronized boolean isEmpty() {
+        return mPendingCount == 0;
+    }
+
+    public synchronized long getAppendedCount() {
+        return mAppendedCount;
+    }
+
+    public synchronized long getReplayedCount() {
+        return mReplayedCount;
+    }
+
+    /**
+     * @return number of frames lost because outbox was full.
+     */
+    public synchronized long getEvictedCount() {
+        return mEvictedCount;
+    }
+
+    /**
+     * @return number of pending frames found when outbox was opened.
+     */
+    public synchronized int getRecoveredCount() {
+        return mRecoveredCount;
+    }
+
+    /**
+     * Memory-mapped segment file.
+     */
+    private static final class Segment {
+        private final File file;
+        private final RandomAccessFile raf;
+        private final MappedByteBuffer buffer;
+        private int writePosition = 0;
+        private int readPosition = 0;
+        private int committedPosition = 0;
+        private int pendingCount = 0;
+        private int readCount = 0;
+
+        private Segment(File file, int size) throws IOException {
+            this.file = file;
+            this.raf = new RandomAccessFile(file, "rw");
+            this.raf.setLength(size);
+            this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+
+        /**
+         * Rebuild positions from records on disk.
+         */
+        private void scan() {
+            int position = 0;
+            while (position + RECORD_HEADER <= buffer.capacity()) {
+                int length = buffer.getInt(position);
+                int size = Math.abs(length);
+                if (length == 0 || position + RECORD_HEADER + size > buffer.capacity()) {
+                    break;
+                }
+                position += RECORD_HEADER + size;
+                if (length < 0) {
+                    committedPosition = position;
+                } else {
+                    pendingCount++;
+                }
+            }
+            writePosition = position;
+            readPosition = committedPosition;
+        }
+
+        private boolean canAppend(int length) {
+            return writePosition + RECORD_HEADER + length <= buffer.capacity();
+        }
+
+        private void append(byte[] frame) {
+            buffer.position(writePosition + RECORD_HEADER);
+            buffer.put(frame);
+            buffer.putInt(writePosition, frame.length);
+            writePosition += RECORD_HEADER + frame.length;
+            pendingCount++;
+        }
+
+        private byte[] next() {
+            if (readPosition >= writePosition) {
+                return null;
+            }
+            int length = buffer.getInt(readPosition);
+            byte[] frame = new byte[length];
+            buffer.position(readPosition + RECORD_HEADER);
+            buffer.get(frame);
+            readPosition += RECORD_HEADER + length;
+            readCount++;
+            return frame;
+        }
+
+        private void commit() {
+            while (committedPosition < readPosition) {
+                int length = buffer.getInt(committedPosition);
+                buffer.putInt(committedPosition, -length);
+                committedPosition += RECORD_HEADER + length;
+                pendingCount--;
+            }
+            readCount = 0;
+        }
+
+        private void rollback() {
+            readPosition = committedPosition;
+            readCount = 0;
+        }
+
+        private void close() {
+            try {
+                raf.close();
+            } catch (IOException e) {
+                // nothing to do, file is not used anymore
+            }
+        }
+
+        private void delete() {
+            close();
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.qboileau.mqtt;
+
+/**
+ * Named set of tuning values trading battery for latency and resolution.
+ *
+ * A profile sets sensor sampling, dead-band filter, publish batching, keep alive and QoS together.
+ * Sensor events are batched by the sensor hub up to half the minimum publish interval.
+ * @author qboileau
+ */
+public final class PerformanceProfile {
+
+    public static final String CUSTOM = "custom";
+
+    public static final PerformanceProfile LOW_POWER = new PerformanceProfile("low_power",
+            1000, 2f, 30, 600, 50, 30000, 1800, 0);
+
+    /** Previous compile time settings. */
+    public static final PerformanceProfile BALANCED = new PerformanceProfile("balanced",
+            200, 1f, 5, 60, 20, 1000, 900, 0);
+
+    public static final PerformanceProfile HIGH_FIDELITY = new PerformanceProfile("high_fidelity",
+            20, 0.1f, 1, 10, 1, 0, 60, 1);
+
+    private static final PerformanceProfile[] PROFILES = {LOW_POWER, BALANCED, HIGH_FIDELITY};
+
+    public final String name;
+    /** Sensor sampling period (ms). */
+    public final int samplingPeriod;
+    /** Dead-band of published values. */
+    public final float deadBand;
+    /** Minimum time between two published samples (s). */
+    public final int minInterval;
+    /** Maximum time between two published samples, even without change (s). */
+    public final int maxInterval;
+    /** Messages written in one socket write. */
+    public final int batchSize;
+    /** Maximum delay of queued messages (ms). */
+    public final int flushLatency;
+    /** Mqtt keep alive (s). */
+    public final int keepAlive;
+    /** QoS of sensor topics. */
+    public final int qos;
+
+    private PerformanceProfile(String name, int samplingPeriod, float deadBand, int minInterval, int maxInterval,
+                               int batchSize, int flushLatency, int keepAlive, int qos) {
+        this.name = name;
+        this.samplingPeriod = samplingPeriod;
+        this.deadBand = deadBand;
+        this.minInterval = minInterval;
+        this.maxInterval = maxInterval;
+        this.batchSize = batchSize;
+        this.flushLatency = flushLatency;
+        this.keepAlive = keepAlive;
+        this.qos = qos;
+    }
+
+    /**
+     * @param name profile name
+     * @return profile, or null for {@link #CUSTOM} and unknown names
+     */
+    public static PerformanceProfile forName(String name) {
+        for (PerformanceProfile profile : PROFILES) {
+            if (profile.name.equals(name)) {
+                return profile;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param minInterval minimum publish interval in s
+     * @return sensor events batching latency in us
+     */
+    public static int maxReportLatency(int minInterval) {
+        return (int) Math.min(Integer.MAX_VALUE, minInterval * 1000000L / 2);
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,162 @@
+package com.qboileau.mqtt;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+
+/**
+ * Bounded queue of encoded PUBLISH frames.
+ *
+ * Frames are queued by the caller thread and written by the mqtt thread in one
+ * socket write per flush, instead of one write (and one radio wakeup) per message.
+ * @author qboileau
+ */
+public class PublishBatcher {
+
+    private final int mCapacity;
+    private final ArrayDeque<byte[]> mFrames;
+    // enqueue time (ns) of each pending frame, ring in frames order
+    private final long[] mEnqueueTimes;
+    private int mTimesHead = 0;
+
+    // only used by the flushing thread
+    private final ByteArrayOutputStream mBuffer = new ByteArrayOutputStream(1024);
+    private final long[] mFlushTimes;
+
+    private long mFlushCount = 0;
+    private long mFrameCount = 0;
+    private int mLastFlushFrames = 0;
+    private int mLastFlushBytes = 0;
+    private long mDroppedCount = 0;
+
+    public PublishBatcher(int capacity) {
+        this.mCapacity = capacity;
+        this.mFrames = new ArrayDeque<byte[]>(capacity);
+        this.mEnqueueTimes = new long[capacity];
+        this.mFlushTimes = new long[capacity];
+    }
+
+    /**
+     * Queue an encoded frame.
+     * @param frame complete mqtt frame
+     * @return number of pending frames after insertion, or -1 if the queue is full and frame was dropped.
+     */
+    public synchronized int offer(byte[] frame) {
+        if (mFrames.size() >= mCapacity) {
+            mDroppedCount++;
+            return -1;
+        }
+        mEnqueueTimes[(mTimesHead + mFrames.size()) % mCapacity] = System.nanoTime();
+        mFrames.addLast(frame);
+        return mFrames.size();
+    }
+
+    /**
+     * Write all pending frames in a single write on given stream.
+     * Frames are removed once written, they stay queued if the write fails.
+     * Must always be called from the same thread.
+     * @param out socket output stream
+     * @return number of frames written
+     * @throws IOException
+     */
+    public int flush(OutputStream out) throws IOException {
+        return flush(out, null);
+    }
+
+    /**
+     * Write all pending frames in a single write on given stream,
+     * and record the time each frame waited in queue.
+     * Frames are removed once written, they stay queued if the write fails.
+     * Must always be called from the same thread.
+     * @param out socket output stream
+     * @param latency histogram of enqueue to write latency in us, may be null
+     * @return number of frames written
+     * @throws IOException
+     */
+    public int flush(OutputStream out, LatencyHistogram latency) throws IOException {
+        int frames = 0;
+        mBuffer.reset();
+        synchronized (this) {
+            for (byte[] frame : mFrames) {
+                mBuffer.write(frame, 0, frame.length);
+                mFlushTimes[frames] = mEnqueueTimes[(mTimesHead + frames) % mCapacity];
+                frames++;
+            }
+        }
+
+        if (frames > 0) {
+            mBuffer.writeTo(out);
+            out.flush();
+            if (latency != null) {
+                long now = System.nanoTime();
+                for (int i = 0; i < frames; i++) {
+                    latency.record((now - mFlushTimes[i]) / 1000L);
+                }
+            }
+            synchronized (this) {
+                // frames queued during the write stay pending
+                for (int i = 0; i < frames; i++) {
+                    mFrames.pollFirst();
+                }
+                mTimesHead = (mTimesHead + frames) % mCapacity;
+                mFlushCount++;
+                mFrameCount += frames;
+                mLastFlushFrames = frames;
+                mLastFlushBytes = mBuffer.size();
+            }
+        }
+        return frames;
+    }
+
+    /**
+     * Remove oldest pending frame.
+     * @return frame or null if queue is empty
+     */
+    public synchronized byte[] poll() {
+        byte[] frame = mFrames.pollFirst();
+        if (frame != null) {
+            mTimesHead = (mTimesHead + 1) % mCapacity;
+        }
+        return frame;
+    }
+
+    /**
+     * Drop all pending frames.
+     */
+    public synchronized void clear() {
+        mFrames.clear();
+        mTimesHead = 0;
+    }
+
+    public synchronized int size() {
+        return mFrames.size();
+    }
+
+    public synchronized long getFlushCount() {
+        return mFlushCount;
+    }
+
+    public synchronized long getFrameCount() {
+        return mFrameCount;
+    }
+
+    public synchronized int getLastFlushFrames() {
+        return mLastFlushFrames;
+    }
+
+    public synchronized int getLastFlushBytes() {
+        return mLastFlushBytes;
+    }
+
+    public synchronized long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    /**
+     * @return average number of frames written per socket write.
+     */
+    public synchronized float getFramesPerFlush() {
+        return mFlushCount == 0 ? 0f : (float) mFrameCount / mFlushCount;
+    }
+}
@@ -0,0 +1,308 @@
+package com.qboileau.mqtt;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+
+/**
+ * QoS 1 and 2 publishes with a bounded in-flight window.
+ *
+ * Encoded PUBLISH frames wait in a pending queue until a message id is free in the window,
+ * then as many frames as the window allows are written at once without waiting for each
+ * acknowledgement. A frame leaves the window on PUBACK (QoS 1) or PUBCOMP (QoS 2, after
+ * PUBREC and our PUBREL). Unacknowledged frames are sent again with the DUP flag after a timeout.
+ *
+ * Acknowledgements may come from any thread, frames are written by a single thread.
+ * @author qboileau
+ */
+public class QosPublisher {
+
+    /** Largest window, MeQanTT only decodes acknowledged message ids up to 255. */
+    public static final int MAX_WINDOW = 255;
+
+    public static final int PUBACK = 4;
+    public static final int PUBREC = 5;
+    public static final int PUBCOMP = 7;
+
+    private static final int FREE = 0;
+    private static final int WAIT_PUBACK = 1;
+    private static final int WAIT_PUBREC = 2;
+    private static final int WAIT_PUBCOMP = 3;
+
+    private static final int PUBREL_HEADER = 0x62; // PUBREL with QoS 1
+    private static final int DUP_FLAG = 0x08;
+
+    private final int mCapacity;
+    private final ArrayDeque<byte[]> mPending;
+    private int mWindow;
+
+    // in-flight state, indexed by message id
+    private final int[] mStates = new int[MAX_WINDOW + 1];
+    private final byte[][] mFrames = new byte[MAX_WINDOW + 1][];
+    private final long[] mSendTimes = new long[MAX_WINDOW + 1];
+    private final long[] mPublishTimes = new long[MAX_WINDOW + 1];
+    private int mInFlight = 0;
+    private int mNextId = 1;
+
+    // message ids waiting for a PUBREL
+    private final int[] mReleases = new int[MAX_WINDOW];
+    private int mReleaseHead = 0;
+    private int mReleaseCount = 0;
+
+    // only used by the writing thread
+    private final ByteArrayOutputStream mBuffer = new ByteArrayOutputStream(1024);
+
+    private LatencyHistogram mAckLatency;
+    private long mSentCount = 0;
+    private long mAckedCount = 0;
+    private long mRetransmitCount = 0;
+
+    /**
+     * @param window maximum number of unacknowledged messages, at most {@link #MAX_WINDOW}
+     * @param capacity maximum number of messages waiting for the window
+     */
+    public QosPublisher(int window, int capacity) {
+        this.mCapacity = capacity;
+        this.mPending = new ArrayDeque<byte[]>(capacity);
+        setWindow(window);
+    }
+
+    /**
+     * Change window size, in-flight messages over a smaller window stay until acknowledged.
+     * @param window
+     */
+    public synchronized void setWindow(int window) {
+        this.mWindow = Math.max(1, Math.min(MAX_WINDOW, window));
+    }
+
+    public synchronized int getWindow() {
+        return mWindow;
+    }
+
+    /**
+     * @param latency histogram of publish to final acknowledgement latency in ms, may be null
+     */
+    public synchronized void setAckLatency(LatencyHistogram latency) {
+        this.mAckLatency = latency;
+    }
+
+    /**
+     * Queue a frame until the window has room.
+     * @param frame encoded PUBLISH frame with QoS 1 or 2, its message id is assigned when sent
+     * @return false if pending queue is full
+     */
+    public synchronized boolean offer(byte[] frame) {
+        if (mPending.size() >= mCapacity) {
+            return false;
+        }
+        mPending.addLast(frame);
+        return true;
+    }
+
+    /**
+     * Handle an acknowledgement.
+     * @param type {@link #PUBACK}, {@link #PUBREC} or {@link #PUBCOMP}
+     * @param messageId
+     * @param now current time in ms
+     * @return true if frames can be sent, window has room or a PUBREL is due
+     */
+    public synchronized boolean onAck(int type, int messageId, long now) {
+        if (messageId <= 0 || messageId > MAX_WINDOW) {
+            return false;
+        }
+        int state = mStates[messageId];
+        if (type == PUBACK && state == WAIT_PUBACK || type == PUBCOMP && state == WAIT_PUBCOMP) {
+            if (mAckLatency != null) {
+                mAckLatency.record(now - mPublishTimes[messageId]);
+            }
+            mStates[messageId] = FREE;
+            mFrames[messageId] = null;
+            mInFlight--;
+            mAckedCount++;
+            return !mPending.isEmpty();
+        } else if (type == PUBREC && state == WAIT_PUBREC) {
+            mStates[messageId] = WAIT_PUBCOMP;
+            mFrames[messageId] = pubrel(messageId);
+            mReleases[(mReleaseHead + mReleaseCount) % mReleases.length] = messageId;
+            mReleaseCount++;
+            return true;
+        }
+        // duplicate or unknown acknowledgement
+        return false;
+    }
+
+    /**
+     * Write due PUBREL and as many pending frames as the window allows, in a single write.
+     * Must always be called from the same thread.
+     * @param out socket output stream
+     * @param now current time in ms
+     * @return number of PUBLISH frames written
+     * @throws IOException
+     */
+    public int send(OutputStream out, long now) throws IOException {
+        int frames = 0;
+        mBuffer.reset();
+        synchronized (this) {
+            while (mReleaseCount > 0) {
+                int id = mReleases[mReleaseHead];
+                mReleaseHead = (mReleaseHead + 1) % mReleases.length;
+                mReleaseCount--;
+                if (mStates[id] == WAIT_PUBCOMP) {
+                    mSendTimes[id] = now;
+                    mBuffer.write(mFrames[id], 0, mFrames[id].length);
+                }
+            }
+            while (mInFlight < mWindow && !mPending.isEmpty()) {
+                byte[] frame = mPending.pollFirst();
+                int id = nextFreeId();
+                setMessageId(frame, id);
+                mStates[id] = qos(frame) == 2 ? WAIT_PUBREC : WAIT_PUBACK;
+                mFrames[id] = frame;
+                mSendTimes[id] = now;
+                mPublishTimes[id] = now;
+                mInFlight++;
+                mBuffer.write(frame, 0, frame.length);
+                frames++;
+            }
+            mSentCount += frames;
+        }
+        if (mBuffer.size() > 0) {
+            mBuffer.writeTo(out);
+            out.flush();
+        }
+        return frames;
+    }
+
+    /**
+     * Send again, with DUP flag, in-flight messages not acknowledged for given timeout.
+     * Must be called from the sending thread.
+     * @param out socket output stream
+     * @param now current time in ms
+     * @param timeout acknowledgement timeout in ms, 0 to send all in-flight messages again after a reconnection
+     * @return number of frames written
+     * @throws IOException
+     */
+    public int retransmit(OutputStream out, long now, long timeout) throws IOException {
+        int frames = 0;
+        mBuffer.reset();
+        synchronized (this) {
+            for (int id = 1; id <= MAX_WINDOW && frames < mInFlight; id++) {
+                if (mStates[id] != FREE && now - mSendTimes[id] >= timeout) {
+                    byte[] frame = mFrames[id];
+                    if (mStates[id] != WAIT_PUBCOMP) {
+                        frame[0] |= DUP_FLAG;
+                    }
+                    mSendTimes[id] = now;
+                    mBuffer.write(frame, 0, frame.length);
+                    frames++;
+                }
+            }
+            mRetransmitCount += frames;
+        }
+        if (frames > 0) {
+            mBuffer.writeTo(out);
+            out.flush();
+        }
+        return frames;
+    }
+
+    /**
+     * @param timeout acknowledgement timeout in ms
+     * @return time of next retransmission in ms, or -1 if nothing is in flight
+     */
+    public synchronized long nextRetransmitTime(long timeout) {
+        long next = -1;
+        for (int id = 1; id <= MAX_WINDOW; id++) {
+            if (mStates[id] != FREE && (next < 0 || mSendTimes[id] + timeout < next)) {
+                next = mSendTimes[id] + timeout;
+            }
+        }
+        return next;
+    }
+
+    /**
+     * Remove a message not yet delivered, in-flight ones first then pending ones,
+     * used to store messages before the service stops.
+     * @return PUBLISH frame or null if there is no more undelivered message
+     */
+    public synchronized byte[] poll() {
+        for (int id = 1; id <= MAX_WINDOW; id++) {
+            int state = mStates[id];
+            if (state != FREE) {
+                byte[] frame = mFrames[id];
+                mStates[id] = FREE;
+                mFrames[id] = null;
+                mInFlight--;
+                if (state != WAIT_PUBCOMP) {
+                    // broker may have received it already
+                    frame[0] |= DUP_FLAG;
+                    return frame;
+                }
+            }
+        }
+        mReleaseCount = 0;
+        return mPending.pollFirst();
+    }
+
+    public synchronized int getPendingCount() {
+        return mPending.size();
+    }
+
+    /**
+     * @return number of frames that can still be offered
+     */
+    public synchronized int remainingCapacity() {
+        return mCapacity - mPending.size();
+    }
+
+    public synchronized int getInFlightCount() {
+        return mInFlight;
+    }
+
+    public synchronized long getSentCount() {
+        return mSentCount;
+    }
+
+    public synchronized long getAckedCount() {
+        return mAckedCount;
+    }
+
+    public synchronized long getRetransmitCount() {
+        return mRetransmitCount;
+    }
+
+    private int nextFreeId() {
+        while (mStates[mNextId] != FREE) {
+            mNextId = mNextId % MAX_WINDOW + 1;
+        }
+        int id = mNextId;
+        mNextId = mNextId % MAX_WINDOW + 1;
+        return id;
+    }
+
+    private static byte[] pubrel(int messageId) {
+        return new byte[] {(byte) PUBREL_HEADER, 0x02, (byte) (messageId >> 8), (byte) messageId};
+    }
+
+    /**
+     * @param frame encoded PUBLISH frame
+     * @return QoS level of the frame
+     */
+    public static int qos(byte[] frame) {
+        return (frame[0] >> 1) & 0x03;
+    }
+
+    /**
+     * Write message id of a QoS 1 or 2 PUBLISH frame, after its variable length and topic.
+     */
+    static void setMessageId(byte[] frame, int messageId) {
+        int pos = 1;
+        while ((frame[pos++] & 0x80) != 0) {
+            // remaining length bytes
+        }
+        pos += 2 + (((frame[pos] & 0xFF) << 8) | (frame[pos + 1] & 0xFF));
+        frame[pos] = (byte) (messageId >> 8);
+        frame[pos + 1] = (byte) messageId;
+    }
+}
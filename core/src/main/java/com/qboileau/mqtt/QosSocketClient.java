@@ -0,0 +1,152 @@
+package com.qboileau.mqtt;
+
+import org.meqantt.MqttException;
+import org.meqantt.MqttListener;
+import org.meqantt.MqttMessageHandler;
+import org.meqantt.SocketClient;
+import org.meqantt.message.ConnAckMessage;
+import org.meqantt.message.Message;
+import org.meqantt.message.RetryableMessage;
+
+import java.io.OutputStream;
+import java.util.List;
+
+/**
+ * {@link SocketClient} notifying publish acknowledgements, which MeQanTT default handler ignores.
+ *
+ * MeQanTT decodes acknowledged message ids as {@code msb * 255 + lsb}, ids are only
+ * decoded correctly up to 255, see {@link QosPublisher#MAX_WINDOW}.
+ *
+ * The handler created by each connection is wrapped by the reader thread itself when it
+ * dispatches the CONNACK, before the connecting thread is released : MeQanTT {@code handler}
+ * field is not volatile, so a wrapper set from another thread might never be seen by the reader.
+ *
+ * MeQanTT writes its messages without locking, they are written here under the lock of the
+ * stream returned by {@link #getOutputStream()}, so pre-encoded frames and MeQanTT messages
+ * (ping, subscribe, disconnect) written from different threads never interleave.
+ * @author qboileau
+ */
+public class QosSocketClient extends SocketClient implements MqttTransport {
+
+    private final AckListener mAckListener;
+    private final Object mWriteLock = new Object();
+
+    /**
+     * @throws IllegalStateException if the MeQanTT version in use has no reachable socket
+     */
+    public QosSocketClient(String id, AckListener ackListener) {
+        super(id);
+        SocketClientAccess.checkSupported();
+        this.mAckListener = ackListener;
+        // first listener, called before the one releasing connect()
+        listeners.add(0, new HandlerInstaller());
+    }
+
+    @Override
+    public void disconnect() throws MqttException {
+        synchronized (mWriteLock) {
+            super.disconnect();
+        }
+    }
+
+    @Override
+    public void subscribe(String topic) throws MqttException {
+        synchronized (mWriteLock) {
+            super.subscribe(topic);
+        }
+    }
+
+    @Override
+    public void unsubscribe(String topic) throws MqttException {
+        synchronized (mWriteLock) {
+            super.unsubscribe(topic);
+        }
+    }
+
+    @Override
+    public void publish(String topic, String message) throws MqttException {
+        synchronized (mWriteLock) {
+            super.publish(topic, message);
+        }
+    }
+
+    @Override
+    public void ping() throws MqttException {
+        synchronized (mWriteLock) {
+            super.ping();
+        }
+    }
+
+    /**
+     * @return socket stream whose writes hold the lock of MeQanTT message writes, frames must be written in one call
+     */
+    @Override
+    public OutputStream getOutputStream() throws MqttException {
+        return SocketClientAccess.outputStream(this, mWriteLock);
+    }
+
+    @Override
+    public void close() {
+        SocketClientAccess.close(this);
+    }
+
+    /**
+     * Intercept acknowledgements of the message handler created by the connection, on the reader thread.
+     */
+    private final class HandlerInstaller implements MqttListener {
+
+        @Override
+        public void connectAck(ConnAckMessage.ConnectionStatus status) {
+            if (!(handler instanceof AckHandler)) {
+                handler = new AckHandler(handler);
+            }
+        }
+
+        @Override
+        public void disconnected() {
+        }
+
+        @Override
+        public void publishArrived(String topic, byte[] data) {
+        }
+    }
+
+    private final class AckHandler implements MqttMessageHandler {
+
+        private final MqttMessageHandler mDelegate;
+
+        private AckHandler(MqttMessageHandler delegate) {
+            this.mDelegate = delegate;
+        }
+
+        @Override
+        public void handleMessage(Message message) {
+            if (message == null) {
+                return;
+            }
+            switch (message.getType()) {
+                case PUBACK:
+                    mAckListener.onAck(QosPublisher.PUBACK, ((RetryableMessage) message).getMessageId());
+                    break;
+                case PUBREC:
+                    mAckListener.onAck(QosPublisher.PUBREC, ((RetryableMessage) message).getMessageId());
+                    break;
+                case PUBCOMP:
+                    mAckListener.onAck(QosPublisher.PUBCOMP, ((RetryableMessage) message).getMessageId());
+                    break;
+                default:
+                    mDelegate.handleMessage(message);
+            }
+        }
+
+        @Override
+        public void addListener(MqttListener listener) {
+            mDelegate.addListener(listener);
+        }
+
+        @Override
+        public void setListeners(List<MqttListener> listeners) {
+            mDelegate.setListeners(listeners);
+        }
+    }
+}
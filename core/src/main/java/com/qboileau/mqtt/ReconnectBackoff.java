@@ -0,0 +1,61 @@
+package com.qboileau.mqtt;
+
+import java.util.Random;
+
+/**
+ * Exponential backoff with jitter between reconnection attempts.
+ *
+ * The delay ceiling doubles after each attempt up to the maximum, and the actual delay
+ * is picked randomly between half the ceiling and the ceiling, so devices disconnected
+ * by the same broker outage do not reconnect at the same time.
+ * @author qboileau
+ */
+public class ReconnectBackoff {
+
+    private static final int MAX_SHIFT = 20;
+
+    private final Random mRandom;
+    private long mBaseDelay;
+    private long mMaxDelay;
+    private int mAttempts = 0;
+
+    /**
+     * @param baseDelay first delay ceiling in ms
+     * @param maxDelay maximum delay in ms
+     * @param random jitter source
+     */
+    public ReconnectBackoff(long baseDelay, long maxDelay, Random random) {
+        this.mBaseDelay = baseDelay;
+        this.mMaxDelay = maxDelay;
+        this.mRandom = random;
+    }
+
+    public synchronized void configure(long baseDelay, long maxDelay) {
+        this.mBaseDelay = baseDelay;
+        this.mMaxDelay = maxDelay;
+    }
+
+    /**
+     * @return delay before next attempt in ms
+     */
+    public synchronized long nextDelay() {
+        long ceiling = Math.min(mMaxDelay, mBaseDelay << Math.min(mAttempts, MAX_SHIFT));
+        mAttempts++;
+        long half = ceiling / 2;
+        return half + (long) (mRandom.nextDouble() * (ceiling - half));
+    }
+
+    /**
+     * Connection succeeded, next delay starts again from base delay.
+     */
+    public synchronized void reset() {
+        mAttempts = 0;
+    }
+
+    /**
+     * @return number of delays given since last reset
+     */
+    public synchronized int getAttempts() {
+        return mAttempts;
+    }
+}
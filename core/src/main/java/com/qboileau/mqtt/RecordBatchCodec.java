@@ -0,0 +1,436 @@
+package com.qboileau.mqtt;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Binary payload holding a batch of sensor records of one topic.
+ *
+ * Layout (big endian) :
+ * <pre>
+ * [1] 0xC0 | version
+ * [1] flags (bit 0 : deflated body)
+ * [1] record count
+ * [8] base timestamp (ms)
+ * [2] body length before compression
+ * [n] body, raw or deflated with {@link #DICTIONARY} as preset dictionary
+ * </pre>
+ * Each record of the body is delta encoded against the previous one :
+ * <pre>
+ * [1] flags (bit 0 : location, bit 1 : window summary, bit 2 : same type, count and aggregates as previous)
+ * [4] type, value count and aggregates, only if shape changed
+ * [v] timestamp delta
+ * [v] value bits delta, for each value
+ * [v] latitude and longitude delta in micro degrees, only with location
+ * </pre>
+ * Deltas are zigzag varints, so slow changing values take one or two bytes. The body is deflated only
+ * when it gets smaller, a batch of 32 pressure samples takes about 6 bytes per sample where single
+ * records take 16 bytes plus the frame header of each publish.
+ *
+ * First byte is distinct from text payloads and from {@link SensorRecordCodec} records.
+ * @author qboileau
+ */
+public final class RecordBatchCodec {
+
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 13;
+    public static final int MAX_RECORDS = 255;
+
+    // flags, type, count, aggregates, timestamp, values and location varints
+    static final int MAX_RECORD_SIZE = 5 + 10 + SensorRecord.MAX_VALUES * 5 + 2 * 5;
+
+    private static final int MARKER = 0xC0;
+    private static final int FLAG_DEFLATED = 0x01;
+    private static final int FLAG_LOCATION = 0x01;
+    private static final int FLAG_SUMMARY = 0x02;
+    private static final int FLAG_SAME_SHAPE = 0x04;
+    private static final double MICRO_DEGREES = 1e6;
+
+    //bodies smaller than this are never worth a deflate attempt (bytes)
+    private static final int MIN_DEFLATE_SIZE = 24;
+
+    /**
+     * Preset dictionary shared by encoders and decoders of this version : body of a synthetic batch
+     * of pressure samples, summaries and 3 axis samples, so the first records of a batch already
+     * find matches.
+     */
+    static final byte[] DICTIONARY = buildDictionary();
+
+    private RecordBatchCodec() {
+    }
+
+    /**
+     * @param data payload
+     * @param offset
+     * @param length
+     * @return true if payload starts with a record batch header
+     */
+    public static boolean isBatch(byte[] data, int offset, int length) {
+        return length >= HEADER_SIZE && (data[offset] & 0xFF) == (MARKER | VERSION);
+    }
+
+    /**
+     * Receive decoded records.
+     */
+    public interface Listener {
+
+        /**
+         * @param record decoded record, reused for next record
+         */
+        void onRecord(SensorRecord record);
+    }
+
+    /**
+     * Accumulate delta encoded records until the batch is encoded. Not thread safe.
+     */
+    public static final class Encoder {
+
+        private final int mCapacity;
+        private final byte[] mBody;
+        private final Deflater mDeflater;
+        private final int[] mBits = new int[SensorRecord.MAX_VALUES];
+        private int mSize;
+        private int mCount;
+        private int mRecordBytes;
+        private long mBaseTime;
+        private long mTime;
+        private int mType;
+        private int mValueCount;
+        private int mAggregates;
+        private int mLatitude;
+        private int mLongitude;
+
+        /**
+         * @param capacity maximum records per batch, 1 to {@link #MAX_RECORDS}
+         */
+        public Encoder(int capacity) {
+            this(capacity, Deflater.DEFAULT_COMPRESSION);
+        }
+
+        /**
+         * @param capacity maximum records per batch, 1 to {@link #MAX_RECORDS}
+         * @param level deflate level, see {@link Deflater}
+         */
+        public Encoder(int capacity, int level) {
+            this.mCapacity = Math.max(1, Math.min(MAX_RECORDS, capacity));
+            this.mBody = new byte[mCapacity * MAX_RECORD_SIZE];
+            this.mDeflater = new Deflater(level, true);
+            reset();
+        }
+
+        public int getCapacity() {
+            return mCapacity;
+        }
+
+        /**
+         * @return number of records in current batch
+         */
+        public int getCount() {
+            return mCount;
+        }
+
+        /**
+         * @return size of current batch records encoded one by one with {@link SensorRecordCodec}
+         */
+        public int getRecordBytes() {
+            return mRecordBytes;
+        }
+
+        /**
+         * @return maximum size of the encoded batch
+         */
+        public int getMaxSize() {
+            return HEADER_SIZE + mCapacity * MAX_RECORD_SIZE;
+        }
+
+        /**
+         * Append a record to the batch, batch must not be full.
+         * @param record
+         * @return true if batch is full and must be encoded
+         */
+        public boolean add(SensorRecord record) {
+            if (mCount == mCapacity) {
+                throw new IllegalStateException("Batch is full");
+            }
+            if (mCount == 0) {
+                mBaseTime = record.timestamp;
+                mTime = record.timestamp;
+            }
+            int pos = mSize;
+            boolean sameShape = mCount > 0 && record.sensorType == mType
+                    && record.valueCount == mValueCount && record.aggregates == mAggregates;
+            mBody[pos++] = (byte) ((record.hasLocation ? FLAG_LOCATION : 0)
+                    | (record.aggregates != 0 ? FLAG_SUMMARY : 0) | (sameShape ? FLAG_SAME_SHAPE : 0));
+            if (!sameShape) {
+                mType = record.sensorType;
+                mValueCount = record.valueCount;
+                mAggregates = record.aggregates;
+                mBody[pos++] = (byte) mType;
+                mBody[pos++] = (byte) mValueCount;
+                mBody[pos++] = (byte) (mAggregates >>> 8);
+                mBody[pos++] = (byte) mAggregates;
+            }
+            pos = putVarLong(mBody, pos, zigzag(record.timestamp - mTime));
+            mTime = record.timestamp;
+            for (int i = 0; i < record.valueCount; i++) {
+                int bits = Float.floatToIntBits(record.values[i]);
+                pos = putVarLong(mBody, pos, zigzag(bits - mBits[i]));
+                mBits[i] = bits;
+            }
+            if (record.hasLocation) {
+                int latitude = (int) Math.round(record.latitude * MICRO_DEGREES);
+                int longitude = (int) Math.round(record.longitude * MICRO_DEGREES);
+                pos = putVarLong(mBody, pos, zigzag(latitude - mLatitude));
+                pos = putVarLong(mBody, pos, zigzag(longitude - mLongitude));
+                mLatitude = latitude;
+                mLongitude = longitude;
+            }
+            mSize = pos;
+            mCount++;
+            mRecordBytes += SensorRecordCodec.encodedSize(record);
+            return mCount == mCapacity;
+        }
+
+        /**
+         * Encode current batch and start a new one.
+         * @param buffer destination, at least {@link #getMaxSize()} bytes after offset
+         * @param offset start offset in buffer
+         * @return number of bytes written, 0 if batch is empty
+         */
+        public int encode(byte[] buffer, int offset) {
+            if (mCount == 0) {
+                return 0;
+            }
+            int flags = 0;
+            int length = 0;
+            if (mSize >= MIN_DEFLATE_SIZE) {
+                mDeflater.reset();
+                mDeflater.setDictionary(DICTIONARY);
+                mDeflater.setInput(mBody, 0, mSize);
+                mDeflater.finish();
+                // deflated body must be strictly smaller, otherwise keep raw body
+                length = mDeflater.deflate(buffer, offset + HEADER_SIZE, mSize - 1);
+                if (mDeflater.finished()) {
+                    flags = FLAG_DEFLATED;
+                }
+            }
+            if (flags == 0) {
+                System.arraycopy(mBody, 0, buffer, offset + HEADER_SIZE, mSize);
+                length = mSize;
+            }
+            buffer[offset] = (byte) (MARKER | VERSION);
+            buffer[offset + 1] = (byte) flags;
+            buffer[offset + 2] = (byte) mCount;
+            SensorRecordCodec.putLong(buffer, offset + 3, mBaseTime);
+            buffer[offset + 11] = (byte) (mSize >>> 8);
+            buffer[offset + 12] = (byte) mSize;
+            reset();
+            return HEADER_SIZE + length;
+        }
+
+        /**
+         * Drop current batch.
+         */
+        public void reset() {
+            mSize = 0;
+            mCount = 0;
+            mRecordBytes = 0;
+            mType = -1;
+            mLatitude = 0;
+            mLongitude = 0;
+            for (int i = 0; i < mBits.length; i++) {
+                mBits[i] = 0;
+            }
+        }
+
+        /**
+         * Release native deflate memory, encoder can not be used after.
+         */
+        public void release() {
+            mDeflater.end();
+        }
+    }
+
+    /**
+     * Decode batches into a reused record. Not thread safe.
+     */
+    public static final class Decoder {
+
+        private final byte[] mBody = new byte[MAX_RECORDS * MAX_RECORD_SIZE];
+        private final Inflater mInflater = new Inflater(true);
+        private final SensorRecord mRecord = new SensorRecord();
+        private final int[] mBits = new int[SensorRecord.MAX_VALUES];
+        private int mPos;
+        private int mSize;
+
+        /**
+         * Decode a batch.
+         * @param data payload
+         * @param offset start offset of batch
+         * @param length available bytes
+         * @param listener receive each record of the batch
+         * @return number of records, or -1 if payload is not a valid batch
+         */
+        public int decode(byte[] data, int offset, int length, Listener listener) {
+            if (!isBatch(data, offset, length)) {
+                return -1;
+            }
+            int flags = data[offset + 1];
+            int count = data[offset + 2] & 0xFF;
+            long time = SensorRecordCodec.getLong(data, offset + 3);
+            int size = ((data[offset + 11] & 0xFF) << 8) | (data[offset + 12] & 0xFF);
+            int bodyLength = length - HEADER_SIZE;
+            if (size > MAX_RECORDS * MAX_RECORD_SIZE) {
+                return -1;
+            }
+            if ((flags & FLAG_DEFLATED) != 0) {
+                mInflater.reset();
+                mInflater.setDictionary(DICTIONARY);
+                mInflater.setInput(data, offset + HEADER_SIZE, bodyLength);
+                try {
+                    if (mInflater.inflate(mBody, 0, size) != size) {
+                        return -1;
+                    }
+                } catch (DataFormatException e) {
+                    return -1;
+                }
+            } else if (bodyLength >= size) {
+                System.arraycopy(data, offset + HEADER_SIZE, mBody, 0, size);
+            } else {
+                return -1;
+            }
+
+            SensorRecord record = mRecord;
+            int latitude = 0;
+            int longitude = 0;
+            for (int i = 0; i < mBits.length; i++) {
+                mBits[i] = 0;
+            }
+            mPos = 0;
+            mSize = size;
+            for (int n = 0; n < count; n++) {
+                if (mPos >= size) {
+                    return -1;
+                }
+                int recordFlags = mBody[mPos++];
+                if ((recordFlags & FLAG_SAME_SHAPE) == 0) {
+                    if (mPos + 4 > size) {
+                        return -1;
+                    }
+                    record.sensorType = mBody[mPos] & 0xFF;
+                    record.valueCount = mBody[mPos + 1] & 0xFF;
+                    record.aggregates = ((mBody[mPos + 2] & 0xFF) << 8) | (mBody[mPos + 3] & 0xFF);
+                    mPos += 4;
+                } else if (n == 0) {
+                    return -1;
+                }
+                if (record.valueCount > SensorRecord.MAX_VALUES) {
+                    return -1;
+                }
+                time += unzigzag(getVarLong());
+                record.timestamp = time;
+                for (int i = 0; i < record.valueCount; i++) {
+                    mBits[i] += (int) unzigzag(getVarLong());
+                    record.values[i] = Float.intBitsToFloat(mBits[i]);
+                }
+                record.hasLocation = (recordFlags & FLAG_LOCATION) != 0;
+                if (record.hasLocation) {
+                    latitude += (int) unzigzag(getVarLong());
+                    longitude += (int) unzigzag(getVarLong());
+                    record.latitude = latitude / MICRO_DEGREES;
+                    record.longitude = longitude / MICRO_DEGREES;
+                }
+                // a truncated varint moves position past body size
+                if (mPos > size) {
+                    return -1;
+                }
+                listener.onRecord(record);
+            }
+            return count;
+        }
+
+        /**
+         * @return varint value, 0 with position past body size if body ends before its last byte
+         */
+        private long getVarLong() {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                if (mPos >= mSize) {
+                    mPos = mSize + 1;
+                    return 0;
+                }
+                int b = mBody[mPos++];
+                value |= (long) (b & 0x7F) << shift;
+                if (b >= 0) {
+                    break;
+                }
+            }
+            return value;
+        }
+
+        /**
+         * Release native inflate memory, decoder can not be used after.
+         */
+        public void release() {
+            mInflater.end();
+        }
+    }
+
+    static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    static int putVarLong(byte[] buffer, int pos, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer[pos++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[pos++] = (byte) value;
+        return pos;
+    }
+
+    private static byte[] buildDictionary() {
+        Encoder encoder = new Encoder(64);
+        SensorRecord record = new SensorRecord();
+        long time = 1400000000000L;
+        float pressure = 1013.25f;
+        int seed = 7;
+        for (int i = 0; i < 40; i++) {
+            seed = seed * 1103515245 + 12345;
+            time += 5000 + ((seed >>> 16) & 0x3FF);
+            pressure += ((seed >>> 8) & 0x7F) / 100f - 0.6f;
+            record.set(time, 6, pressure);
+            if (i % 2 == 0) {
+                record.setLocation(48.8566 + i / MICRO_DEGREES, 2.3522);
+            }
+            encoder.add(record);
+        }
+        // window summary with count, min, max, mean and stddev
+        record.set(time, 6, 12f);
+        record.values[1] = pressure - 0.5f;
+        record.values[2] = pressure + 0.5f;
+        record.values[3] = pressure;
+        record.values[4] = 0.25f;
+        record.valueCount = 5;
+        record.aggregates = 0x1F;
+        encoder.add(record);
+        for (int i = 0; i < 20; i++) {
+            seed = seed * 1103515245 + 12345;
+            time += 20 + (seed >>> 28);
+            record.set(time, 1, ((seed >>> 8) & 0xFF) / 100f);
+            record.values[1] = ((seed >>> 4) & 0xFF) / 100f;
+            record.values[2] = 9.81f;
+            record.valueCount = 3;
+            encoder.add(record);
+        }
+        byte[] dictionary = new byte[encoder.mSize];
+        System.arraycopy(encoder.mBody, 0, dictionary, 0, encoder.mSize);
+        encoder.release();
+        return dictionary;
+    }
+}
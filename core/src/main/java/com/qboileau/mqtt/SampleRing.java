@@ -0,0 +1,111 @@
+package com.qboileau.mqtt;
+
+/**
+ * Fixed capacity ring buffer of timestamped sensor samples, stored in preallocated primitive arrays.
+ *
+ * Each sample is a timestamp and {@code dimension} float values (1 for pressure, 3 for an accelerometer).
+ * The ring is lock free for one producer thread calling {@link #put} and one consumer thread
+ * draining samples in bulk with {@link #drain}. When the ring is full, new samples are dropped
+ * and counted, samples already buffered are kept in order.
+ * Nothing is allocated once the ring is created.
+ * @author qboileau
+ */
+public class SampleRing {
+
+    private final int mCapacity;
+    private final int mMask;
+    private final int mDimension;
+    private final long[] mTimes;
+    private final float[] mValues;
+
+    // sample counters, written by producer and consumer only
+    private volatile long mHead = 0;
+    private volatile long mTail = 0;
+    private volatile long mDropped = 0;
+
+    /**
+     * @param capacity minimum number of samples kept, rounded up to a power of two
+     * @param dimension number of values per sample
+     */
+    public SampleRing(int capacity, int dimension) {
+        if (capacity < 1 || capacity > (1 << 24) || dimension < 1 || dimension > SensorRecord.MAX_VALUES) {
+            throw new IllegalArgumentException("Invalid ring size " + capacity + " x " + dimension);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.mCapacity = size;
+        this.mMask = size - 1;
+        this.mDimension = dimension;
+        this.mTimes = new long[size];
+        this.mValues = new float[size * dimension];
+    }
+
+    /**
+     * Append a sample, producer thread only.
+     * @param time sample time in ms
+     * @param values sample values, the first {@code dimension} values are copied
+     * @return false if ring is full and sample was dropped
+     */
+    public boolean put(long time, float[] values) {
+        long head = mHead;
+        if (head - mTail >= mCapacity) {
+            mDropped++;
+            return false;
+        }
+        int index = (int) head & mMask;
+        mTimes[index] = time;
+        System.arraycopy(values, 0, mValues, index * mDimension, mDimension);
+        mHead = head + 1;
+        return true;
+    }
+
+    /**
+     * Move buffered samples to caller arrays, consumer thread only.
+     * @param times destination of sample times
+     * @param values destination of sample values, {@code dimension} values per sample
+     * @param max maximum number of samples moved, no more than times.length
+     * @return number of samples moved, in order
+     */
+    public int drain(long[] times, float[] values, int max) {
+        long tail = mTail;
+        int count = (int) Math.min(mHead - tail, max);
+        if (count <= 0) {
+            return 0;
+        }
+        int index = (int) tail & mMask;
+        // at most two contiguous segments, before and after wrap around
+        int first = Math.min(count, mCapacity - index);
+        System.arraycopy(mTimes, index, times, 0, first);
+        System.arraycopy(mValues, index * mDimension, values, 0, first * mDimension);
+        if (first < count) {
+            System.arraycopy(mTimes, 0, times, first, count - first);
+            System.arraycopy(mValues, 0, values, first * mDimension, (count - first) * mDimension);
+        }
+        mTail = tail + count;
+        return count;
+    }
+
+    /**
+     * @return number of buffered samples
+     */
+    public int size() {
+        return (int) (mHead - mTail);
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    public int getDimension() {
+        return mDimension;
+    }
+
+    /**
+     * @return number of samples dropped because the ring was full
+     */
+    public long getDropped() {
+        return mDropped;
+    }
+}
@@ -0,0 +1,84 @@
+package com.qboileau.mqtt;
+
+/**
+ * Mutable sensor sample, reused between encodings and decodings
+ * to avoid allocations per sample.
+ * @author qboileau
+ */
+public class SensorRecord {
+
+    public static final int MAX_VALUES = 16;
+
+    public long timestamp;
+    public int sensorType;
+    public final float[] values = new float[MAX_VALUES];
+    public int valueCount;
+
+    /** Aggregates of a window summary (see {@link WindowAggregator}), 0 for a raw sample. */
+    public int aggregates;
+
+    public boolean hasLocation;
+    public double latitude;
+    public double longitude;
+
+    /**
+     * Set a single value sample without location.
+     * @param timestamp sample time in ms
+     * @param sensorType android sensor type
+     * @param value sample value
+     * @return this record
+     */
+    public SensorRecord set(long timestamp, int sensorType, float value) {
+        this.timestamp = timestamp;
+        this.sensorType = sensorType;
+        this.values[0] = value;
+        this.valueCount = 1;
+        this.aggregates = 0;
+        this.hasLocation = false;
+        return this;
+    }
+
+    /**
+     * Set a multi values sample without location.
+     * @param timestamp sample time in ms
+     * @param sensorType android sensor type
+     * @param values buffer holding sample values
+     * @param offset first value offset in buffer
+     * @param count number of values, at most {@link #MAX_VALUES}
+     * @return this record
+     */
+    public SensorRecord set(long timestamp, int sensorType, float[] values, int offset, int count) {
+        this.timestamp = timestamp;
+        this.sensorType = sensorType;
+        System.arraycopy(values, offset, this.values, 0, count);
+        this.valueCount = count;
+        this.aggregates = 0;
+        this.hasLocation = false;
+        return this;
+    }
+
+    public SensorRecord setLocation(double latitude, double longitude) {
+        this.latitude = latitude;
+        this.longitude = longitude;
+        this.hasLocation = true;
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("SensorRecord[").append(sensorType).append(" @").append(timestamp).append(" :");
+        String[] names = aggregates != 0 ? WindowAggregator.names(aggregates) : null;
+        for (int i = 0; i < valueCount; i++) {
+            sb.append(' ');
+            if (names != null && i < names.length) {
+                sb.append(names[i]).append('=');
+            }
+            sb.append(values[i]);
+        }
+        if (hasLocation) {
+            sb.append(" (").append(latitude).append(", ").append(longitude).append(')');
+        }
+        return sb.append(']').toString();
+    }
+}
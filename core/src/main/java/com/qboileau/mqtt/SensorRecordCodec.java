@@ -0,0 +1,151 @@
+package com.qboileau.mqtt;
+
+/**
+ * Binary payload of sensor records.
+ *
+ * Layout (big endian) :
+ * <pre>
+ * [1] 0x80 | version
+ * [1] flags (bit 0 : location, bit 1 : window summary)
+ * [1] sensor type
+ * [1] value count
+ * [8] timestamp (ms)
+ * [4 * value count] float values
+ * [2] optional aggregates of a window summary, values are in aggregate flags order
+ * [8] optional location, latitude and longitude in micro degrees
+ * </pre>
+ * A pressure sample takes 16 bytes (24 with location), with its timestamp,
+ * where the text payload takes 9 to 11 bytes for the value alone.
+ *
+ * Text payloads written by {@code PublishMessage} start with a two bytes length
+ * lower than 0x8000, so the first byte is enough to tell binary records from text.
+ * @author qboileau
+ */
+public final class SensorRecordCodec {
+
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 12;
+    public static final int MAX_SIZE = HEADER_SIZE + SensorRecord.MAX_VALUES * 4 + 2 + 8;
+
+    private static final int MARKER = 0x80;
+    private static final int FLAG_LOCATION = 0x01;
+    private static final int FLAG_SUMMARY = 0x02;
+    private static final double MICRO_DEGREES = 1e6;
+
+    private SensorRecordCodec() {
+    }
+
+    /**
+     * @param record
+     * @return number of bytes needed to encode given record
+     */
+    public static int encodedSize(SensorRecord record) {
+        return HEADER_SIZE + record.valueCount * 4 + (record.aggregates != 0 ? 2 : 0) + (record.hasLocation ? 8 : 0);
+    }
+
+    /**
+     * Encode a record in given buffer.
+     * @param record record to encode
+     * @param buffer destination, at least {@link #encodedSize(SensorRecord)} bytes after offset
+     * @param offset start offset in buffer
+     * @return number of bytes written
+     */
+    public static int encode(SensorRecord record, byte[] buffer, int offset) {
+        int pos = offset;
+        buffer[pos++] = (byte) (MARKER | VERSION);
+        buffer[pos++] = (byte) ((record.hasLocation ? FLAG_LOCATION : 0) | (record.aggregates != 0 ? FLAG_SUMMARY : 0));
+        buffer[pos++] = (byte) record.sensorType;
+        buffer[pos++] = (byte) record.valueCount;
+        pos = putLong(buffer, pos, record.timestamp);
+        for (int i = 0; i < record.valueCount; i++) {
+            pos = putInt(buffer, pos, Float.floatToIntBits(record.values[i]));
+        }
+        if (record.aggregates != 0) {
+            buffer[pos++] = (byte) (record.aggregates >>> 8);
+            buffer[pos++] = (byte) record.aggregates;
+        }
+        if (record.hasLocation) {
+            pos = putInt(buffer, pos, (int) Math.round(record.latitude * MICRO_DEGREES));
+            pos = putInt(buffer, pos, (int) Math.round(record.longitude * MICRO_DEGREES));
+        }
+        return pos - offset;
+    }
+
+    /**
+     * @param data payload
+     * @param offset
+     * @param length
+     * @return true if payload starts with a binary record header
+     */
+    public static boolean isBinary(byte[] data, int offset, int length) {
+        return length >= HEADER_SIZE && (data[offset] & 0xFF) == (MARKER | VERSION);
+    }
+
+    /**
+     * Decode a record.
+     * @param data payload
+     * @param offset start offset of record
+     * @param length available bytes
+     * @param record decoded record, reused
+     * @return number of bytes read, or -1 if payload is not a valid binary record
+     */
+    public static int decode(byte[] data, int offset, int length, SensorRecord record) {
+        if (!isBinary(data, offset, length)) {
+            return -1;
+        }
+        int pos = offset + 1;
+        int flags = data[pos++];
+        int type = data[pos++] & 0xFF;
+        int count = data[pos++] & 0xFF;
+        boolean hasLocation = (flags & FLAG_LOCATION) != 0;
+        boolean isSummary = (flags & FLAG_SUMMARY) != 0;
+        int size = HEADER_SIZE + count * 4 + (isSummary ? 2 : 0) + (hasLocation ? 8 : 0);
+        if (count > SensorRecord.MAX_VALUES || size > length) {
+            return -1;
+        }
+
+        record.sensorType = type;
+        record.valueCount = count;
+        record.timestamp = getLong(data, pos);
+        pos += 8;
+        for (int i = 0; i < count; i++) {
+            record.values[i] = Float.intBitsToFloat(getInt(data, pos));
+            pos += 4;
+        }
+        record.aggregates = 0;
+        if (isSummary) {
+            record.aggregates = ((data[pos] & 0xFF) << 8) | (data[pos + 1] & 0xFF);
+            pos += 2;
+        }
+        record.hasLocation = hasLocation;
+        if (hasLocation) {
+            record.latitude = getInt(data, pos) / MICRO_DEGREES;
+            record.longitude = getInt(data, pos + 4) / MICRO_DEGREES;
+        }
+        return size;
+    }
+
+    static int putInt(byte[] buffer, int pos, int value) {
+        buffer[pos] = (byte) (value >>> 24);
+        buffer[pos + 1] = (byte) (value >>> 16);
+        buffer[pos + 2] = (byte) (value >>> 8);
+        buffer[pos + 3] = (byte) value;
+        return pos + 4;
+    }
+
+    static int putLong(byte[] buffer, int pos, long value) {
+        putInt(buffer, pos, (int) (value >>> 32));
+        return putInt(buffer, pos + 4, (int) value);
+    }
+
+    static int getInt(byte[] data, int pos) {
+        return ((data[pos] & 0xFF) << 24)
+                | ((data[pos + 1] & 0xFF) << 16)
+                | ((data[pos + 2] & 0xFF) << 8)
+                | (data[pos + 3] & 0xFF);
+    }
+
+    static long getLong(byte[] data, int pos) {
+        return ((long) getInt(data, pos) << 32) | (getInt(data, pos + 4) & 0xFFFFFFFFL);
+    }
+}
@@ -0,0 +1,148 @@
+package com.qboileau.mqtt;
+
+import org.meqantt.MqttException;
+import org.meqantt.SocketClient;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.net.Socket;
+
+/**
+ * Access to the underlying socket of a connected {@link SocketClient}.
+ *
+ * MeQanTT only expose one message per call, so we reach its private socket field
+ * to write several pre-encoded frames at once. MeQanTT does not lock its own writes :
+ * raw stream writes must share a lock with calls writing MeQanTT messages,
+ * see {@link #outputStream(SocketClient, Object)}.
+ * @author qboileau
+ */
+final class SocketClientAccess {
+
+    private static final String SOCKET_FIELD = "socket";
+
+    // null if this MeQanTT version has no socket field
+    private static final Field SOCKET = socketField();
+
+    private SocketClientAccess() {
+    }
+
+    /**
+     * Fail fast when the MeQanTT version in use can not be accessed.
+     * @throws IllegalStateException if SocketClient has no socket field
+     */
+    static void checkSupported() {
+        if (SOCKET == null) {
+            throw new IllegalStateException("Unsupported MeQanTT version, SocketClient has no \""
+                    + SOCKET_FIELD + "\" field");
+        }
+    }
+
+    /**
+     * Socket output stream of a connected client.
+     * @param client connected client
+     * @return raw socket output stream
+     * @throws MqttException if socket is not reachable or client not connected
+     */
+    static OutputStream outputStream(SocketClient client) throws MqttException {
+        Socket socket = socket(client);
+        if (socket == null || socket.isClosed()) {
+            throw new MqttException("Client socket not connected");
+        }
+        try {
+            return socket.getOutputStream();
+        } catch (IOException e) {
+            throw new MqttException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Socket output stream of a connected client, each write holds given lock,
+     * so frames written in one call are never interleaved with MeQanTT messages written under the same lock.
+     * @param client connected client
+     * @param lock lock held by the client when it writes its messages
+     * @return locked socket output stream
+     * @throws MqttException if socket is not reachable or client not connected
+     */
+    static OutputStream outputStream(SocketClient client, Object lock) throws MqttException {
+        return new LockedOutputStream(outputStream(client), lock);
+    }
+
+    /**
+     * Close client socket without sending a DISCONNECT message,
+     * used when connection is already broken. Client reader thread stops with the socket.
+     * @param client
+     */
+    static void close(SocketClient client) {
+        try {
+            Socket socket = socket(client);
+            if (socket != null) {
+                socket.close();
+            }
+        } catch (MqttException e) {
+            // nothing to close
+        } catch (IOException e) {
+            // socket is already broken
+        }
+    }
+
+    private static Socket socket(SocketClient client) throws MqttException {
+        if (SOCKET == null) {
+            throw new MqttException("Unsupported SocketClient version");
+        }
+        try {
+            return (Socket) SOCKET.get(client);
+        } catch (IllegalAccessException e) {
+            throw new MqttException("Unsupported SocketClient version", e);
+        }
+    }
+
+    private static Field socketField() {
+        try {
+            Field field = SocketClient.class.getDeclaredField(SOCKET_FIELD);
+            field.setAccessible(true);
+            return field.getType() == Socket.class ? field : null;
+        } catch (NoSuchFieldException e) {
+            return null;
+        } catch (SecurityException e) {
+            return null;
+        }
+    }
+
+    private static final class LockedOutputStream extends OutputStream {
+
+        private final OutputStream mOut;
+        private final Object mLock;
+
+        private LockedOutputStream(OutputStream out, Object lock) {
+            this.mOut = out;
+            this.mLock = lock;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            synchronized (mLock) {
+                mOut.write(b);
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            synchronized (mLock) {
+                mOut.write(b, off, len);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            synchronized (mLock) {
+                mOut.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            mOut.close();
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package com.qboileau.mqtt;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Route received messages to subscribers of matching topic filters.
+ *
+ * Filters are stored in a trie indexed by topic level, with {@code +} and {@code #}
+ * wildcard children, so matching a topic only walks the levels of this topic instead
+ * of testing every filter. Matching subscribers are cached per topic : routing a message
+ * on an already seen topic does not allocate.
+ * @author qboileau
+ */
+public class SubscriptionRouter {
+
+    private static final String SINGLE_LEVEL = "+";
+    private static final String MULTI_LEVEL = "#";
+    private static final Subscriber[] NO_SUBSCRIBER = new Subscriber[0];
+
+    /**
+     * Receive messages of subscribed topics.
+     */
+    public interface Subscriber {
+        /**
+         * @param topic message topic
+         * @param payload buffer holding the payload, only valid during this call
+         * @param length payload length
+         */
+        void onMessage(String topic, byte[] payload, int length);
+    }
+
+    private static final class Node {
+        private final Map<String, Node> children = new HashMap<String, Node>();
+        private final List<Subscriber> subscribers = new ArrayList<Subscriber>(1);
+
+        private boolean isEmpty() {
+            return children.isEmpty() && subscribers.isEmpty();
+        }
+    }
+
+    private final Node mRoot = new Node();
+    private final Map<String, List<Subscriber>> mFilters = new HashMap<String, List<Subscriber>>();
+    private final Map<String, Subscriber[]> mCache;
+    private final List<Subscriber> mMatches = new ArrayList<Subscriber>();
+
+    /**
+     * @param cacheSize maximum number of topics whose subscribers are cached
+     */
+    public SubscriptionRouter(final int cacheSize) {
+        this.mCache = new LinkedHashMap<String, Subscriber[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Subscriber[]> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    /**
+     * Register a subscriber on a topic filter.
+     * @param filter topic filter, may contain + and # wildcards
+     * @param subscriber
+     * @return true if it is the first subscriber of this filter
+     */
+    public synchronized boolean subscribe(String filter, Subscriber subscriber) {
+        validate(filter);
+        Node node = mRoot;
+        for (String level : filter.split("/", -1)) {
+            Node child = node.children.get(level);
+            if (child == null) {
+                child = new Node();
+                node.children.put(level, child);
+            }
+            node = child;
+        }
+        node.subscribers.add(subscriber);
+
+        List<Subscriber> subscribers = mFilters.get(filter);
+        boolean first = subscribers == null;
+        if (first) {
+            subscribers = new ArrayList<Subscriber>(1);
+            mFilters.put(filter, subscribers);
+        }
+        subscribers.add(subscriber);
+        mCache.clear();
+        return first;
+    }
+
+    /**
+     * Remove a subscriber from a topic filter.
+     * @param filter topic filter
+     * @param subscriber
+     * @return true if filter has no more subscriber
+     */
+    public synchronized boolean unsubscribe(String filter, Subscriber subscriber) {
+        List<Subscriber> subscribers = mFilters.get(filter);
+        if (subscribers == null || !subscribers.remove(subscriber)) {
+            return false;
+        }
+        remove(mRoot, filter.split("/", -1), 0, subscriber);
+        mCache.clear();
+        if (subscribers.isEmpty()) {
+            mFilters.remove(filter);
+            return true;
+        }
+        return false;
+    }
+
+    private static boolean remove(Node node, String[] levels, int index, Subscriber subscriber) {
+        if (index == levels.length) {
+            node.subscribers.remove(subscriber);
+        } else {
+            Node child = node.children.get(levels[index]);
+            if (child != null && remove(child, levels, index + 1, subscriber)) {
+                node.children.remove(levels[index]);
+            }
+        }
+        return node.isEmpty();
+    }
+
+    /**
+     * @return filters having at least one subscriber
+     */
+    public synchronized Set<String> getFilters() {
+        return new HashSet<String>(mFilters.keySet());
+    }
+
+    /**
+     * Dispatch a message to all subscribers of matching filters.
+     * @param topic message topic
+     * @param payload buffer holding the payload
+     * @param length payload length
+     * @return number of subscribers notified
+     */
+    public int route(String topic, byte[] payload, int length) {
+        Subscriber[] subscribers = match(topic);
+        for (Subscriber subscriber : subscribers) {
+            subscriber.onMessage(topic, payload, length);
+        }
+        return subscribers.length;
+    }
+
+    /**
+     * @param topic
+     * @return subscribers of filters matching given topic
+     */
+    public synchronized Subscriber[] match(String topic) {
+        Subscriber[] subscribers = mCache.get(topic);
+        if (subscribers == null) {
+            mMatches.clear();
+            collect(mRoot, topic, 0, mMatches);
+            subscribers = mMatches.isEmpty() ? NO_SUBSCRIBER : mMatches.toArray(new Subscriber[mMatches.size()]);
+            mCache.put(topic, subscribers);
+        }
+        return subscribers;
+    }
+
+    /**
+     * Collect subscribers of node children matching topic level starting at given index.
+     */
+    private static void collect(Node node, String topic, int start, List<Subscriber> matches) {
+        // topics starting with $ are not matched by wildcards at first level
+        boolean wildcards = start > 0 || topic.length() == 0 || topic.charAt(0) != '$';
+
+        Node multi = wildcards ? node.children.get(MULTI_LEVEL) : null;
+        if (multi != null) {
+            matches.addAll(multi.subscribers);
+        }
+
+        int end = topic.indexOf('/', start);
+        boolean last = end < 0;
+        String level = topic.substring(start, last ? topic.length() : end);
+
+        Node exact = node.children.get(level);
+        if (exact != null) {
+            matchLevel(exact, topic, end, last, matches);
+        }
+        Node single = wildcards ? node.children.get(SINGLE_LEVEL) : null;
+        if (single != null) {
+            matchLevel(single, topic, end, last, matches);
+        }
+    }
+
+    private static void matchLevel(Node node, String topic, int end, boolean last, List<Subscriber> matches) {
+        if (last) {
+            matches.addAll(node.subscribers);
+            // "a/#" also matches "a"
+            Node multi = node.children.get(MULTI_LEVEL);
+            if (multi != null) {
+                matches.addAll(multi.subscribers);
+            }
+        } else {
+            collect(node, topic, end + 1, matches);
+        }
+    }
+
+    private static void validate(String filter) {
+        if (filter == null || filter.length() == 0) {
+            throw new IllegalArgumentException("Empty topic filter");
+        }
+        int multi = filter.indexOf(MULTI_LEVEL);
+        if (multi >= 0 && (multi != filter.length() - 1 || (multi > 0 && filter.charAt(multi - 1) != '/'))) {
+            throw new IllegalArgumentException("# must be the last level of filter " + filter);
+        }
+        String[] levels = filter.split("/", -1);
+        for (String level : levels) {
+            if (level.length() > 1 && level.contains(SINGLE_LEVEL)) {
+                throw new IllegalArgumentException("+ must occupy a whole level of filter " + filter);
+            }
+        }
+    }
+}
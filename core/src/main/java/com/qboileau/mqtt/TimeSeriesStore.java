@@ -0,0 +1,507 @@
+package com.qboileau.mqtt;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Bounded on-device history of a float time series, compressed in fixed size chunks.
+ *
+ * Samples are encoded as in Gorilla (Facebook TSDB) : timestamps as delta of delta
+ * in variable length buckets, values as XOR of the previous float bits keeping only
+ * the meaningful bits. A slowly changing value sampled at a steady rate takes one to
+ * three bytes per sample, and never more than {@link #MAX_SAMPLE_BITS} bits.
+ *
+ * Chunks are slots of a memory-mapped file used as a ring, the oldest chunk is
+ * overwritten when the file is full. The hot chunk is encoded in memory and copied
+ * to its slot by {@link #checkpoint()} and when it is sealed, so a restart keeps
+ * every sample appended before the last checkpoint.
+ * Slot layout (big endian) :
+ * <pre>
+ * [4] magic
+ * [8] sequence
+ * [4] sample count
+ * [4] encoded bit length
+ * [8] first sample time (ms)
+ * [8] last sample time (ms)
+ * [..] encoded samples
+ * </pre>
+ * Timestamps must be strictly increasing, range queries skip whole chunks out of range.
+ * Heap use is one chunk whatever the history length.
+ * @author qboileau
+ */
+public class TimeSeriesStore {
+
+    public static final int HEADER_SIZE = 36;
+
+    //worst case encoded sample : 4 + 32 bits of time, 2 + 5 + 5 + 32 bits of value
+    public static final int MAX_SAMPLE_BITS = 80;
+
+    private static final int MAGIC = 0x54534331;
+    private static final int OFFSET_SEQUENCE = 4;
+    private static final int OFFSET_COUNT = 12;
+    private static final int OFFSET_BITS = 16;
+    private static final int OFFSET_START = 20;
+    private static final int OFFSET_END = 28;
+
+    private final File mFile;
+    private final int mChunkSize;
+    private final int mMaxChunks;
+    private final int mCapacityBits;
+    private final RandomAccessFile mRaf;
+    private final MappedByteBuffer mBuffer;
+
+    // chunk index, by slot
+    private final long[] mSequences;
+    private final int[] mCounts;
+    private final long[] mStartTimes;
+    private final long[] mEndTimes;
+    private long mSize = 0;
+
+    // hot chunk
+    private final byte[] mHot;
+    private final ByteBuffer mHotBuffer;
+    private int mHotSlot = 0;
+    private long mSequence = 1;
+    private int mBitLength = 0;
+    private long mLastTime;
+    private long mLastDelta;
+    private int mLastBits;
+    private int mLeading = -1;
+    private int mTrailing;
+    private boolean mDirty = false;
+
+    /**
+     * Decoder of the samples of a chunk.
+     */
+    private static final class Cursor {
+
+        private ByteBuffer mData;
+        private int mBase;
+        private int mPosition;
+        private int mRemaining;
+        private boolean mFirst;
+        long time;
+        long delta;
+        int bits;
+        int leading;
+        int trailing;
+
+        void reset(ByteBuffer data, int base, int count, long startTime) {
+            this.mData = data;
+            this.mBase = base;
+            this.mPosition = 0;
+            this.mRemaining = count;
+            this.mFirst = true;
+            this.time = startTime;
+            this.delta = 0;
+            this.leading = -1;
+        }
+
+        /**
+         * @return false when all samples of the chunk were read
+         */
+        boolean next() {
+            if (mRemaining == 0) {
+                return false;
+            }
+            mRemaining--;
+            if (mFirst) {
+                mFirst = false;
+                bits = (int) read(32);
+                return true;
+            }
+            long dod;
+            if (read(1) == 0) {
+                dod = 0;
+            } else if (read(1) == 0) {
+                dod = signed(read(7), 7);
+            } else if (read(1) == 0) {
+                dod = signed(read(9), 9);
+            } else if (read(1) == 0) {
+                dod = signed(read(12), 12);
+            } else {
+                dod = signed(read(32), 32);
+            }
+            delta += dod;
+            time += delta;
+
+            if (read(1) != 0) {
+                if (read(1) != 0) {
+                    leading = (int) read(5);
+                    int meaningful = (int) read(5) + 1;
+                    trailing = 32 - leading - meaningful;
+                }
+                int meaningful = 32 - leading - trailing;
+                bits ^= (int) (read(meaningful) << trailing);
+            }
+            return true;
+        }
+
+        float value() {
+            return Float.intBitsToFloat(bits);
+        }
+
+        int position() {
+            return mPosition;
+        }
+
+        private long read(int count) {
+            long result = 0;
+            while (count > 0) {
+                int b = mData.get(mBase + (mPosition >>> 3)) & 0xFF;
+                int available = 8 - (mPosition & 7);
+                int n = Math.min(available, count);
+                result = (result << n) | ((b >>> (available - n)) & ((1 << n) - 1));
+                mPosition += n;
+                count -= n;
+            }
+            return result;
+        }
+
+        private static long signed(long value, int bits) {
+            return (value << (64 - bits)) >> (64 - bits);
+        }
+    }
+
+    private final Cursor mCursor = new Cursor();
+
+    /**
+     * Open a store, samples of a previous instance are recovered.
+     * A file with another geometry is cleared.
+     * @param file store file
+     * @param chunkSize size of a chunk in bytes
+     * @param maxChunks number of chunks kept, including the hot one
+     * @throws IOException
+     */
+    public TimeSeriesStore(File file, int chunkSize, int maxChunks) throws IOException {
+        if (chunkSize < HEADER_SIZE + MAX_SAMPLE_BITS / 8 || maxChunks < 2) {
+            throw new IllegalArgumentException("At least two chunks of " + (HEADER_SIZE + MAX_SAMPLE_BITS / 8)
+                    + " bytes are required");
+        }
+        this.mFile = file;
+        this.mChunkSize = chunkSize;
+        this.mMaxChunks = maxChunks;
+        this.mCapacityBits = (chunkSize - HEADER_SIZE) * 8;
+
+        long length = (long) chunkSize * maxChunks;
+        File parent = file.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Unable to create history directory " + parent);
+        }
+        mRaf = new RandomAccessFile(file, "rw");
+        if (mRaf.length() != length) {
+            mRaf.setLength(0);
+            mRaf.setLength(length);
+        }
+        mBuffer = mRaf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+
+        mSequences = new long[maxChunks];
+        mCounts = new int[maxChunks];
+        mStartTimes = new long[maxChunks];
+        mEndTimes = new long[maxChunks];
+        mHot = new byte[chunkSize];
+        mHotBuffer = ByteBuffer.wrap(mHot);
+        recover();
+    }
+
+    /**
+     * Rebuild chunk index from slot headers, and hot chunk from the slot with the highest sequence.
+     */
+    private void recover() {
+        long maxSequence = 0;
+        for (int slot = 0; slot < mMaxChunks; slot++) {
+            int offset = slot * mChunkSize;
+            int count = mBuffer.getInt(offset + OFFSET_COUNT);
+            int bitLength = mBuffer.getInt(offset + OFFSET_BITS);
+            if (mBuffer.getInt(offset) != MAGIC || count <= 0 || bitLength < 32 || bitLength > mCapacityBits) {
+                continue;
+            }
+            mSequences[slot] = mBuffer.getLong(offset + OFFSET_SEQUENCE);
+            mCounts[slot] = count;
+            mStartTimes[slot] = mBuffer.getLong(offset + OFFSET_START);
+            mEndTimes[slot] = mBuffer.getLong(offset + OFFSET_END);
+            mSize += count;
+            if (mSequences[slot] > maxSequence) {
+                maxSequence = mSequences[slot];
+                mHotSlot = slot;
+            }
+        }
+        if (maxSequence == 0) {
+            return;
+        }
+
+        // decode hot chunk to restore encoder state
+        mSequence = maxSequence;
+        int offset = mHotSlot * mChunkSize;
+        int bitLength = mBuffer.getInt(offset + OFFSET_BITS);
+        mBuffer.position(offset);
+        mBuffer.get(mHot, 0, HEADER_SIZE + (bitLength + 7) / 8);
+        mBuffer.position(0);
+        Cursor cursor = mCursor;
+        cursor.reset(mHotBuffer, HEADER_SIZE, mCounts[mHotSlot], mStartTimes[mHotSlot]);
+        while (cursor.next()) {
+            // restored from last sample
+        }
+        mBitLength = cursor.position();
+        mLastTime = cursor.time;
+        mLastDelta = cursor.delta;
+        mLastBits = cursor.bits;
+        mLeading = cursor.leading;
+        mTrailing = cursor.trailing;
+        if (mBitLength != bitLength || mLastTime != mEndTimes[mHotSlot]) {
+            // inconsistent chunk, drop it
+            mSize -= mCounts[mHotSlot];
+            mCounts[mHotSlot] = 0;
+            startChunk();
+        }
+    }
+
+    /**
+     * Append a sample to the hot chunk, sealing it first when full.
+     * @param time sample time in ms, greater than the last sample time
+     * @param value sample value
+     * @return false if sample is older than the last sample and was ignored
+     */
+    public synchronized boolean append(long time, float value) {
+        int slot = mHotSlot;
+        int bits = Float.floatToRawIntBits(value);
+        if (mCounts[slot] > 0) {
+            if (time <= mLastTime) {
+                return false;
+            }
+            long delta = time - mLastTime;
+            long dod = delta - mLastDelta;
+            if (dod < Integer.MIN_VALUE || dod > Integer.MAX_VALUE || mBitLength + MAX_SAMPLE_BITS > mCapacityBits) {
+                seal();
+                slot = mHotSlot;
+            }
+        }
+
+        if (mCounts[slot] == 0) {
+            mStartTimes[slot] = time;
+            mLastDelta = 0;
+            mLeading = -1;
+            write(bits, 32);
+        } else {
+            long delta = time - mLastTime;
+            writeTime(delta - mLastDelta);
+            writeValue(bits ^ mLastBits);
+            mLastDelta = delta;
+        }
+        mLastTime = time;
+        mLastBits = bits;
+        mCounts[slot]++;
+        mEndTimes[slot] = time;
+        mSequences[slot] = mSequence;
+        mSize++;
+        mDirty = true;
+        return true;
+    }
+
+    private void writeTime(long dod) {
+        if (dod == 0) {
+            write(0, 1);
+        } else if (dod >= -64 && dod <= 63) {
+            write(0x2, 2);
+            write(dod & 0x7F, 7);
+        } else if (dod >= -256 && dod <= 255) {
+            write(0x6, 3);
+            write(dod & 0x1FF, 9);
+        } else if (dod >= -2048 && dod <= 2047) {
+            write(0xE, 4);
+            write(dod & 0xFFF, 12);
+        } else {
+            write(0xF, 4);
+            write(dod & 0xFFFFFFFFL, 32);
+        }
+    }
+
+    private void writeValue(int xor) {
+        if (xor == 0) {
+            write(0, 1);
+            return;
+        }
+        int leading = Integer.numberOfLeadingZeros(xor);
+        int trailing = Integer.numberOfTrailingZeros(xor);
+        if (mLeading >= 0 && leading >= mLeading && trailing >= mTrailing) {
+            // meaningful bits fit in previous window
+            write(0x2, 2);
+            write((xor >>> mTrailing) & 0xFFFFFFFFL, 32 - mLeading - mTrailing);
+        } else {
+            int meaningful = 32 - leading - trailing;
+            write(0x3, 2);
+            write(leading, 5);
+            write(meaningful - 1, 5);
+            write((xor >>> trailing) & 0xFFFFFFFFL, meaningful);
+            mLeading = leading;
+            mTrailing = trailing;
+        }
+    }
+
+    private void write(long value, int count) {
+        while (count > 0) {
+            int free = 8 - (mBitLength & 7);
+            int n = Math.min(free, count);
+            int bits = (int) (value >>> (count - n)) & ((1 << n) - 1);
+            mHot[HEADER_SIZE + (mBitLength >>> 3)] |= (byte) (bits << (free - n));
+            mBitLength += n;
+            count -= n;
+        }
+    }
+
+    /**
+     * Copy hot chunk to its slot and start a new chunk in the next slot, evicting the oldest chunk.
+     */
+    private void seal() {
+        checkpoint();
+        mHotSlot = (mHotSlot + 1) % mMaxChunks;
+        mSequence++;
+        mSize -= mCounts[mHotSlot];
+        mCounts[mHotSlot] = 0;
+        startChunk();
+    }
+
+    private void startChunk() {
+        Arrays.fill(mHot, (byte) 0);
+        mBitLength = 0;
+        mLeading = -1;
+    }
+
+    /**
+     * Copy hot chunk to the mapped file, samples are written before the header
+     * so an interrupted copy keeps the previous checkpoint.
+     */
+    public synchronized void checkpoint() {
+        if (!mDirty) {
+            return;
+        }
+        int slot = mHotSlot;
+        int offset = slot * mChunkSize;
+        mBuffer.position(offset + HEADER_SIZE);
+        mBuffer.put(mHot, HEADER_SIZE, (mBitLength + 7) / 8);
+        mBuffer.position(0);
+        mBuffer.putLong(offset + OFFSET_SEQUENCE, mSequence);
+        mBuffer.putInt(offset + OFFSET_COUNT, mCounts[slot]);
+        mBuffer.putInt(offset + OFFSET_BITS, mBitLength);
+        mBuffer.putLong(offset + OFFSET_START, mStartTimes[slot]);
+        mBuffer.putLong(offset + OFFSET_END, mEndTimes[slot]);
+        mBuffer.putInt(offset, MAGIC);
+        mDirty = false;
+    }
+
+    /**
+     * Checkpoint and write mapped chunks to disk.
+     */
+    public synchronized void sync() {
+        checkpoint();
+        mBuffer.force();
+    }
+
+    /**
+     * Read samples of a time range, oldest first.
+     * To page through a long range, call again from the last returned time + 1.
+     * @param from range start time in ms, included
+     * @param to range end time in ms, included
+     * @param times destination of sample times
+     * @param values destination of sample values
+     * @param max maximum number of samples read, no more than the destination lengths
+     * @return number of samples read
+     */
+    public synchronized int read(long from, long to, long[] times, float[] values, int max) {
+        int read = 0;
+        Cursor cursor = mCursor;
+        for (int i = 1; i <= mMaxChunks && read < max; i++) {
+            int slot = (mHotSlot + i) % mMaxChunks;
+            if (mCounts[slot] == 0 || mEndTimes[slot] < from) {
+                continue;
+            }
+            if (mStartTimes[slot] > to) {
+                break;
+            }
+            if (slot == mHotSlot) {
+                cursor.reset(mHotBuffer, HEADER_SIZE, mCounts[slot], mStartTimes[slot]);
+            } else {
+                cursor.reset(mBuffer, slot * mChunkSize + HEADER_SIZE, mCounts[slot], mStartTimes[slot]);
+            }
+            while (read < max && cursor.next()) {
+                if (cursor.time > to) {
+                    return read;
+                }
+                if (cursor.time >= from) {
+                    times[read] = cursor.time;
+                    values[read] = cursor.value();
+                    read++;
+                }
+            }
+        }
+        return read;
+    }
+
+    /**
+     * @return number of samples kept
+     */
+    public synchronized long size() {
+        return mSize;
+    }
+
+    /**
+     * @return time of the last sample in ms, or Long.MIN_VALUE if store is empty
+     */
+    public synchronized long getLastTime() {
+        return mCounts[mHotSlot] > 0 ? mLastTime : Long.MIN_VALUE;
+    }
+
+    /**
+     * @return value of the last sample, or NaN if store is empty
+     */
+    public synchronized float getLastValue() {
+        return mCounts[mHotSlot] > 0 ? Float.intBitsToFloat(mLastBits) : Float.NaN;
+    }
+
+    /**
+     * @return time of the oldest sample kept in ms, or Long.MIN_VALUE if store is empty
+     */
+    public synchronized long getFirstTime() {
+        for (int i = 1; i <= mMaxChunks; i++) {
+            int slot = (mHotSlot + i) % mMaxChunks;
+            if (mCounts[slot] > 0) {
+                return mStartTimes[slot];
+            }
+        }
+        return Long.MIN_VALUE;
+    }
+
+    /**
+     * @return encoded bytes of kept samples, chunk headers excluded
+     */
+    public synchronized long getEncodedBytes() {
+        long bytes = (mBitLength + 7) / 8;
+        for (int slot = 0; slot < mMaxChunks; slot++) {
+            if (slot != mHotSlot && mCounts[slot] > 0) {
+                bytes += (mBuffer.getInt(slot * mChunkSize + OFFSET_BITS) + 7) / 8;
+            }
+        }
+        return bytes;
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    /**
+     * Checkpoint, sync and close the store file.
+     */
+    public synchronized void close() {
+        sync();
+        try {
+            mRaf.close();
+        } catch (IOException e) {
+            // mapped buffer stays valid until collected
+        }
+    }
+}
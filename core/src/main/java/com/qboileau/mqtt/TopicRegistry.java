@@ -0,0 +1,195 @@
+package com.qboileau.mqtt;
+
+import java.nio.charset.Charset;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registered publish topics, with their length prefixed UTF-8 name and QoS.
+ *
+ * A PUBLISH frame built from a {@link Topic} is one allocation : fixed header byte,
+ * remaining length, pre-encoded topic, message id placeholder for QoS 1 and 2, and payload,
+ * with the same layout as {@code PublishMessage.toBytes()}.
+ * Text payloads are encoded straight into the frame, so publishing a string does not
+ * allocate its encoded copy either.
+ * @author qboileau
+ */
+public class TopicRegistry {
+
+    //registered topics beyond this are encoded but not kept
+    public static final int MAX_TOPICS = 1024;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int PUBLISH_HEADER = 0x30;
+
+    private final ConcurrentHashMap<String, Topic> mTopics = new ConcurrentHashMap<String, Topic>();
+
+    /**
+     * Publish topic with pre-encoded name. Thread safe.
+     */
+    public static final class Topic {
+
+        private final String mName;
+        private final byte[] mEncoded;
+        private volatile int mQos = 0;
+
+        private Topic(String name) {
+            this.mName = name;
+            byte[] utf = name.getBytes(UTF8);
+            if (utf.length > 0xFFFF) {
+                throw new IllegalArgumentException("Topic too long : " + utf.length + " bytes");
+            }
+            this.mEncoded = new byte[utf.length + 2];
+            mEncoded[0] = (byte) (utf.length >>> 8);
+            mEncoded[1] = (byte) utf.length;
+            System.arraycopy(utf, 0, mEncoded, 2, utf.length);
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        /**
+         * @return QoS level of messages published on this topic, 0 to 2
+         */
+        public int getQos() {
+            return mQos;
+        }
+
+        public void setQos(int qos) {
+            this.mQos = Math.max(0, Math.min(2, qos));
+        }
+
+        /**
+         * Build a PUBLISH frame with a binary payload.
+         * @param payload buffer holding the payload, may be reused by caller after this call
+         * @param offset payload offset in buffer
+         * @param length payload length
+         * @return encoded frame, message id of QoS 1 and 2 frames is 0 until sent
+         */
+        public byte[] frame(byte[] payload, int offset, int length) {
+            int qos = mQos;
+            byte[] frame = new byte[frameSize(qos, length)];
+            int pos = writeHeader(frame, qos, length);
+            System.arraycopy(payload, offset, frame, pos, length);
+            return frame;
+        }
+
+        /**
+         * Build a PUBLISH frame with a text payload, written as a length prefixed UTF-8 string.
+         * @param message
+         * @return encoded frame, message id of QoS 1 and 2 frames is 0 until sent
+         * @throws IllegalArgumentException if message takes more than 65535 bytes in UTF-8
+         */
+        public byte[] frame(String message) {
+            int qos = mQos;
+            int utfLength = utfLength(message);
+            if (utfLength < 0) {
+                byte[] utf = message.getBytes(UTF8);
+                if (utf.length > 0xFFFF) {
+                    throw new IllegalArgumentException("Message too long : " + utf.length + " bytes");
+                }
+                byte[] frame = new byte[frameSize(qos, utf.length + 2)];
+                int pos = writeHeader(frame, qos, utf.length + 2);
+                frame[pos++] = (byte) (utf.length >>> 8);
+                frame[pos++] = (byte) utf.length;
+                System.arraycopy(utf, 0, frame, pos, utf.length);
+                return frame;
+            }
+            // ASCII fast path, one byte per char
+            byte[] frame = new byte[frameSize(qos, utfLength + 2)];
+            int pos = writeHeader(frame, qos, utfLength + 2);
+            frame[pos++] = (byte) (utfLength >>> 8);
+            frame[pos++] = (byte) utfLength;
+            for (int i = 0; i < utfLength; i++) {
+                frame[pos++] = (byte) message.charAt(i);
+            }
+            return frame;
+        }
+
+        private int remainingLength(int qos, int payloadLength) {
+            return mEncoded.length + (qos > 0 ? 2 : 0) + payloadLength;
+        }
+
+        private int frameSize(int qos, int payloadLength) {
+            int remaining = remainingLength(qos, payloadLength);
+            int lengthBytes = 1;
+            for (int n = remaining; n > 0x7F; n >>>= 7) {
+                lengthBytes++;
+            }
+            return 1 + lengthBytes + remaining;
+        }
+
+        /**
+         * Write fixed header, topic and message id placeholder.
+         * @return payload offset in frame
+         */
+        private int writeHeader(byte[] frame, int qos, int payloadLength) {
+            int pos = 0;
+            frame[pos++] = (byte) (PUBLISH_HEADER | (qos << 1));
+            int remaining = remainingLength(qos, payloadLength);
+            do {
+                int digit = remaining & 0x7F;
+                remaining >>>= 7;
+                frame[pos++] = (byte) (remaining > 0 ? digit | 0x80 : digit);
+            } while (remaining > 0);
+            System.arraycopy(mEncoded, 0, frame, pos, mEncoded.length);
+            pos += mEncoded.length;
+            if (qos > 0) {
+                pos += 2;
+            }
+            return pos;
+        }
+
+        /**
+         * @return string length if all chars are ASCII and not null, -1 otherwise
+         */
+        private static int utfLength(String message) {
+            int length = message.length();
+            if (length > 0xFFFF) {
+                return -1;
+            }
+            for (int i = 0; i < length; i++) {
+                char c = message.charAt(i);
+                if (c == 0 || c >= 0x80) {
+                    return -1;
+                }
+            }
+            return length;
+        }
+
+        @Override
+        public String toString() {
+            return mName;
+        }
+    }
+
+    /**
+     * Get the registered topic of a name, registering it on first call.
+     * @param name topic name
+     * @return registered topic, or an unregistered one once {@link #MAX_TOPICS} are registered
+     */
+    public Topic register(String name) {
+        Topic topic = mTopics.get(name);
+        if (topic != null) {
+            return topic;
+        }
+        topic = new Topic(name);
+        if (mTopics.size() >= MAX_TOPICS) {
+            return topic;
+        }
+        Topic previous = mTopics.putIfAbsent(name, topic);
+        return previous != null ? previous : topic;
+    }
+
+    /**
+     * @param name topic name
+     * @return registered topic, or null
+     */
+    public Topic get(String name) {
+        return mTopics.get(name);
+    }
+
+    public int size() {
+        return mTopics.size();
+    }
+}
@@ -0,0 +1,114 @@
+package com.qboileau.mqtt;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Deterministic topic to broker mapping, with failover order.
+ *
+ * Brokers are ranked per topic by rendezvous hashing of the topic and broker identity :
+ * each topic has a primary broker among the shard brokers, and adding or removing a broker only
+ * moves the topics of this broker. Standby brokers take no topic while shard brokers are up,
+ * they come after all shard brokers in the failover order.
+ * Broker orders are cached per topic : selecting the broker of an already seen topic does not allocate.
+ * @author qboileau
+ */
+public class TopicSharding {
+
+    private final String[] mBrokers;
+    private final int[] mSeeds;
+    private final int mShards;
+    private final Map<String, int[]> mCache;
+    private final long[] mWeights;
+
+    /**
+     * @param brokers broker identities, shard brokers first then standby brokers
+     * @param shards number of shard brokers, at least one
+     * @param cacheSize maximum number of topics whose order is cached
+     */
+    public TopicSharding(String[] brokers, int shards, final int cacheSize) {
+        if (shards < 1 || shards > brokers.length) {
+            throw new IllegalArgumentException("Invalid shard count " + shards + " for " + brokers.length + " brokers");
+        }
+        this.mBrokers = brokers.clone();
+        this.mShards = shards;
+        this.mSeeds = new int[brokers.length];
+        for (int i = 0; i < brokers.length; i++) {
+            mSeeds[i] = mix(brokers[i].hashCode());
+        }
+        this.mWeights = new long[brokers.length];
+        this.mCache = new LinkedHashMap<String, int[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, int[]> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    public int getBrokerCount() {
+        return mBrokers.length;
+    }
+
+    public int getShardCount() {
+        return mShards;
+    }
+
+    public String getBroker(int index) {
+        return mBrokers[index];
+    }
+
+    /**
+     * @param topic
+     * @return index of the broker owning this topic while it is up
+     */
+    public int primary(String topic) {
+        return order(topic)[0];
+    }
+
+    /**
+     * Failover order of a topic, must not be modified.
+     * @param topic
+     * @return broker indexes, primary first, standby brokers last
+     */
+    public synchronized int[] order(String topic) {
+        int[] order = mCache.get(topic);
+        if (order == null) {
+            order = rank(topic);
+            mCache.put(topic, order);
+        }
+        return order;
+    }
+
+    private int[] rank(String topic) {
+        int hash = topic.hashCode();
+        int[] order = new int[mBrokers.length];
+        for (int i = 0; i < mBrokers.length; i++) {
+            // unsigned weight, standby brokers always rank after shard brokers
+            mWeights[i] = (mix(hash ^ mSeeds[i]) & 0xFFFFFFFFL) + (i < mShards ? 1L << 32 : 0);
+            order[i] = i;
+        }
+        // insertion sort by decreasing weight, broker lists are short
+        for (int i = 1; i < order.length; i++) {
+            int broker = order[i];
+            int j = i - 1;
+            while (j >= 0 && mWeights[order[j]] < mWeights[broker]) {
+                order[j + 1] = order[j];
+                j--;
+            }
+            order[j + 1] = broker;
+        }
+        return order;
+    }
+
+    /**
+     * Murmur3 finalizer, spreads close hash codes over all bits.
+     */
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
@@ -0,0 +1,302 @@
+package com.qboileau.mqtt;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Streaming aggregation of a sensor value over tumbling or sliding time windows.
+ *
+ * A window is made of panes of {@code slide} ms, each pane keeps primitive accumulators
+ * (count, min, max, running mean and variance) and a fixed size reservoir sample used to
+ * estimate percentiles. When a pane ends, the window ending with it is summarized from its
+ * panes. Tumbling windows use a single pane (slide == window length).
+ * Nothing is allocated once the aggregator is created.
+ * Listeners are called with the aggregator lock held, summary must be read during the call.
+ * @author qboileau
+ */
+public class WindowAggregator {
+
+    public static final int COUNT   = 1;
+    public static final int MIN     = 1 << 1;
+    public static final int MAX     = 1 << 2;
+    public static final int MEAN    = 1 << 3;
+    public static final int STDDEV  = 1 << 4;
+    public static final int P50     = 1 << 5;
+    public static final int P90     = 1 << 6;
+    public static final int P99     = 1 << 7;
+
+    public static final int DEFAULT_AGGREGATES = COUNT | MIN | MAX | MEAN | STDDEV;
+
+    private static final String[] NAMES = {"count", "min", "max", "mean", "stddev", "p50", "p90", "p99"};
+    private static final int PERCENTILES = P50 | P90 | P99;
+
+    /**
+     * Receive window summaries.
+     */
+    public interface Listener {
+        /**
+         * @param windowEnd window end time in ms
+         * @param aggregator aggregator to read the summary from, with {@link #summarize}
+         */
+        void onWindow(long windowEnd, WindowAggregator aggregator);
+    }
+
+    private final long mSlide;
+    private final int mPaneCount;
+    private final int mAggregates;
+    private final int mSampleCapacity;
+    private final Random mRandom;
+
+    // pane accumulators, indexed by pane
+    private final int[] mCounts;
+    private final float[] mMins;
+    private final float[] mMaxs;
+    private final double[] mMeans;
+    private final double[] mM2s;
+    private final float[][] mSamples;
+
+    private final float[] mSortBuffer;
+    private int mSortedCount;
+
+    private int mPane = 0;
+    private long mPaneStart = Long.MIN_VALUE;
+
+    // summary of last closed window
+    private int mCount;
+    private float mMin;
+    private float mMax;
+    private double mMean;
+    private double mM2;
+
+    /**
+     * @param windowLength window length in ms
+     * @param slide interval between two windows in ms, equals to window length for tumbling windows
+     * @param aggregates aggregates to compute, combination of COUNT, MIN, MAX, MEAN, STDDEV, P50, P90, P99
+     * @param sampleCapacity samples kept per pane for percentiles estimation
+     */
+    public WindowAggregator(long windowLength, long slide, int aggregates, int sampleCapacity) {
+        if (slide <= 0 || windowLength < slide || windowLength % slide != 0) {
+            throw new IllegalArgumentException("Window length must be a multiple of slide");
+        }
+        this.mSlide = slide;
+        this.mPaneCount = (int) (windowLength / slide);
+        this.mAggregates = aggregates;
+        this.mSampleCapacity = (aggregates & PERCENTILES) != 0 ? Math.max(1, sampleCapacity) : 0;
+        this.mRandom = new Random();
+
+        mCounts = new int[mPaneCount];
+        mMins = new float[mPaneCount];
+        mMaxs = new float[mPaneCount];
+        mMeans = new double[mPaneCount];
+        mM2s = new double[mPaneCount];
+        mSamples = new float[mPaneCount][mSampleCapacity];
+        mSortBuffer = new float[mPaneCount * mSampleCapacity];
+    }
+
+    /**
+     * Add a sample, windows ending before sample time are summarized first.
+     * @param time sample time in ms
+     * @param value
+     * @param listener notified for each non empty window closed by this sample
+     */
+    public synchronized void add(long time, float value, Listener listener) {
+        if (mPaneStart == Long.MIN_VALUE) {
+            mPaneStart = time - (time % mSlide);
+        }
+        if (time - mPaneStart >= mSlide * (mPaneCount + 1)) {
+            // long gap, close windows still holding samples and restart aligned on this sample
+            for (int i = 0; i < mPaneCount; i++) {
+                closePane(listener);
+            }
+            clear();
+            mPaneStart = time - (time % mSlide);
+        }
+        while (time >= mPaneStart + mSlide) {
+            closePane(listener);
+        }
+
+        int pane = mPane;
+        int n = ++mCounts[pane];
+        if (n == 1) {
+            mMins[pane] = value;
+            mMaxs[pane] = value;
+        } else {
+            if (value < mMins[pane]) {
+                mMins[pane] = value;
+            }
+            if (value > mMaxs[pane]) {
+                mMaxs[pane] = value;
+            }
+        }
+        double delta = value - mMeans[pane];
+        mMeans[pane] += delta / n;
+        mM2s[pane] += delta * (value - mMeans[pane]);
+
+        if (mSampleCapacity > 0) {
+            if (n <= mSampleCapacity) {
+                mSamples[pane][n - 1] = value;
+            } else {
+                int i = mRandom.nextInt(n);
+                if (i < mSampleCapacity) {
+                    mSamples[pane][i] = value;
+                }
+            }
+        }
+    }
+
+    /**
+     * Close current pane and window ending with it.
+     */
+    private void closePane(Listener listener) {
+        long windowEnd = mPaneStart + mSlide;
+        if (merge() > 0 && listener != null) {
+            listener.onWindow(windowEnd, this);
+        }
+        mPane = (mPane + 1) % mPaneCount;
+        resetPane(mPane);
+        mPaneStart = windowEnd;
+    }
+
+    /**
+     * Merge all panes in window summary.
+     * @return window sample count
+     */
+    private int merge() {
+        mCount = 0;
+        mMean = 0;
+        mM2 = 0;
+        mSortedCount = 0;
+        for (int p = 0; p < mPaneCount; p++) {
+            int n = mCounts[p];
+            if (n == 0) {
+                continue;
+            }
+            if (mCount == 0) {
+                mMin = mMins[p];
+                mMax = mMaxs[p];
+            } else {
+                mMin = Math.min(mMin, mMins[p]);
+                mMax = Math.max(mMax, mMaxs[p]);
+            }
+            // parallel variance merge
+            int total = mCount + n;
+            double delta = mMeans[p] - mMean;
+            mMean += delta * n / total;
+            mM2 += mM2s[p] + delta * delta * ((double) mCount * n / total);
+            mCount = total;
+
+            if (mSampleCapacity > 0) {
+                int samples = Math.min(n, mSampleCapacity);
+                System.arraycopy(mSamples[p], 0, mSortBuffer, mSortedCount, samples);
+                mSortedCount += samples;
+            }
+        }
+        if (mSortedCount > 0) {
+            Arrays.sort(mSortBuffer, 0, mSortedCount);
+        }
+        return mCount;
+    }
+
+    private void resetPane(int pane) {
+        mCounts[pane] = 0;
+        mMeans[pane] = 0;
+        mM2s[pane] = 0;
+    }
+
+    /**
+     * Summarize the window ending with current pane, even if pane is not over, then drop all samples.
+     * Used when the sensor stops, so last samples are not lost.
+     * @param listener notified if window is not empty
+     */
+    public synchronized void flush(Listener listener) {
+        if (mPaneStart != Long.MIN_VALUE) {
+            closePane(listener);
+        }
+        clear();
+    }
+
+    /**
+     * Drop all samples.
+     */
+    public synchronized void clear() {
+        for (int p = 0; p < mPaneCount; p++) {
+            resetPane(p);
+        }
+        mPane = 0;
+        mPaneStart = Long.MIN_VALUE;
+    }
+
+    /**
+     * Write last window summary in a record, values are in aggregate flags order.
+     * @param windowEnd record timestamp
+     * @param sensorType record sensor type
+     * @param record destination
+     */
+    public synchronized void summarize(long windowEnd, int sensorType, SensorRecord record) {
+        record.timestamp = windowEnd;
+        record.sensorType = sensorType;
+        record.hasLocation = false;
+        record.aggregates = mAggregates;
+        int i = 0;
+        for (int flag = COUNT; flag <= P99; flag <<= 1) {
+            if ((mAggregates & flag) != 0) {
+                record.values[i++] = value(flag);
+            }
+        }
+        record.valueCount = i;
+    }
+
+    private float value(int flag) {
+        switch (flag) {
+            case COUNT:  return mCount;
+            case MIN:    return mMin;
+            case MAX:    return mMax;
+            case MEAN:   return (float) mMean;
+            case STDDEV: return mCount > 1 ? (float) Math.sqrt(mM2 / (mCount - 1)) : 0f;
+            case P50:    return percentile(0.50);
+            case P90:    return percentile(0.90);
+            case P99:    return percentile(0.99);
+            default:     return Float.NaN;
+        }
+    }
+
+    private float percentile(double p) {
+        if (mSortedCount == 0) {
+            return Float.NaN;
+        }
+        int index = (int) Math.ceil(p * mSortedCount) - 1;
+        return mSortBuffer[Math.max(0, Math.min(mSortedCount - 1, index))];
+    }
+
+    public int getAggregates() {
+        return mAggregates;
+    }
+
+    /**
+     * @param aggregates combination of aggregate flags
+     * @return aggregate names, in values order
+     */
+    public static String[] names(int aggregates) {
+        String[] names = new String[Integer.bitCount(aggregates & 0xFF)];
+        int i = 0;
+        for (int bit = 0; bit < NAMES.length; bit++) {
+            if ((aggregates & (1 << bit)) != 0) {
+                names[i++] = NAMES[bit];
+            }
+        }
+        return names;
+    }
+
+    /**
+     * @param name aggregate name (count, min, max, mean, stddev, p50, p90, p99)
+     * @return aggregate flag or 0 if unknown
+     */
+    public static int flag(String name) {
+        for (int bit = 0; bit < NAMES.length; bit++) {
+            if (NAMES[bit].equals(name)) {
+                return 1 << bit;
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,46 @@
+package com.qboileau.mqtt;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Dead band, hysteresis and rate limits of {@link DeadBandFilter}.
+ * @author qboileau
+ */
+public class DeadBandFilterTest {
+
+    @Test
+    public void changeMustExceedBand() {
+        DeadBandFilter filter = new DeadBandFilter(0.5f, 0f, 1, 0, 0);
+        assertTrue(filter.accept(0, 1000f));
+        assertFalse(filter.accept(1, 1000.5f));
+        assertFalse(filter.accept(2, 999.5f));
+        assertTrue(filter.accept(3, 1000.75f));
+    }
+
+    @Test
+    public void zeroBandIgnoresSameValue() {
+        DeadBandFilter filter = new DeadBandFilter(0f, 0f, 1, 0, 0);
+        assertTrue(filter.accept(0, 1000f));
+        assertFalse(filter.accept(1, 1000f));
+        assertTrue(filter.accept(2, 1000.01f));
+    }
+
+    @Test
+    public void hysteresisAndIntervals() {
+        DeadBandFilter filter = new DeadBandFilter(1f, 0f, 2, 100, 1000);
+        assertTrue(filter.accept(0, 10f));
+        // single noisy sample
+        assertFalse(filter.accept(10, 20f));
+        assertFalse(filter.accept(20, 10f));
+        // change kept until minimum interval
+        assertFalse(filter.accept(30, 20f));
+        assertFalse(filter.accept(40, 20f));
+        assertTrue(filter.accept(100, 20f));
+        // heartbeat without change
+        assertFalse(filter.accept(1099, 20f));
+        assertTrue(filter.accept(1100, 20f));
+    }
+}
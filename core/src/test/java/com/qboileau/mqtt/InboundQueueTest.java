@@ -0,0 +1,171 @@
+package com.qboileau.mqtt;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Overflow policies and buffer pooling of {@link InboundQueue}.
+ * @author qboileau
+ */
+public class InboundQueueTest {
+
+    private final Messages mMessages = new Messages();
+
+    @Test
+    public void dropOldestKeepsNewest() {
+        InboundQueue queue = new InboundQueue(3, 1024, InboundQueue.DROP_OLDEST);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(queue.offer("/t/" + i, payload(i), 0, 1));
+        }
+        assertEquals(3, queue.size());
+        assertFalse(queue.isThrottling());
+        assertEquals(3, queue.drain(mMessages, 10));
+        mMessages.assertTopics("/t/2", "/t/3", "/t/4");
+        assertEquals(2, mMessages.payloads.get(0).intValue());
+        assertTrue(queue.appendTo(new StringBuilder(), ";").toString().contains("inbound_dropped=2;"));
+    }
+
+    @Test
+    public void dropNewestRejects() {
+        InboundQueue queue = new InboundQueue(3, 1024, InboundQueue.DROP_NEWEST);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(queue.offer("/t/" + i, payload(i), 0, 1));
+        }
+        assertFalse(queue.offer("/t/3", payload(3), 0, 1));
+        assertFalse(queue.offer("/t/4", ByteBuffer.wrap(payload(4)), 0, 1));
+        assertEquals(2, queue.drain(mMessages, 2));
+        assertTrue(queue.offer("/t/5", payload(5), 0, 1));
+        assertEquals(2, queue.drain(mMessages, 10));
+        mMessages.assertTopics("/t/0", "/t/1", "/t/2", "/t/5");
+    }
+
+    @Test
+    public void throttleBlocksAndResumes() throws InterruptedException {
+        final InboundQueue queue = new InboundQueue(1, 1024, InboundQueue.THROTTLE);
+        assertTrue(queue.offer("/t/0", payload(0), 0, 1));
+        assertTrue(queue.isThrottling());
+        // non blocking readers drop and pause themselves
+        assertFalse(queue.offer("/t/x", ByteBuffer.wrap(payload(9)), 0, 1));
+
+        final CountDownLatch started = new CountDownLatch(1);
+        final AtomicBoolean queued = new AtomicBoolean();
+        Thread producer = new Thread() {
+            @Override
+            public void run() {
+                started.countDown();
+                queued.set(queue.offer("/t/1", payload(1), 0, 1));
+            }
+        };
+        producer.start();
+        assertTrue(started.await(1, TimeUnit.SECONDS));
+        producer.join(200);
+        assertTrue("producer must wait for room", producer.isAlive());
+
+        assertEquals(1, queue.drain(mMessages, 1));
+        producer.join(1000);
+        assertFalse(producer.isAlive());
+        assertTrue(queued.get());
+        assertEquals(1, queue.drain(mMessages, 10));
+        mMessages.assertTopics("/t/0", "/t/1");
+    }
+
+    @Test
+    public void closeReleasesProducer() throws InterruptedException {
+        final InboundQueue queue = new InboundQueue(1, 1024, InboundQueue.THROTTLE);
+        queue.offer("/t/0", payload(0), 0, 1);
+        final AtomicBoolean queued = new AtomicBoolean(true);
+        Thread producer = new Thread() {
+            @Override
+            public void run() {
+                queued.set(queue.offer("/t/1", payload(1), 0, 1));
+            }
+        };
+        producer.start();
+        producer.join(100);
+        queue.close();
+        producer.join(1000);
+        assertFalse(producer.isAlive());
+        assertFalse(queued.get());
+
+        // queued messages are still dispatched after close
+        assertTrue(queue.await());
+        assertEquals(1, queue.drain(mMessages, 10));
+        assertFalse(queue.await());
+    }
+
+    @Test
+    public void drainReusesBuffers() {
+        InboundQueue queue = new InboundQueue(4, 1024, InboundQueue.DROP_OLDEST);
+        final Map<byte[], Boolean> buffers = new IdentityHashMap<byte[], Boolean>();
+        InboundQueue.Consumer consumer = new InboundQueue.Consumer() {
+            @Override
+            public void onMessage(String topic, byte[] payload, int length) {
+                buffers.put(payload, Boolean.TRUE);
+            }
+        };
+        byte[] payload = new byte[300];
+        for (int i = 0; i < 200; i++) {
+            if (i == 20) {
+                // buffers have grown to the payload size
+                buffers.clear();
+            }
+            queue.offer("/t", payload, 0, 1 + i % payload.length);
+            queue.offer("/t", payload, 0, payload.length);
+            queue.drain(consumer, 10);
+        }
+        // slot buffers plus the spare one
+        assertTrue(buffers.size() <= queue.getCapacity() + 1);
+
+        // payloads over the pooled size are not kept
+        byte[] large = new byte[4096];
+        large[4095] = 7;
+        queue.offer("/t", large, 0, large.length);
+        queue.drain(mMessages, 1);
+        assertEquals(0, mMessages.payloads.get(0).intValue());
+        buffers.clear();
+        for (int i = 0; i < 10; i++) {
+            queue.offer("/t", payload, 0, 1);
+            queue.drain(consumer, 1);
+        }
+        for (byte[] buffer : buffers.keySet()) {
+            assertTrue(buffer.length <= 1024);
+        }
+    }
+
+    private static byte[] payload(int value) {
+        return new byte[] {(byte) value};
+    }
+
+    /**
+     * Record topics and first payload byte of dispatched messages.
+     */
+    private static final class Messages implements InboundQueue.Consumer {
+        private final List<String> topics = new ArrayList<String>();
+        private final List<Integer> payloads = new ArrayList<Integer>();
+
+        @Override
+        public void onMessage(String topic, byte[] payload, int length) {
+            topics.add(topic);
+            payloads.add((int) payload[0]);
+        }
+
+        private void assertTopics(String... expected) {
+            assertEquals(expected.length, topics.size());
+            for (int i = 0; i < expected.length; i++) {
+                assertEquals(expected[i], topics.get(i));
+            }
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.qboileau.mqtt;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Bucket bounds, empty histogram and negative values of {@link LatencyHistogram}.
+ * @author qboileau
+ */
+public class LatencyHistogramTest {
+
+    private final LatencyHistogram mHistogram = new LatencyHistogram();
+
+    @Test
+    public void empty() {
+        assertEquals(0, mHistogram.getCount());
+        assertEquals(0, mHistogram.getMean());
+        assertEquals(0, mHistogram.getMax());
+        assertEquals(0, mHistogram.getPercentile(0));
+        assertEquals(0, mHistogram.getPercentile(0.99));
+        assertEquals(0, mHistogram.getPercentile(1));
+        assertEquals("0/0/0/0/0/0", mHistogram.appendTo(new StringBuilder()).toString());
+    }
+
+    @Test
+    public void bucketUpperBound() {
+        // bucket [64, 128) reported as 127
+        mHistogram.record(64);
+        mHistogram.record(200);
+        assertEquals(127, mHistogram.getPercentile(0.5));
+        assertEquals(200, mHistogram.getPercentile(1));
+
+        // 0 and 1 have their own buckets
+        LatencyHistogram small = new LatencyHistogram();
+        small.record(0);
+        small.record(1);
+        small.record(2);
+        small.record(3);
+        assertEquals(0, small.getPercentile(0.25));
+        assertEquals(1, small.getPercentile(0.5));
+        assertEquals(3, small.getPercentile(0.75));
+        assertEquals(3, small.getPercentile(1));
+    }
+
+    @Test
+    public void upperBoundClampedToMax() {
+        for (int i = 0; i < 10; i++) {
+            mHistogram.record(70);
+        }
+        assertEquals(70, mHistogram.getPercentile(0.5));
+        assertEquals(70, mHistogram.getPercentile(0.99));
+        assertEquals(70, mHistogram.getMax());
+        assertEquals(70, mHistogram.getMean());
+        assertEquals("10/70/70/70/70/70", mHistogram.appendTo(new StringBuilder()).toString());
+    }
+
+    @Test
+    public void largeValues() {
+        long large = 1L << 50;
+        mHistogram.record(1);
+        mHistogram.record(large);
+        assertEquals(1, mHistogram.getPercentile(0.5));
+        assertEquals(large, mHistogram.getPercentile(1));
+        assertEquals(large, mHistogram.getMax());
+    }
+
+    @Test
+    public void percentileRank() {
+        for (int i = 1; i <= 100; i++) {
+            mHistogram.record(i);
+        }
+        assertEquals(100, mHistogram.getCount());
+        assertEquals(50, mHistogram.getMean());
+        // p0 is the first value, p50 = 50 in [32, 64), p90 = 90 in [64, 128) clamped to max
+        assertEquals(1, mHistogram.getPercentile(0));
+        assertEquals(63, mHistogram.getPercentile(0.5));
+        assertEquals(100, mHistogram.getPercentile(0.9));
+    }
+
+    @Test
+    public void negativeValues() {
+        mHistogram.record(-5);
+        mHistogram.record(Long.MIN_VALUE);
+        assertEquals(2, mHistogram.getCount());
+        assertEquals(0, mHistogram.getMean());
+        assertEquals(0, mHistogram.getMax());
+        assertEquals(0, mHistogram.getPercentile(1));
+
+        mHistogram.record(4);
+        assertEquals(1, mHistogram.getMean());
+        assertEquals(0, mHistogram.getPercentile(0.5));
+        assertEquals(4, mHistogram.getPercentile(1));
+    }
+}
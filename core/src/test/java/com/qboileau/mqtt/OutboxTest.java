@@ -0,0 +1,97 @@
+package com.qboileau.mqtt;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replay, recovery and eviction of {@link Outbox} frames.
+ * @author qboileau
+ */
+public class OutboxTest {
+
+    private static final int SEGMENT_SIZE = 64;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void commitAndRollback() throws IOException {
+        Outbox outbox = new Outbox(mFolder.newFolder(), SEGMENT_SIZE, 4);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(outbox.append(frame(i)));
+        }
+        assertEquals(5, outbox.size());
+
+        assertArrayEquals(frame(0), outbox.next());
+        assertArrayEquals(frame(1), outbox.next());
+        outbox.rollback();
+        assertArrayEquals(frame(0), outbox.next());
+        outbox.commit();
+        assertEquals(4, outbox.size());
+
+        for (int i = 1; i < 5; i++) {
+            assertArrayEquals(frame(i), outbox.next());
+        }
+        assertNull(outbox.next());
+        outbox.commit();
+        assertTrue(outbox.isEmpty());
+        assertEquals(5, outbox.getReplayedCount());
+        outbox.close();
+    }
+
+    @Test
+    public void recover() throws IOException {
+        File directory = mFolder.newFolder();
+        Outbox outbox = new Outbox(directory, SEGMENT_SIZE, 4);
+        for (int i = 0; i < 6; i++) {
+            outbox.append(frame(i));
+        }
+        outbox.next();
+        outbox.next();
+        outbox.commit();
+        // read but not committed, replayed again after restart
+        outbox.next();
+        outbox.sync();
+        outbox.close();
+
+        outbox = new Outbox(directory, SEGMENT_SIZE, 4);
+        assertEquals(4, outbox.getRecoveredCount());
+        for (int i = 2; i < 6; i++) {
+            assertArrayEquals(frame(i), outbox.next());
+        }
+        assertNull(outbox.next());
+        outbox.close();
+    }
+
+    @Test
+    public void evictOldest() throws IOException {
+        Outbox outbox = new Outbox(mFolder.newFolder(), SEGMENT_SIZE, 2);
+        assertFalse(outbox.append(new byte[SEGMENT_SIZE]));
+        int appended = 0;
+        while (outbox.getEvictedCount() == 0) {
+            outbox.append(frame(appended++));
+        }
+        int evicted = (int) outbox.getEvictedCount();
+        assertEquals(appended - evicted, outbox.size());
+        assertArrayEquals(frame(evicted), outbox.next());
+        outbox.close();
+    }
+
+    private static byte[] frame(int index) {
+        byte[] frame = new byte[10];
+        for (int i = 0; i < frame.length; i++) {
+            frame[i] = (byte) (index * 31 + i);
+        }
+        return frame;
+    }
+}
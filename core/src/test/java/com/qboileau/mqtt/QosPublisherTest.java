@@ -0,0 +1,149 @@
+package com.qboileau.mqtt;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * In-flight window, retransmission and message ids of {@link QosPublisher}.
+ * @author qboileau
+ */
+public class QosPublisherTest {
+
+    // PUBLISH on "/t" with a one byte payload
+    private static final int FRAME_SIZE = 9;
+    private static final int DUP_FLAG = 0x08;
+
+    private final ByteArrayOutputStream mOut = new ByteArrayOutputStream();
+
+    @Test
+    public void windowFull() throws IOException {
+        QosPublisher publisher = new QosPublisher(2, 3);
+        assertTrue(publisher.offer(frame(1, 0)));
+        assertTrue(publisher.offer(frame(1, 1)));
+        assertTrue(publisher.offer(frame(1, 2)));
+        assertFalse(publisher.offer(frame(1, 3)));
+
+        assertEquals(2, publisher.send(mOut, 0));
+        assertEquals(2, publisher.getInFlightCount());
+        assertEquals(1, publisher.getPendingCount());
+        assertEquals(2, publisher.remainingCapacity());
+        assertFrames(1, 2);
+
+        // nothing sent until an acknowledgement frees the window
+        assertEquals(0, publisher.send(mOut, 10));
+        assertEquals(0, mOut.size());
+        assertTrue(publisher.onAck(QosPublisher.PUBACK, 1, 20));
+        assertEquals(1, publisher.send(mOut, 20));
+        assertFrames(3);
+
+        // last frame in flight, nothing left to send
+        assertFalse(publisher.onAck(QosPublisher.PUBACK, 2, 30));
+        assertFalse(publisher.onAck(QosPublisher.PUBACK, 2, 30));
+        assertEquals(3, publisher.getSentCount());
+        assertEquals(2, publisher.getAckedCount());
+    }
+
+    @Test
+    public void dupOnRetry() throws IOException {
+        QosPublisher publisher = new QosPublisher(4, 4);
+        publisher.offer(frame(1, 0));
+        publisher.send(mOut, 0);
+        assertFrames(1);
+        assertEquals(1000, publisher.nextRetransmitTime(1000));
+
+        assertEquals(0, publisher.retransmit(mOut, 999, 1000));
+        assertEquals(1, publisher.retransmit(mOut, 1000, 1000));
+        byte[] retry = mOut.toByteArray();
+        mOut.reset();
+        assertEquals(FRAME_SIZE, retry.length);
+        assertEquals(0x32 | DUP_FLAG, retry[0] & 0xFF);
+        assertEquals(1, messageId(retry, 0));
+        assertEquals(2000, publisher.nextRetransmitTime(1000));
+        assertEquals(1, publisher.getRetransmitCount());
+
+        // undelivered frames are stored with the DUP flag
+        byte[] polled = publisher.poll();
+        assertEquals(0x32 | DUP_FLAG, polled[0] & 0xFF);
+        assertNull(publisher.poll());
+        assertEquals(-1, publisher.nextRetransmitTime(1000));
+    }
+
+    @Test
+    public void qos2() throws IOException {
+        QosPublisher publisher = new QosPublisher(4, 4);
+        publisher.offer(frame(2, 0));
+        publisher.send(mOut, 0);
+        mOut.reset();
+
+        assertFalse(publisher.onAck(QosPublisher.PUBCOMP, 1, 10));
+        assertTrue(publisher.onAck(QosPublisher.PUBREC, 1, 10));
+        assertEquals(0, publisher.send(mOut, 10));
+        assertPubrel(1);
+
+        // PUBREL is sent again without DUP flag
+        assertEquals(1, publisher.retransmit(mOut, 1010, 1000));
+        assertPubrel(1);
+        assertEquals(1, publisher.getInFlightCount());
+        publisher.onAck(QosPublisher.PUBCOMP, 1, 20);
+        assertEquals(0, publisher.getInFlightCount());
+    }
+
+    @Test
+    public void messageIdWrapAround() throws IOException {
+        QosPublisher publisher = new QosPublisher(2, 4);
+        // id 1 stays in flight for the whole test
+        publisher.offer(frame(1, 0));
+        publisher.send(mOut, 0);
+        assertFrames(1);
+
+        int expected = 2;
+        for (int i = 0; i < 3 * QosPublisher.MAX_WINDOW; i++) {
+            publisher.offer(frame(1, i));
+            assertEquals(1, publisher.send(mOut, i));
+            assertFrames(expected);
+            publisher.onAck(QosPublisher.PUBACK, expected, i);
+            // ids stay in 1..255 and skip the one in flight
+            expected = expected == QosPublisher.MAX_WINDOW ? 2 : expected + 1;
+        }
+        assertEquals(1, publisher.getInFlightCount());
+
+        // ids out of range are ignored
+        assertFalse(publisher.onAck(QosPublisher.PUBACK, 0, 0));
+        assertFalse(publisher.onAck(QosPublisher.PUBACK, 256, 0));
+        assertEquals(1, publisher.getInFlightCount());
+    }
+
+    private void assertFrames(int... ids) {
+        byte[] data = mOut.toByteArray();
+        mOut.reset();
+        assertEquals(ids.length * FRAME_SIZE, data.length);
+        for (int i = 0; i < ids.length; i++) {
+            assertEquals(0, data[i * FRAME_SIZE] & DUP_FLAG);
+            assertEquals(ids[i], messageId(data, i * FRAME_SIZE));
+        }
+    }
+
+    private void assertPubrel(int id) {
+        byte[] data = mOut.toByteArray();
+        mOut.reset();
+        assertEquals(4, data.length);
+        assertEquals(0x62, data[0] & 0xFF);
+        assertEquals(2, data[1]);
+        assertEquals(id, ((data[2] & 0xFF) << 8) | (data[3] & 0xFF));
+    }
+
+    private static int messageId(byte[] data, int offset) {
+        return ((data[offset + 6] & 0xFF) << 8) | (data[offset + 7] & 0xFF);
+    }
+
+    private static byte[] frame(int qos, int payload) {
+        return new byte[] {(byte) (0x30 | qos << 1), 7, 0, 2, '/', 't', 0, 0, (byte) payload};
+    }
+}
@@ -0,0 +1,166 @@
+package com.qboileau.mqtt;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Encode and decode round trips of {@link RecordBatchCodec}, raw and deflated.
+ * @author qboileau
+ */
+public class RecordBatchCodecTest {
+
+    private static final int TYPE_PRESSURE = 6;
+    private static final int TYPE_ACCELEROMETER = 1;
+
+    private final RecordBatchCodec.Decoder mDecoder = new RecordBatchCodec.Decoder();
+    private final List<SensorRecord> mDecoded = new ArrayList<SensorRecord>();
+    private final RecordBatchCodec.Listener mListener = new RecordBatchCodec.Listener() {
+        @Override
+        public void onRecord(SensorRecord record) {
+            SensorRecord copy = new SensorRecord().set(record.timestamp, record.sensorType,
+                    record.values, 0, record.valueCount);
+            copy.aggregates = record.aggregates;
+            if (record.hasLocation) {
+                copy.setLocation(record.latitude, record.longitude);
+            }
+            mDecoded.add(copy);
+        }
+    };
+
+    @After
+    public void tearDown() {
+        mDecoder.release();
+    }
+
+    @Test
+    public void rawBatch() {
+        List<SensorRecord> records = pressureSamples(2, false);
+        RecordBatchCodec.Encoder encoder = new RecordBatchCodec.Encoder(2);
+        byte[] batch = encode(encoder, records);
+
+        assertFalse(isDeflated(batch));
+        assertBatch(records, batch);
+        encoder.release();
+    }
+
+    @Test
+    public void rawBatchWithoutCompression() {
+        List<SensorRecord> records = pressureSamples(32, true);
+        RecordBatchCodec.Encoder encoder = new RecordBatchCodec.Encoder(32, Deflater.NO_COMPRESSION);
+        byte[] batch = encode(encoder, records);
+
+        assertFalse(isDeflated(batch));
+        assertBatch(records, batch);
+        encoder.release();
+    }
+
+    @Test
+    public void deflatedBatch() {
+        List<SensorRecord> records = pressureSamples(32, true);
+        RecordBatchCodec.Encoder encoder = new RecordBatchCodec.Encoder(32);
+        byte[] batch = encode(encoder, records);
+
+        assertTrue(isDeflated(batch));
+        assertTrue(batch.length < encoder.getMaxSize());
+        assertBatch(records, batch);
+        encoder.release();
+    }
+
+    @Test
+    public void mixedShapes() {
+        List<SensorRecord> records = new ArrayList<SensorRecord>();
+        float[] axes = {0.1f, -9.81f, 0.3f};
+        records.add(new SensorRecord().set(1000, TYPE_PRESSURE, 1013.25f));
+        records.add(new SensorRecord().set(1500, TYPE_ACCELEROMETER, axes, 0, 3).setLocation(48.85, 2.35));
+        SensorRecord summary = new SensorRecord().set(2000, TYPE_PRESSURE, new float[]{12, 1012f, 1014f, 1013f, 0.5f}, 0, 5);
+        summary.aggregates = WindowAggregator.DEFAULT_AGGREGATES;
+        records.add(summary);
+        records.add(new SensorRecord().set(1999, TYPE_PRESSURE, Float.NaN).setLocation(-33.9, 151.2));
+
+        RecordBatchCodec.Encoder encoder = new RecordBatchCodec.Encoder(8);
+        assertBatch(records, encode(encoder, records));
+        // encoder starts a new batch after encode
+        assertEquals(0, encoder.getCount());
+        assertBatch(records.subList(2, 4), encode(encoder, records.subList(2, 4)));
+        encoder.release();
+    }
+
+    @Test
+    public void invalidBatch() {
+        List<SensorRecord> records = pressureSamples(32, true);
+        RecordBatchCodec.Encoder encoder = new RecordBatchCodec.Encoder(32);
+        byte[] batch = encode(encoder, records);
+        encoder.release();
+
+        assertEquals(-1, mDecoder.decode(batch, 0, batch.length / 2, mListener));
+        assertEquals(-1, mDecoder.decode(batch, 0, RecordBatchCodec.HEADER_SIZE - 1, mListener));
+
+        // body of maximum size made of unterminated varints
+        int size = RecordBatchCodec.MAX_RECORDS * RecordBatchCodec.MAX_RECORD_SIZE;
+        byte[] hostile = new byte[RecordBatchCodec.HEADER_SIZE + size];
+        System.arraycopy(batch, 0, hostile, 0, RecordBatchCodec.HEADER_SIZE);
+        hostile[1] = 0;
+        hostile[2] = (byte) RecordBatchCodec.MAX_RECORDS;
+        hostile[11] = (byte) (size >>> 8);
+        hostile[12] = (byte) size;
+        Arrays.fill(hostile, RecordBatchCodec.HEADER_SIZE, hostile.length, (byte) 0xFF);
+        assertEquals(-1, mDecoder.decode(hostile, 0, hostile.length, mListener));
+    }
+
+    private static List<SensorRecord> pressureSamples(int count, boolean location) {
+        Random random = new Random(42);
+        List<SensorRecord> records = new ArrayList<SensorRecord>();
+        long time = 1400000000000L;
+        float pressure = 1013.25f;
+        for (int i = 0; i < count; i++) {
+            time += 5000 + random.nextInt(100);
+            pressure = Math.round((pressure + (float) random.nextGaussian() * 0.3f) * 100) / 100f;
+            SensorRecord record = new SensorRecord().set(time, TYPE_PRESSURE, pressure);
+            if (location && i % 2 == 0) {
+                record.setLocation(48.8566 + i / 1e6, 2.3522);
+            }
+            records.add(record);
+        }
+        return records;
+    }
+
+    private static byte[] encode(RecordBatchCodec.Encoder encoder, List<SensorRecord> records) {
+        for (SensorRecord record : records) {
+            encoder.add(record);
+        }
+        assertEquals(records.size(), encoder.getCount());
+        byte[] buffer = new byte[encoder.getMaxSize()];
+        int length = encoder.encode(buffer, 0);
+        assertTrue(RecordBatchCodec.isBatch(buffer, 0, length));
+        return Arrays.copyOf(buffer, length);
+    }
+
+    private static boolean isDeflated(byte[] batch) {
+        return (batch[1] & 0x01) != 0;
+    }
+
+    private void assertBatch(List<SensorRecord> expected, byte[] batch) {
+        mDecoded.clear();
+        assertEquals(expected.size(), mDecoder.decode(batch, 0, batch.length, mListener));
+        assertEquals(expected.size(), mDecoded.size());
+        for (int i = 0; i < expected.size(); i++) {
+            SensorRecord record = expected.get(i);
+            SensorRecord decoded = mDecoded.get(i);
+            SensorRecordCodecTest.assertRecord(record, decoded);
+            if (record.hasLocation) {
+                assertEquals(record.latitude, decoded.latitude, 1e-6);
+                assertEquals(record.longitude, decoded.longitude, 1e-6);
+            }
+        }
+    }
+}
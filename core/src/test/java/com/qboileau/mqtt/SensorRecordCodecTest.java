@@ -0,0 +1,104 @@
+package com.qboileau.mqtt;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Encode and decode round trips of {@link SensorRecordCodec}.
+ * @author qboileau
+ */
+public class SensorRecordCodecTest {
+
+    private static final int TYPE_PRESSURE = 6;
+    private static final int TYPE_ACCELEROMETER = 1;
+
+    private final byte[] mBuffer = new byte[SensorRecordCodec.MAX_SIZE + 8];
+
+    @Test
+    public void singleValue() {
+        SensorRecord record = new SensorRecord().set(1400000000123L, TYPE_PRESSURE, 1013.25f);
+
+        SensorRecord decoded = roundTrip(record, 0);
+        assertEquals(16, SensorRecordCodec.encodedSize(record));
+        assertRecord(record, decoded);
+        assertFalse(decoded.hasLocation);
+    }
+
+    @Test
+    public void location() {
+        SensorRecord record = new SensorRecord().set(1400000000123L, TYPE_PRESSURE, 1013.25f)
+                .setLocation(48.856614, -2.352222);
+
+        SensorRecord decoded = roundTrip(record, 3);
+        assertEquals(24, SensorRecordCodec.encodedSize(record));
+        assertRecord(record, decoded);
+        assertTrue(decoded.hasLocation);
+        assertEquals(48.856614, decoded.latitude, 1e-6);
+        assertEquals(-2.352222, decoded.longitude, 1e-6);
+    }
+
+    @Test
+    public void multipleValues() {
+        float[] values = {0f, -9.81f, 0.25f, Float.NaN};
+        SensorRecord record = new SensorRecord().set(-1L, TYPE_ACCELEROMETER, values, 0, 3);
+
+        assertRecord(record, roundTrip(record, 0));
+    }
+
+    @Test
+    public void summary() {
+        final SensorRecord record = new SensorRecord();
+        WindowAggregator aggregator = new WindowAggregator(10000, 10000, WindowAggregator.DEFAULT_AGGREGATES, 64);
+        for (int i = 0; i < 10; i++) {
+            aggregator.add(1000L * i, 1013f + i, null);
+        }
+        aggregator.flush(new WindowAggregator.Listener() {
+            @Override
+            public void onWindow(long windowEnd, WindowAggregator aggregator) {
+                aggregator.summarize(windowEnd, TYPE_PRESSURE, record);
+            }
+        });
+        assertEquals(WindowAggregator.DEFAULT_AGGREGATES, record.aggregates);
+        assertEquals(5, record.valueCount);
+        assertEquals(10f, record.values[0], 0f);
+
+        SensorRecord decoded = roundTrip(record, 0);
+        assertRecord(record, decoded);
+        assertEquals(WindowAggregator.DEFAULT_AGGREGATES, decoded.aggregates);
+    }
+
+    @Test
+    public void invalidPayload() {
+        SensorRecord record = new SensorRecord().set(1L, TYPE_PRESSURE, 1f).setLocation(1, 2);
+        int length = SensorRecordCodec.encode(record, mBuffer, 0);
+
+        // truncated location
+        assertEquals(-1, SensorRecordCodec.decode(mBuffer, 0, length - 1, new SensorRecord()));
+        // text payload written by PublishMessage
+        byte[] text = {0x00, 0x04, '1', '0', '1', '3'};
+        assertEquals(-1, SensorRecordCodec.decode(text, 0, text.length, new SensorRecord()));
+    }
+
+    private SensorRecord roundTrip(SensorRecord record, int offset) {
+        int length = SensorRecordCodec.encode(record, mBuffer, offset);
+        assertEquals(SensorRecordCodec.encodedSize(record), length);
+        assertTrue(SensorRecordCodec.isBinary(mBuffer, offset, length));
+        SensorRecord decoded = new SensorRecord();
+        assertEquals(length, SensorRecordCodec.decode(mBuffer, offset, length, decoded));
+        return decoded;
+    }
+
+    static void assertRecord(SensorRecord expected, SensorRecord actual) {
+        assertEquals(expected.timestamp, actual.timestamp);
+        assertEquals(expected.sensorType, actual.sensorType);
+        assertEquals(expected.valueCount, actual.valueCount);
+        assertEquals(expected.aggregates, actual.aggregates);
+        for (int i = 0; i < expected.valueCount; i++) {
+            assertEquals(Float.floatToIntBits(expected.values[i]), Float.floatToIntBits(actual.values[i]));
+        }
+        assertEquals(expected.hasLocation, actual.hasLocation);
+    }
+}
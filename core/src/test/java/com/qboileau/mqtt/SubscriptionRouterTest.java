@@ -0,0 +1,159 @@
+package com.qboileau.mqtt;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Topic filter matching, validation and match cache of {@link SubscriptionRouter}.
+ * @author qboileau
+ */
+public class SubscriptionRouterTest {
+
+    private final SubscriptionRouter mRouter = new SubscriptionRouter(16);
+
+    @Test
+    public void exactAndSingleLevel() {
+        NamedSubscriber exact = subscribe("/device/1/sensor/pressure");
+        NamedSubscriber sensors = subscribe("/device/1/sensor/+");
+        NamedSubscriber devices = subscribe("/device/+/sensor/pressure");
+
+        assertMatch("/device/1/sensor/pressure", exact, sensors, devices);
+        assertMatch("/device/1/sensor/light", sensors);
+        assertMatch("/device/2/sensor/pressure", devices);
+        // + matches exactly one level, possibly empty
+        assertMatch("/device/1/sensor");
+        assertMatch("/device/1/sensor/pressure/raw");
+        assertMatch("/device/1/sensor/", sensors);
+    }
+
+    @Test
+    public void multiLevel() {
+        NamedSubscriber device = subscribe("/device/1/#");
+        NamedSubscriber all = subscribe("#");
+
+        assertMatch("/device/1/sensor/pressure", device, all);
+        assertMatch("/device/1/stats", device, all);
+        // "a/#" also matches its parent level "a"
+        assertMatch("/device/1", device, all);
+        assertMatch("/device/2", all);
+        assertMatch("device/1", all);
+    }
+
+    @Test
+    public void leadingEmptyLevel() {
+        NamedSubscriber rooted = subscribe("+/device/#");
+        NamedSubscriber relative = subscribe("device/#");
+
+        // leading "/" makes an empty first level
+        assertMatch("/device/1", rooted);
+        assertMatch("device/1", relative);
+        assertMatch("x/device", rooted);
+    }
+
+    @Test
+    public void systemTopics() {
+        NamedSubscriber all = subscribe("#");
+        NamedSubscriber any = subscribe("+/broker/load");
+        NamedSubscriber sys = subscribe("$SYS/#");
+
+        assertMatch("$SYS/broker/load", sys);
+        assertMatch("a/broker/load", all, any);
+    }
+
+    @Test
+    public void validate() {
+        assertInvalid("");
+        assertInvalid("a#");
+        assertInvalid("#/a");
+        assertInvalid("a/#/b");
+        assertInvalid("a/b+");
+        assertInvalid("+a/b");
+        subscribe("+");
+        subscribe("+/+/#");
+        subscribe("/");
+    }
+
+    @Test
+    public void cacheInvalidation() {
+        NamedSubscriber first = subscribe("/device/+/stats");
+        assertMatch("/device/1/stats", first);
+        assertMatch("/device/2/stats", first);
+
+        // cached topics see new subscribers
+        NamedSubscriber second = new NamedSubscriber("/device/1/#");
+        assertFalse(mRouter.unsubscribe("/device/1/#", second));
+        assertTrue(mRouter.subscribe("/device/1/#", second));
+        assertMatch("/device/1/stats", first, second);
+        assertMatch("/device/2/stats", first);
+
+        // and no longer see removed ones
+        assertTrue(mRouter.unsubscribe("/device/+/stats", first));
+        assertMatch("/device/1/stats", second);
+        assertMatch("/device/2/stats");
+        assertEquals(new HashSet<String>(Arrays.asList("/device/1/#")), mRouter.getFilters());
+    }
+
+    @Test
+    public void sharedFilter() {
+        NamedSubscriber first = new NamedSubscriber("a");
+        NamedSubscriber second = new NamedSubscriber("b");
+        assertTrue(mRouter.subscribe("/t/+", first));
+        assertFalse(mRouter.subscribe("/t/+", second));
+        assertEquals(2, mRouter.route("/t/x", new byte[]{1, 2, 3}, 2));
+        assertEquals(2, first.length);
+        assertEquals(2, second.length);
+
+        assertFalse(mRouter.unsubscribe("/t/+", first));
+        assertMatch("/t/x", second);
+        assertTrue(mRouter.unsubscribe("/t/+", second));
+        assertMatch("/t/x");
+        assertTrue(mRouter.getFilters().isEmpty());
+    }
+
+    private NamedSubscriber subscribe(String filter) {
+        NamedSubscriber subscriber = new NamedSubscriber(filter);
+        mRouter.subscribe(filter, subscriber);
+        return subscriber;
+    }
+
+    private void assertInvalid(String filter) {
+        try {
+            mRouter.subscribe(filter, new NamedSubscriber(filter));
+        } catch (IllegalArgumentException e) {
+            return;
+        }
+        throw new AssertionError("Filter accepted : " + filter);
+    }
+
+    private void assertMatch(String topic, NamedSubscriber... expected) {
+        Set<SubscriptionRouter.Subscriber> matched = new HashSet<SubscriptionRouter.Subscriber>(
+                Arrays.asList(mRouter.match(topic)));
+        assertEquals(topic, new HashSet<SubscriptionRouter.Subscriber>(Arrays.asList(expected)), matched);
+    }
+
+    private static final class NamedSubscriber implements SubscriptionRouter.Subscriber {
+        private final String name;
+        private int length = -1;
+
+        private NamedSubscriber(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public void onMessage(String topic, byte[] payload, int length) {
+            this.length = length;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+}
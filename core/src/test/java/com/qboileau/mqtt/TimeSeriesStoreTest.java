@@ -0,0 +1,164 @@
+package com.qboileau.mqtt;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Append, range read, reopen and ring wrap-around of {@link TimeSeriesStore}.
+ * @author qboileau
+ */
+public class TimeSeriesStoreTest {
+
+    private static final int CHUNK_SIZE = 256;
+    private static final int MAX_CHUNKS = 8;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void emptyStore() throws IOException {
+        TimeSeriesStore store = new TimeSeriesStore(mFolder.newFile(), CHUNK_SIZE, MAX_CHUNKS);
+        assertEquals(0, store.size());
+        assertEquals(Long.MIN_VALUE, store.getLastTime());
+        assertEquals(Long.MIN_VALUE, store.getFirstTime());
+        assertTrue(Float.isNaN(store.getLastValue()));
+        assertEquals(0, store.read(Long.MIN_VALUE, Long.MAX_VALUE, new long[1], new float[1], 1));
+        store.close();
+    }
+
+    @Test
+    public void roundTrip() throws IOException {
+        Samples samples = new Samples(300);
+        TimeSeriesStore store = new TimeSeriesStore(mFolder.newFile(), 4096, MAX_CHUNKS);
+        samples.append(store);
+
+        assertEquals(samples.count, store.size());
+        assertEquals(samples.times[0], store.getFirstTime());
+        assertEquals(samples.times[samples.count - 1], store.getLastTime());
+        assertEquals(samples.values[samples.count - 1], store.getLastValue(), 0f);
+        assertFalse(store.append(samples.times[samples.count - 1], 0f));
+        assertRange(store, samples, 0, samples.count);
+
+        // range in the middle, read by pages
+        long[] times = new long[7];
+        float[] values = new float[7];
+        int index = 100;
+        long from = samples.times[index];
+        int read;
+        while ((read = store.read(from, samples.times[200], times, values, times.length)) > 0) {
+            for (int i = 0; i < read; i++, index++) {
+                assertEquals(samples.times[index], times[i]);
+                assertEquals(Float.floatToRawIntBits(samples.values[index]), Float.floatToRawIntBits(values[i]));
+            }
+            from = times[read - 1] + 1;
+        }
+        assertEquals(201, index);
+        store.close();
+    }
+
+    @Test
+    public void reopen() throws IOException {
+        File file = mFolder.newFile();
+        Samples samples = new Samples(1000);
+        TimeSeriesStore store = new TimeSeriesStore(file, CHUNK_SIZE, 64);
+        samples.append(store, 0, 600);
+        store.close();
+
+        store = new TimeSeriesStore(file, CHUNK_SIZE, 64);
+        assertEquals(600, store.size());
+        assertEquals(samples.times[599], store.getLastTime());
+        assertRange(store, samples, 0, 600);
+
+        // appends continue the recovered hot chunk, checkpoint keeps them
+        samples.append(store, 600, 1000);
+        store.checkpoint();
+        store.close();
+
+        store = new TimeSeriesStore(file, CHUNK_SIZE, 64);
+        assertEquals(1000, store.size());
+        assertRange(store, samples, 0, 1000);
+        store.close();
+
+        // another geometry clears the file
+        store = new TimeSeriesStore(file, CHUNK_SIZE * 2, 64);
+        assertEquals(0, store.size());
+        store.close();
+    }
+
+    @Test
+    public void wrapAround() throws IOException {
+        File file = mFolder.newFile();
+        Samples samples = new Samples(5000);
+        TimeSeriesStore store = new TimeSeriesStore(file, CHUNK_SIZE, MAX_CHUNKS);
+        samples.append(store);
+
+        // oldest chunks were overwritten, kept samples are the most recent ones
+        int kept = (int) store.size();
+        assertTrue(kept > 0 && kept < samples.count);
+        int first = samples.count - kept;
+        assertEquals(samples.times[first], store.getFirstTime());
+        assertRange(store, samples, first, samples.count);
+        store.close();
+
+        store = new TimeSeriesStore(file, CHUNK_SIZE, MAX_CHUNKS);
+        assertEquals(kept, store.size());
+        assertRange(store, samples, first, samples.count);
+        store.close();
+    }
+
+    private static void assertRange(TimeSeriesStore store, Samples samples, int from, int to) {
+        int count = to - from;
+        long[] times = new long[count + 1];
+        float[] values = new float[count + 1];
+        assertEquals(count, store.read(samples.times[from], samples.times[to - 1], times, values, times.length));
+        for (int i = 0; i < count; i++) {
+            assertEquals(samples.times[from + i], times[i]);
+            assertEquals(Float.floatToRawIntBits(samples.values[from + i]), Float.floatToRawIntBits(values[i]));
+        }
+    }
+
+    /**
+     * Pressure samples at one second with timing jitter, gaps and a few unusual values.
+     */
+    private static final class Samples {
+        private final int count;
+        private final long[] times;
+        private final float[] values;
+
+        private Samples(int count) {
+            this.count = count;
+            this.times = new long[count];
+            this.values = new float[count];
+            Random random = new Random(7);
+            long time = 1400000000000L;
+            float value = 1013.25f;
+            for (int i = 0; i < count; i++) {
+                time += i % 97 == 0 ? 3600000 : 999 + random.nextInt(3);
+                if (random.nextInt(5) == 0) {
+                    value = Math.round((value + (float) random.nextGaussian() * 0.3f) * 100) / 100f;
+                }
+                times[i] = time;
+                values[i] = i == 50 ? Float.NaN : i == 51 ? -0f : value;
+            }
+        }
+
+        private void append(TimeSeriesStore store) {
+            append(store, 0, count);
+        }
+
+        private void append(TimeSeriesStore store, int from, int to) {
+            for (int i = from; i < to; i++) {
+                assertTrue(store.append(times[i], values[i]));
+            }
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package com.qboileau.mqtt;
+
+import org.junit.Test;
+import org.meqantt.message.PublishMessage;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * PUBLISH frames built from registered topics, compared to MeQanTT encoding.
+ * @author qboileau
+ */
+public class TopicRegistryTest {
+
+    private final TopicRegistry mRegistry = new TopicRegistry();
+
+    @Test
+    public void registerOnce() {
+        assertSame(mRegistry.register("/sensor/pressure"), mRegistry.register("/sensor/pressure"));
+    }
+
+    @Test
+    public void textFrames() {
+        TopicRegistry.Topic topic = mRegistry.register("/sensor/pressure");
+        assertFrame(topic, "1013.25");
+        assertFrame(topic, "");
+        assertFrame(topic, "pression \u00e9lev\u00e9e \u2191");
+        char[] large = new char[200];
+        Arrays.fill(large, 'x');
+        assertFrame(topic, new String(large));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void textTooLong() {
+        // fewer chars than the limit, but 3 UTF-8 bytes each
+        char[] message = new char[0xFFFF / 3 + 1];
+        Arrays.fill(message, '\u2191');
+        mRegistry.register("/t").frame(new String(message));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void asciiTooLong() {
+        char[] message = new char[0x10000];
+        Arrays.fill(message, 'a');
+        mRegistry.register("/t").frame(new String(message));
+    }
+
+    private static void assertFrame(TopicRegistry.Topic topic, String message) {
+        assertArrayEquals(new PublishMessage(topic.getName(), message).toBytes(), topic.frame(message));
+    }
+}
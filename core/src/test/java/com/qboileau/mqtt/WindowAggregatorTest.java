@@ -0,0 +1,179 @@
+package com.qboileau.mqtt;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Window boundaries, gap restart, flush and merged aggregates of {@link WindowAggregator}.
+ * @author qboileau
+ */
+public class WindowAggregatorTest {
+
+    private static final int ALL = WindowAggregator.DEFAULT_AGGREGATES
+            | WindowAggregator.P50 | WindowAggregator.P90 | WindowAggregator.P99;
+
+    private final Windows mWindows = new Windows();
+
+    @Test
+    public void tumbling() {
+        WindowAggregator aggregator = new WindowAggregator(1000, 1000, ALL, 16);
+        aggregator.add(100, 1f, mWindows);
+        aggregator.add(999, 3f, mWindows);
+        assertEquals(0, mWindows.size());
+
+        // sample on the boundary belongs to next window
+        aggregator.add(1000, 10f, mWindows);
+        assertEquals(1, mWindows.size());
+        mWindows.assertWindow(0, 1000, 2, 1f, 3f, 2f);
+
+        // empty windows are not reported
+        aggregator.add(2999, 20f, mWindows);
+        assertEquals(2, mWindows.size());
+        mWindows.assertWindow(1, 2000, 1, 10f, 10f, 10f);
+    }
+
+    @Test
+    public void sliding() {
+        WindowAggregator aggregator = new WindowAggregator(3000, 1000, WindowAggregator.DEFAULT_AGGREGATES, 0);
+        aggregator.add(0, 1f, mWindows);
+        aggregator.add(1000, 2f, mWindows);
+        aggregator.add(2000, 3f, mWindows);
+        aggregator.add(3000, 4f, mWindows);
+        aggregator.add(3999, 5f, mWindows);
+        assertEquals(3, mWindows.size());
+        mWindows.assertWindow(0, 1000, 1, 1f, 1f, 1f);
+        mWindows.assertWindow(1, 2000, 2, 1f, 2f, 1.5f);
+        mWindows.assertWindow(2, 3000, 3, 1f, 3f, 2f);
+
+        // oldest pane left the window
+        aggregator.add(4000, 6f, mWindows);
+        mWindows.assertWindow(3, 4000, 4, 2f, 5f, 3.5f);
+    }
+
+    @Test
+    public void gapRestart() {
+        WindowAggregator aggregator = new WindowAggregator(3000, 1000, WindowAggregator.DEFAULT_AGGREGATES, 0);
+        aggregator.add(0, 1f, mWindows);
+        aggregator.add(1500, 3f, mWindows);
+        aggregator.add(100000, 7f, mWindows);
+
+        // windows still holding samples are reported, not the empty ones of the gap
+        assertEquals(4, mWindows.size());
+        mWindows.assertWindow(0, 1000, 1, 1f, 1f, 1f);
+        mWindows.assertWindow(1, 2000, 2, 1f, 3f, 2f);
+        mWindows.assertWindow(2, 3000, 2, 1f, 3f, 2f);
+        mWindows.assertWindow(3, 4000, 1, 3f, 3f, 3f);
+
+        // restarted on the sample pane
+        aggregator.add(100999, 9f, mWindows);
+        aggregator.add(101000, 0f, mWindows);
+        assertEquals(5, mWindows.size());
+        mWindows.assertWindow(4, 101000, 2, 7f, 9f, 8f);
+    }
+
+    @Test
+    public void flush() {
+        WindowAggregator aggregator = new WindowAggregator(2000, 1000, WindowAggregator.DEFAULT_AGGREGATES, 0);
+        aggregator.flush(mWindows);
+        assertEquals(0, mWindows.size());
+
+        aggregator.add(500, 1f, mWindows);
+        aggregator.add(1200, 2f, mWindows);
+        aggregator.flush(mWindows);
+        assertEquals(2, mWindows.size());
+        mWindows.assertWindow(1, 2000, 2, 1f, 2f, 1.5f);
+
+        // samples were dropped, next window starts again
+        aggregator.add(5000, 4f, mWindows);
+        aggregator.flush(mWindows);
+        assertEquals(3, mWindows.size());
+        mWindows.assertWindow(2, 6000, 1, 4f, 4f, 4f);
+    }
+
+    @Test
+    public void mergeMatchesTwoPass() {
+        Random random = new Random(3);
+        WindowAggregator aggregator = new WindowAggregator(10000, 1000, WindowAggregator.DEFAULT_AGGREGATES, 0);
+        float[] values = new float[2000];
+        long[] times = new long[values.length];
+        for (int i = 0; i < values.length; i++) {
+            times[i] = i * 10 + random.nextInt(10);
+            values[i] = 1013.25f + (float) random.nextGaussian() * (i % 300 == 0 ? 50f : 0.2f);
+            aggregator.add(times[i], values[i], mWindows);
+        }
+        assertTrue(mWindows.size() > 10);
+
+        for (int w = 0; w < mWindows.size(); w++) {
+            long end = mWindows.ends.get(w);
+            double sum = 0;
+            int count = 0;
+            for (int i = 0; i < values.length; i++) {
+                if (times[i] >= end - 10000 && times[i] < end) {
+                    sum += values[i];
+                    count++;
+                }
+            }
+            double mean = sum / count;
+            double squares = 0;
+            for (int i = 0; i < values.length; i++) {
+                if (times[i] >= end - 10000 && times[i] < end) {
+                    squares += (values[i] - mean) * (values[i] - mean);
+                }
+            }
+            double stddev = count > 1 ? Math.sqrt(squares / (count - 1)) : 0;
+
+            float[] summary = mWindows.records.get(w).values;
+            assertEquals(count, summary[0], 0f);
+            assertEquals(mean, summary[3], 1e-4);
+            assertEquals(stddev, summary[4], 1e-4 * Math.max(1, stddev));
+        }
+    }
+
+    @Test
+    public void percentiles() {
+        WindowAggregator aggregator = new WindowAggregator(1000, 1000, ALL, 100);
+        for (int i = 100; i >= 1; i--) {
+            aggregator.add(i, i, mWindows);
+        }
+        aggregator.flush(mWindows);
+        float[] summary = mWindows.records.get(0).values;
+        assertEquals(50f, summary[5], 0f);
+        assertEquals(90f, summary[6], 0f);
+        assertEquals(99f, summary[7], 0f);
+    }
+
+    /**
+     * Keep a copy of each reported window summary.
+     */
+    private static final class Windows implements WindowAggregator.Listener {
+        private final List<Long> ends = new ArrayList<Long>();
+        private final List<SensorRecord> records = new ArrayList<SensorRecord>();
+
+        @Override
+        public void onWindow(long windowEnd, WindowAggregator aggregator) {
+            SensorRecord record = new SensorRecord();
+            aggregator.summarize(windowEnd, 0, record);
+            ends.add(windowEnd);
+            records.add(record);
+        }
+
+        private int size() {
+            return records.size();
+        }
+
+        private void assertWindow(int index, long end, int count, float min, float max, float mean) {
+            SensorRecord record = records.get(index);
+            assertEquals(end, record.timestamp);
+            assertEquals(count, record.values[0], 0f);
+            assertEquals(min, record.values[1], 0f);
+            assertEquals(max, record.values[2], 0f);
+            assertEquals(mean, record.values[3], 1e-6f);
+        }
+    }
+}